@@ -1,4 +1,6 @@
 package net.b07z.sepia.websockets.client;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
@@ -8,6 +10,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.UpgradeResponse;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
@@ -24,6 +27,8 @@ import net.b07z.sepia.server.core.tools.JSON;
 import net.b07z.sepia.server.core.tools.ThreadManager;
 import net.b07z.sepia.websockets.common.SocketConfig;
 import net.b07z.sepia.websockets.common.SocketMessage;
+import net.b07z.sepia.websockets.common.SocketMessageCbor;
+import net.b07z.sepia.websockets.common.SocketMessageCodec;
 import net.b07z.sepia.websockets.common.SocketMessage.DataType;
 import net.b07z.sepia.websockets.common.SocketMessage.SenderType;
 
@@ -61,6 +66,8 @@ public class SepiaSocketClient implements SocketClient {
 	private long timeOfLastAction = 0;
 	private AtomicInteger activeThreads = new AtomicInteger(0);
 	private int maxThreadsRegistered = 0;
+	private boolean useBinaryFormat = false;
+	private volatile boolean isBinaryFormatAccepted = false;	//server confirmed the subprotocol
 	//
 	
     private CountDownLatch connectLatch;
@@ -87,6 +94,18 @@ public class SepiaSocketClient implements SocketClient {
         closeLatch = new CountDownLatch(1);
     }
     
+    /**
+     * Use compact binary messages (see {@link SocketMessageCbor}) instead of JSON. Set this before connecting.
+     * Messages are only sent as binary if the server accepts the subprotocol, else JSON is used.
+     */
+    public void setUseBinaryFormat(boolean useBinaryFormat){
+    	this.useBinaryFormat = useBinaryFormat;
+    }
+    @Override
+    public String getRequestedSubProtocol(){
+    	return (useBinaryFormat? SocketMessageCbor.SUBPROTOCOL : null);
+    }
+    
     /**
      * How many threads are active?
      */
@@ -207,6 +226,15 @@ public class SepiaSocketClient implements SocketClient {
         //session.setIdleTimeout(0);
         //session.getPolicy().setIdleTimeout(SocketConfig.IDLE_TIMEOUT);
         this.session = session;
+        if (useBinaryFormat){
+        	UpgradeResponse res = session.getUpgradeResponse();
+        	isBinaryFormatAccepted = (res != null && SocketMessageCbor.SUBPROTOCOL.equals(res.getAcceptedSubProtocol()));
+        	if (!isBinaryFormatAccepted){
+        		log.info("WEBSOCKET-CLIENT: Server did not accept binary format - using JSON");
+        	}
+        }else{
+        	isBinaryFormatAccepted = false;
+        }
         connectLatch.countDown();
     }
     
@@ -224,96 +252,117 @@ public class SepiaSocketClient implements SocketClient {
     		int activeT = activeThreads.incrementAndGet();
     		if (activeT > maxThreadsRegistered) maxThreadsRegistered = activeT;
 	    	try {
-				SocketMessage message = SocketMessage.importJSON(msg);
-				String msgId = message.msgId;
-				String channelId = message.channelId;
-				//System.out.println(message.getJSON()); 		//debug
+				SocketMessage message = SocketMessageCodec.readMessage(msg, true);		//NOTE: data is used directly by client implementations
+				handleMessage(message);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+	    	activeThreads.decrementAndGet();
+    	});
+    }
+    
+    @OnWebSocketMessage
+    public void onMessage(byte[] buffer, int offset, int length){
+    	timeOfLastAction = System.currentTimeMillis();
+    	byte[] msg = Arrays.copyOfRange(buffer, offset, offset + length);		//buffer can be reused by the socket
+    	ThreadManager.run(() -> {
+    		int activeT = activeThreads.incrementAndGet();
+    		if (activeT > maxThreadsRegistered) maxThreadsRegistered = activeT;
+	    	try {
+				SocketMessage message = SocketMessageCbor.readMessage(msg, 0, msg.length);
+				handleMessage(message);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+	    	activeThreads.decrementAndGet();
+    	});
+    }
+    
+    //handle message from server
+    private void handleMessage(SocketMessage message) throws Exception {
+		String msgId = message.msgId;
+		String channelId = message.channelId;
+		//System.out.println(message.getJSON()); 		//debug
+		
+		//update stuff from server
+		if (message.sender.equalsIgnoreCase(SocketConfig.SERVERNAME)){
+			if (storeChannelUserLists && message.userList != null && !message.userList.isEmpty() && channelId != null && !channelId.isEmpty()){
+				channelUserLists.put(channelId, message.userList);
+				log.info("WEBSOCKET-CLIENT: Updated userList of channel '" + channelId + "': " + message.userList.toString());
+			}
+		}
+		
+		//data (note: sending data to a specific receiver will also send it back to you, is that OK?) 
+		if (message.data != null){
+			String dataType = (String) message.data.get("dataType");
+			//only credentials?
+			if (dataType == null){
+				//Note: handled in the final interface implementation (in the overwritten methods replyToMessage, ...)?
+				//System.out.println("WEBSOCKET-CLIENT: Got data without comment: " + message.data.toJSONString());
+			
+			}else if (dataType.equals(DataType.directCmd.name()) || dataType.equals(DataType.assistAnswer.name())){
+				//Note: handled in the final interface implementation (in the overwritten methods replyToMessage, ...)?
 				
-				//update stuff from server
-				if (message.sender.equalsIgnoreCase(SocketConfig.SERVERNAME)){
-					if (storeChannelUserLists && message.userList != null && !message.userList.isEmpty() && channelId != null && !channelId.isEmpty()){
-						channelUserLists.put(channelId, message.userList);
-						log.info("WEBSOCKET-CLIENT: Updated userList of channel '" + channelId + "': " + message.userList.toString());
-					}
+			}else if (dataType.equals(DataType.ping.name())){
+				SocketMessage pingReply = new SocketMessage("", username, deviceId, 
+						SocketConfig.SERVERNAME, SocketConfig.localName, 
+						JSON.make(
+							"dataType", DataType.ping.name(),
+							"replyId", msgId
+						)
+				);
+				if (msgId != null) pingReply.setMessageId(msgId);
+				boolean msgSent = sendMessage(pingReply, 3000);
+				if (!msgSent){
+					//TODO: now what?
 				}
 				
-				//data (note: sending data to a specific receiver will also send it back to you, is that OK?) 
-				if (message.data != null){
-					String dataType = (String) message.data.get("dataType");
-					//only credentials?
-					if (dataType == null){
-						//Note: handled in the final interface implementation (in the overwritten methods replyToMessage, ...)?
-						//System.out.println("WEBSOCKET-CLIENT: Got data without comment: " + message.data.toJSONString());
-					
-					}else if (dataType.equals(DataType.directCmd.name()) || dataType.equals(DataType.assistAnswer.name())){
-						//Note: handled in the final interface implementation (in the overwritten methods replyToMessage, ...)?
-						
-					}else if (dataType.equals(DataType.ping.name())){
-						SocketMessage pingReply = new SocketMessage("", username, deviceId, 
-								SocketConfig.SERVERNAME, SocketConfig.localName, 
-								JSON.make(
-									"dataType", DataType.ping.name(),
-									"replyId", msgId
-								)
-						);
-						if (msgId != null) pingReply.setMessageId(msgId);
-						boolean msgSent = sendMessage(pingReply, 3000);
-						if (!msgSent){
-							//TODO: now what?
-						}
-						
-					//data: authentication
-					}else if (dataType.equals(DataType.authenticate.name())){
-						//set credentials
-						JSONObject data = JSON.make("dataType", DataType.authenticate.name());
-						if (credentials != null && !credentials.isEmpty()){
-							username = (String) credentials.get(CREDENTIALS_USER_ID);
-							JSON.add(data, "credentials", credentials);
-						}
-						//set parameters
-						if (clientParameters != null && !clientParameters.isEmpty()){
-							JSON.add(data, "parameters", clientParameters);
-						}
-						log.info("WEBSOCKET-CLIENT: Authenticating user: '" + username + "'"); 		//debug
-						
-						SocketMessage msgUserName = new SocketMessage("", username, deviceId, SocketConfig.SERVERNAME, SocketConfig.localName, data);
-						if (msgId != null) msgUserName.setMessageId(msgId);
-						boolean msgSent = sendMessage(msgUserName, 3000);
-						if (!msgSent){
-							//TODO: now what?
-						}
-					
-					}else if (dataType.equals(DataType.joinChannel.name())){
-						activeChannel = (String) message.data.get("channelId");
-						givenName = (String) message.data.get("givenName");
-						joinedChannel(activeChannel, givenName);
-					
-					}else if (dataType.equals(DataType.welcome.name())){
-						welcomeToChannel(channelId);
-					}
+			//data: authentication
+			}else if (dataType.equals(DataType.authenticate.name())){
+				//set credentials
+				JSONObject data = JSON.make("dataType", DataType.authenticate.name());
+				if (credentials != null && !credentials.isEmpty()){
+					username = (String) credentials.get(CREDENTIALS_USER_ID);
+					JSON.add(data, "credentials", credentials);
 				}
-	
-				//message not from myself and server - like a user chats with assistant
-				if (!message.sender.equalsIgnoreCase(username) && !message.sender.equalsIgnoreCase(SocketConfig.SERVERNAME.toLowerCase())){
-					//send reply to personal message
-					if (message.receiver != null && message.receiver.toLowerCase().equals(username)){
-						replyToMessage(message);
-						
-					//send comment to chat?
-					}else{
-						commentChat(message);
-					}
-	
-				//message from server - like server status message
-				}else{
-					checkStatusMessage(message);
+				//set parameters
+				if (clientParameters != null && !clientParameters.isEmpty()){
+					JSON.add(data, "parameters", clientParameters);
 				}
+				log.info("WEBSOCKET-CLIENT: Authenticating user: '" + username + "'"); 		//debug
 				
-			} catch (Exception e) {
-				e.printStackTrace();
+				SocketMessage msgUserName = new SocketMessage("", username, deviceId, SocketConfig.SERVERNAME, SocketConfig.localName, data);
+				if (msgId != null) msgUserName.setMessageId(msgId);
+				boolean msgSent = sendMessage(msgUserName, 3000);
+				if (!msgSent){
+					//TODO: now what?
+				}
+			
+			}else if (dataType.equals(DataType.joinChannel.name())){
+				activeChannel = (String) message.data.get("channelId");
+				givenName = (String) message.data.get("givenName");
+				joinedChannel(activeChannel, givenName);
+			
+			}else if (dataType.equals(DataType.welcome.name())){
+				welcomeToChannel(channelId);
 			}
-	    	activeThreads.decrementAndGet();
-    	});
+		}
+
+		//message not from myself and server - like a user chats with assistant
+		if (!message.sender.equalsIgnoreCase(username) && !message.sender.equalsIgnoreCase(SocketConfig.SERVERNAME.toLowerCase())){
+			//send reply to personal message
+			if (message.receiver != null && message.receiver.toLowerCase().equals(username)){
+				replyToMessage(message);
+				
+			//send comment to chat?
+			}else{
+				commentChat(message);
+			}
+
+		//message from server - like server status message
+		}else{
+			checkStatusMessage(message);
+		}
     }
     
     @Override
@@ -324,7 +373,11 @@ public class SepiaSocketClient implements SocketClient {
     			return false;
     		}
             Future<Void> fut;
-            fut = session.getRemote().sendStringByFuture(msg.getJSON().toJSONString());
+            if (isBinaryFormatAccepted){
+            	fut = session.getRemote().sendBytesByFuture(ByteBuffer.wrap(SocketMessageCbor.writeMessage(msg)));
+            }else{
+            	fut = session.getRemote().sendStringByFuture(SocketMessageCodec.writeMessage(msg));
+            }
             fut.get(wait, TimeUnit.MILLISECONDS); 
             return true;
             
@@ -25,6 +25,13 @@ public interface SocketClient {
 	 */
 	public String getStats();
 	
+	/**
+	 * WebSocket subprotocol to request during connection (e.g. for binary message format) or null.
+	 */
+	public default String getRequestedSubProtocol(){
+		return null;
+	}
+	
 	/**
 	 * Wait a certain time for connection. 
 	 * @param wait - maximum wait time in ms
@@ -81,6 +81,9 @@ public class SocketClientHandler
 
             URI serverURI = new URI(destURI);
             ClientUpgradeRequest request = new ClientUpgradeRequest();
+            if (socket.getRequestedSubProtocol() != null){
+            	request.setSubProtocols(socket.getRequestedSubProtocol());
+            }
             client.connect(socket, serverURI, request);
             isConnecting = true;
             connectAttempts++;
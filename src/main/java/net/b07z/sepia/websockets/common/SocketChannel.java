@@ -3,6 +3,7 @@ package net.b07z.sepia.websockets.common;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 
 import org.json.simple.JSONArray;
@@ -12,6 +13,7 @@ import net.b07z.sepia.server.core.server.ConfigDefaults;
 import net.b07z.sepia.server.core.tools.Is;
 import net.b07z.sepia.server.core.tools.JSON;
 import net.b07z.sepia.server.core.tools.Security;
+import net.b07z.sepia.websockets.server.SocketChannelPool;
 
 /**
  * This class represents a default private channel on the webSocketServer for registered users.
@@ -41,6 +43,7 @@ public class SocketChannel {
 	private String owner;			//admin of the channel
 	private boolean isOpen = false;
 	private Set<String> members;	//users allowed to be in this channel
+	private Set<String> memberKeys = ConcurrentHashMap.newKeySet();	//normalized member IDs (user IDs are compared ignoring case)
 	
 	/**
 	 * Create new channel. NOTE: server ID will be assigned automatically to local server name.
@@ -62,7 +65,7 @@ public class SocketChannel {
 		this.members = new ConcurrentSkipListSet<String>();
 		if (key.equals("open")){
 			this.isOpen = true;
-			this.members.add(ConfigDefaults.defaultAssistantUserId);
+			addMember(ConfigDefaults.defaultAssistantUserId);
 		}
 	}
 	/**
@@ -79,12 +82,12 @@ public class SocketChannel {
 		JSONArray membersArray = JSON.getJArray(channelJson, "members");
 		if (membersArray != null){
 			for (Object o : membersArray){
-				this.members.add(o.toString());
+				addMember(o.toString());
 			}
 		}
 		if (this.isOpen){
 			//might already be in members but just to make sure ...
-			this.members.add(ConfigDefaults.defaultAssistantUserId);
+			addMember(ConfigDefaults.defaultAssistantUserId);
 		}
 	}
 	
@@ -144,7 +147,9 @@ public class SocketChannel {
 		return owner;
 	}
 	public void setOwner(String userId){
+		String oldOwner = this.owner;
 		this.owner = userId;
+		SocketChannelPool.updateOwnerIndex(this, oldOwner);
 	}
 	
 	public boolean isOpen(){
@@ -170,7 +175,8 @@ public class SocketChannel {
 		//check key
 		if (checkUserOrChannelKey(channelKey, null)){		//NOTE: we expect internal access key here
 			if (userId != null && !userId.isEmpty()){
-				members.add(userId);
+				addMember(userId);
+				SocketChannelPool.updateMemberIndex(this, userId);
 				return true;
 			}else{
 				return false;
@@ -181,7 +187,8 @@ public class SocketChannel {
 	}
 	
 	public void addSystemDefaultAssistant(){
-		members.add(ConfigDefaults.defaultAssistantUserId);
+		addMember(ConfigDefaults.defaultAssistantUserId);
+		SocketChannelPool.updateMemberIndex(this, ConfigDefaults.defaultAssistantUserId);
 	}
 	
 	public boolean removeUser(SocketUser user, String channelKey){
@@ -189,7 +196,8 @@ public class SocketChannel {
 		if (channelKey.equals(this.channelKey)){
 			String userId = user.getUserId();
 			if (userId != null && !userId.isEmpty()){
-				members.remove(user.getUserId());
+				removeMember(userId);
+				SocketChannelPool.updateMemberIndex(this, userId);
 				return true;
 			}else{
 				return false;
@@ -199,6 +207,28 @@ public class SocketChannel {
 		}
 	}
 	
+	//keep members and normalized keys in sync
+	private void addMember(String userId){
+		synchronized (memberKeys){
+			members.add(userId);
+			memberKeys.add(SocketUserPool.getIdKey(userId));
+		}
+	}
+	private void removeMember(String userId){
+		synchronized (memberKeys){
+			members.remove(userId);
+			for (String m : members){
+				if (m.equalsIgnoreCase(userId)){
+					return;
+				}
+			}
+			memberKeys.remove(SocketUserPool.getIdKey(userId));
+		}
+	}
+	private boolean isMemberKey(String userId){
+		return (userId != null && memberKeys.contains(SocketUserPool.getIdKey(userId)));
+	}
+	
 	/**
 	 * Return all online members of this channel. Note: this can return multiple SocketUsers with same ID (one for each device logged in). 
 	 */
@@ -223,18 +253,16 @@ public class SocketChannel {
 	 */
 	public List<SocketUser> getActiveMembers(boolean includeDeactivated){
 		List<SocketUser> users = new ArrayList<>();
-		for (String u : members){
-			List<SocketUser> sul = SocketUserPool.getAllUsersById(u);
-			if (sul != null){
-				for (SocketUser asu : sul){
-					if (includeDeactivated){
-						if (asu.isOmnipresent() || asu.getActiveChannel().equals(this.channelId)){
-							users.add(asu);
-						}
-					}else if (asu.isActiveInChannelOrOmnipresent(this.channelId)){
-						users.add(asu);
-					}
-				}
+		//users that have this as active channel
+		for (SocketUser su : SocketUserPool.getUsersInChannel(this.channelId)){
+			if ((includeDeactivated || su.isActive() || su.isOmnipresent()) && isMemberKey(su.getUserId())){
+				users.add(su);
+			}
+		}
+		//users that are in all their channels (if not already added)
+		for (SocketUser su : SocketUserPool.getOmnipresentUsers()){
+			if (!this.channelId.equals(su.getActiveChannel()) && isMemberKey(su.getUserId())){
+				users.add(su);
 			}
 		}
 		return users;
@@ -13,6 +13,7 @@ import net.b07z.sepia.websockets.database.ChannelsInMemoryDb;
 import net.b07z.sepia.websockets.database.ChatsDatabase;
 import net.b07z.sepia.websockets.database.ChatsElasticsearchDb;
 import net.b07z.sepia.websockets.database.ChatsInMemoryDb;
+import net.b07z.sepia.websockets.database.ChatsLogDb;
 import net.b07z.sepia.websockets.database.ConfigElasticSearch;
 
 /**
@@ -53,9 +54,45 @@ public class SocketConfig {
 	public static final String authenticationModule = ConfigDefaults.defaultAuthModule;
 	public static String chatsDbModule = ChatsInMemoryDb.class.getCanonicalName();
 	public static String channelsDbModule = ChannelsInMemoryDb.class.getCanonicalName();
+	public static String chatsLogDbFolder = "Xtensions/Database/chats/";		//folder for segment files of the 'log' chats DB module
+	public static long chatsLogDbSegmentBytes = 16*1024*1024;				//start a new segment file when the current one reaches this size (64 KB to 1 GB)
 	
 	//General server features
 	public static boolean useAlivePings = true;			//ping all clients from time to time to make sure they are alive
+	public static final String ALIVE_PING_MODE_JSON = "json";		//ping via SocketMessage with dataType 'ping'
+	public static final String ALIVE_PING_MODE_FRAME = "frame";		//ping via WebSocket ping/pong frames (JSON ping is used as fallback)
+	public static String alivePingMode = ALIVE_PING_MODE_JSON;
+	public static boolean allowBinaryFormat = true;		//allow clients to request binary messages (see SocketMessageCbor)
+	public static int outboundQueueMaxMessages = 500;				//max. number of messages waiting to be sent to one session
+	public static long outboundQueueMaxBytes = 4*1024*1024;			//max. size (string length) of messages waiting to be sent to one session
+	public static long outboundQueueMaxOverLimitMs = 10000;			//close session when its outbound queue stays over the limit for this long
+	public static int dbWriteQueueSize = 10000;				//max. number of chats DB writes waiting in the write-behind queue (split between the workers)
+	public static long dbWriteQueueMaxWaitMs = 100;			//max. time a caller waits for space in a full write queue before the write is dropped
+	public static int dbWriteWorkers = 2;					//threads that write to the chats DB
+	public static int dbWriteBatchSize = 100;				//max. number of writes taken by a worker at once
+	public static long dbWriteBatchWindowMs = 250;			//max. time a worker waits to fill a batch
+	public static int dbWriteMaxRetries = 5;				//retries of a failed write before it is dropped
+	public static long dbWriteRetryDelayMs = 2000;			//delay before first retry (increases with each attempt)
+	public static long authCacheTtlMs = 120000;				//keep successful authentications this long to answer reconnects without Assist-API call (0 = off)
+	public static int authCacheMaxEntries = 10000;			//max. number of cached authentications
+	public static int authWorkers = 8;						//threads that call the Assist-API for authentication
+	public static int authQueueSize = 500;					//max. number of authentications waiting for a worker (more are rejected with 429)
+	public static long authQueueTimeoutMs = 10000;			//authentications that waited longer than this for a worker fail with 500
+	public static long pendingSessionTimeoutMs = 30000;		//close sessions that did not authenticate within this time (0 = never)
+	public static int admissionMaxSessions = 20000;				//max. number of sessions (authenticated and pending) on this server (0 = no limit)
+	public static int admissionMaxSessionsPerUser = 20;			//max. number of sessions of one user with different devices (0 = no limit)
+	public static double admissionConnectsPerSecondPerAddress = 5;	//new connections per second for one remote address (0 = no limit)
+	public static int admissionConnectBurstPerAddress = 20;		//max. number of connections one remote address can open at once
+	public static int admissionMaxTrackedAddresses = 100000;	//max. number of remote addresses with connection rate data (least recently used are removed first)
+	public static long admissionRetryAfterMs = 5000;			//min. retry hint for rejected connections (a random delay is added)
+	public static boolean admissionUseForwardedFor = false;		//use 'X-Forwarded-For' header as remote address (only behind a trusted proxy!)
+	public static int admissionTrustedProxyHops = 1;			//number of trusted proxies in front of the server that append to 'X-Forwarded-For'
+	public static double inboundMessagesPerSecond = 20;			//messages per second one session can send (0 = no limit, assistant is not limited)
+	public static int inboundMessageBurst = 50;					//max. number of messages one session can send at once
+	public static double inboundBytesPerSecond = 262144;		//message data (characters) per second one session can send (0 = no limit)
+	public static int inboundBytesBurst = 1048576;				//max. message data one session can send at once
+	public static double channelBroadcastsPerSecond = 50;		//broadcasted messages per second in one channel (0 = no limit)
+	public static int channelBroadcastBurst = 100;				//max. number of broadcasted messages in one channel at once
 	
 	//General chat settings
 	public static boolean distinguishUsersByDeviceId = true;		//allow 2 users with same ID to be active when device ID is different?
@@ -64,6 +101,11 @@ public class SocketConfig {
 	public static int maxChannelsPerUser = 10;			//how many channels can a user (non-admin) own?
 	public static int maxChannelsPerServer = 5000; 		//NOTE: this is limited by 'index.max_result_window' (10000) for Elasticsearch. If you increase this you need to adjust the ES methods!
 	public static long channelCleanUpScheduleDelay = 1800000; 		//wait at least this long until automatic channel clean-up triggers 
+	public static int historyCacheMaxChannels = 1000;		//max. number of channels with cached history (least recently used are removed first)
+	public static long historyCacheMaxBytes = 64*1024*1024;	//max. (approximated) memory of all cached channel histories
+	public static int missedMessagesCacheMaxUsers = 10000;	//max. number of users with cached missed-message data
+	public static int channelListCacheMaxUsers = 10000;		//max. number of users with cached channel list (for client updates and '/getAvailableChannels')
+	public static long missedMessagesDebounceMs = 5000;		//collect missed message marks of a user for this long before DB write and client note (0 = off)
 	
 	//----------database---------
 	
@@ -124,7 +166,11 @@ public class SocketConfig {
 				chatsDbModule = ChatsInMemoryDb.class.getCanonicalName();
 			}else if (chatsDbModuleType.equals("elasticsearch")){
 				chatsDbModule = ChatsElasticsearchDb.class.getCanonicalName();
+			}else if (chatsDbModuleType.equals("log")){
+				chatsDbModule = ChatsLogDb.class.getCanonicalName();
 			}
+			chatsLogDbFolder = settings.getProperty("chats_log_db_folder", "Xtensions/Database/chats/");
+			chatsLogDbSegmentBytes = Long.parseLong(settings.getProperty("chats_log_db_segment_bytes", "16777216"));
 			//assistant
 			//systemAssistantId = settings.getProperty("systemAssistantId");
 			//databases
@@ -136,10 +182,47 @@ public class SocketConfig {
 			ConfigElasticSearch.auth_data = settings.getProperty("db_elastic_auth_data", null);
 			//general features
 			useAlivePings = Boolean.parseBoolean(settings.getProperty("use_alive_pings", "true"));
+			alivePingMode = settings.getProperty("alive_ping_mode", ALIVE_PING_MODE_JSON);
+			allowBinaryFormat = Boolean.parseBoolean(settings.getProperty("allow_binary_format", "true"));
+			outboundQueueMaxMessages = Integer.parseInt(settings.getProperty("outbound_queue_max_messages", "500"));
+			outboundQueueMaxBytes = Long.parseLong(settings.getProperty("outbound_queue_max_bytes", "4194304"));
+			outboundQueueMaxOverLimitMs = Long.parseLong(settings.getProperty("outbound_queue_max_over_limit_ms", "10000"));
+			dbWriteQueueSize = Integer.parseInt(settings.getProperty("db_write_queue_size", "10000"));
+			dbWriteQueueMaxWaitMs = Long.parseLong(settings.getProperty("db_write_queue_max_wait_ms", "100"));
+			dbWriteWorkers = Integer.parseInt(settings.getProperty("db_write_workers", "2"));
+			dbWriteBatchSize = Integer.parseInt(settings.getProperty("db_write_batch_size", "100"));
+			dbWriteBatchWindowMs = Long.parseLong(settings.getProperty("db_write_batch_window_ms", "250"));
+			dbWriteMaxRetries = Integer.parseInt(settings.getProperty("db_write_max_retries", "5"));
+			dbWriteRetryDelayMs = Long.parseLong(settings.getProperty("db_write_retry_delay_ms", "2000"));
+			authCacheTtlMs = Long.parseLong(settings.getProperty("auth_cache_ttl_ms", "120000"));
+			authCacheMaxEntries = Integer.parseInt(settings.getProperty("auth_cache_max_entries", "10000"));
+			authWorkers = Integer.parseInt(settings.getProperty("auth_workers", "8"));
+			authQueueSize = Integer.parseInt(settings.getProperty("auth_queue_size", "500"));
+			authQueueTimeoutMs = Long.parseLong(settings.getProperty("auth_queue_timeout_ms", "10000"));
+			pendingSessionTimeoutMs = Long.parseLong(settings.getProperty("pending_session_timeout_ms", "30000"));
+			admissionMaxSessions = Integer.parseInt(settings.getProperty("admission_max_sessions", "20000"));
+			admissionMaxSessionsPerUser = Integer.parseInt(settings.getProperty("admission_max_sessions_per_user", "20"));
+			admissionConnectsPerSecondPerAddress = Double.parseDouble(settings.getProperty("admission_connects_per_second_per_address", "5"));
+			admissionConnectBurstPerAddress = Integer.parseInt(settings.getProperty("admission_connect_burst_per_address", "20"));
+			admissionMaxTrackedAddresses = Integer.parseInt(settings.getProperty("admission_max_tracked_addresses", "100000"));
+			admissionRetryAfterMs = Long.parseLong(settings.getProperty("admission_retry_after_ms", "5000"));
+			admissionUseForwardedFor = Boolean.parseBoolean(settings.getProperty("admission_use_forwarded_for", "false"));
+			admissionTrustedProxyHops = Integer.parseInt(settings.getProperty("admission_trusted_proxy_hops", "1"));
+			inboundMessagesPerSecond = Double.parseDouble(settings.getProperty("inbound_messages_per_second", "20"));
+			inboundMessageBurst = Integer.parseInt(settings.getProperty("inbound_message_burst", "50"));
+			inboundBytesPerSecond = Double.parseDouble(settings.getProperty("inbound_bytes_per_second", "262144"));
+			inboundBytesBurst = Integer.parseInt(settings.getProperty("inbound_bytes_burst", "1048576"));
+			channelBroadcastsPerSecond = Double.parseDouble(settings.getProperty("channel_broadcasts_per_second", "50"));
+			channelBroadcastBurst = Integer.parseInt(settings.getProperty("channel_broadcast_burst", "100"));
 			//chat
 			maxChannelsPerUser = Integer.parseInt(settings.getProperty("max_channels_per_user", "10"));
 			storeMessagesPerChannel = Integer.parseInt(settings.getProperty("store_messages_per_channel", "0"));
 			channelCleanUpScheduleDelay = Long.parseLong(settings.getProperty("channel_clean_up_schedule_delay", "1800000"));	//default 30min
+			historyCacheMaxChannels = Integer.parseInt(settings.getProperty("history_cache_max_channels", "1000"));
+			historyCacheMaxBytes = Long.parseLong(settings.getProperty("history_cache_max_bytes", "67108864"));
+			missedMessagesCacheMaxUsers = Integer.parseInt(settings.getProperty("missed_messages_cache_max_users", "10000"));
+			channelListCacheMaxUsers = Integer.parseInt(settings.getProperty("channel_list_cache_max_users", "10000"));
+			missedMessagesDebounceMs = Long.parseLong(settings.getProperty("missed_messages_debounce_ms", "5000"));
 			
 			LoggerFactory.getLogger(SocketConfig.class).info("loading settings from " + configFile + "... done.");
 		}catch (Exception e){
@@ -177,10 +260,49 @@ public class SocketConfig {
 			config.setProperty("db_elastic_endpoint_us1", ConfigElasticSearch.endpoint_us1);
 			//general features
 			config.setProperty("use_alive_pings", String.valueOf(useAlivePings));
+			config.setProperty("alive_ping_mode", alivePingMode);
+			config.setProperty("allow_binary_format", String.valueOf(allowBinaryFormat));
+			config.setProperty("outbound_queue_max_messages", String.valueOf(outboundQueueMaxMessages));
+			config.setProperty("outbound_queue_max_bytes", String.valueOf(outboundQueueMaxBytes));
+			config.setProperty("outbound_queue_max_over_limit_ms", String.valueOf(outboundQueueMaxOverLimitMs));
+			config.setProperty("chats_log_db_folder", chatsLogDbFolder);
+			config.setProperty("chats_log_db_segment_bytes", String.valueOf(chatsLogDbSegmentBytes));
+			config.setProperty("db_write_queue_size", String.valueOf(dbWriteQueueSize));
+			config.setProperty("db_write_queue_max_wait_ms", String.valueOf(dbWriteQueueMaxWaitMs));
+			config.setProperty("db_write_workers", String.valueOf(dbWriteWorkers));
+			config.setProperty("db_write_batch_size", String.valueOf(dbWriteBatchSize));
+			config.setProperty("db_write_batch_window_ms", String.valueOf(dbWriteBatchWindowMs));
+			config.setProperty("db_write_max_retries", String.valueOf(dbWriteMaxRetries));
+			config.setProperty("db_write_retry_delay_ms", String.valueOf(dbWriteRetryDelayMs));
+			config.setProperty("auth_cache_ttl_ms", String.valueOf(authCacheTtlMs));
+			config.setProperty("auth_cache_max_entries", String.valueOf(authCacheMaxEntries));
+			config.setProperty("auth_workers", String.valueOf(authWorkers));
+			config.setProperty("auth_queue_size", String.valueOf(authQueueSize));
+			config.setProperty("auth_queue_timeout_ms", String.valueOf(authQueueTimeoutMs));
+			config.setProperty("pending_session_timeout_ms", String.valueOf(pendingSessionTimeoutMs));
+			config.setProperty("admission_max_sessions", String.valueOf(admissionMaxSessions));
+			config.setProperty("admission_max_sessions_per_user", String.valueOf(admissionMaxSessionsPerUser));
+			config.setProperty("admission_connects_per_second_per_address", String.valueOf(admissionConnectsPerSecondPerAddress));
+			config.setProperty("admission_connect_burst_per_address", String.valueOf(admissionConnectBurstPerAddress));
+			config.setProperty("admission_max_tracked_addresses", String.valueOf(admissionMaxTrackedAddresses));
+			config.setProperty("admission_retry_after_ms", String.valueOf(admissionRetryAfterMs));
+			config.setProperty("admission_use_forwarded_for", String.valueOf(admissionUseForwardedFor));
+			config.setProperty("admission_trusted_proxy_hops", String.valueOf(admissionTrustedProxyHops));
+			config.setProperty("inbound_messages_per_second", String.valueOf(inboundMessagesPerSecond));
+			config.setProperty("inbound_message_burst", String.valueOf(inboundMessageBurst));
+			config.setProperty("inbound_bytes_per_second", String.valueOf(inboundBytesPerSecond));
+			config.setProperty("inbound_bytes_burst", String.valueOf(inboundBytesBurst));
+			config.setProperty("channel_broadcasts_per_second", String.valueOf(channelBroadcastsPerSecond));
+			config.setProperty("channel_broadcast_burst", String.valueOf(channelBroadcastBurst));
 			//chat
 			config.setProperty("max_channels_per_user", String.valueOf(maxChannelsPerUser));
 			config.setProperty("store_messages_per_channel", String.valueOf(storeMessagesPerChannel));
 			config.setProperty("channel_clean_up_schedule_delay", String.valueOf(channelCleanUpScheduleDelay));
+			config.setProperty("history_cache_max_channels", String.valueOf(historyCacheMaxChannels));
+			config.setProperty("history_cache_max_bytes", String.valueOf(historyCacheMaxBytes));
+			config.setProperty("missed_messages_cache_max_users", String.valueOf(missedMessagesCacheMaxUsers));
+			config.setProperty("channel_list_cache_max_users", String.valueOf(channelListCacheMaxUsers));
+			config.setProperty("missed_messages_debounce_ms", String.valueOf(missedMessagesDebounceMs));
 			
 			FilesAndStreams.saveSettings(configFile, config);
 			
@@ -61,6 +61,7 @@ public class SocketMessage {
 		authentication,
 		channel,
 		updateRequest,
+		rateLimit,
 		unknown
 	}
 
@@ -72,7 +73,8 @@ public class SocketMessage {
 	public String text;
 	public String textType;
 	public String html;
-	public JSONObject data;
+	public JSONObject data;			//NOTE: for messages read via SocketMessageCodec this is null until 'getData()' is called
+	private String rawData;			//'data' as JSON string (not parsed yet)
 	
 	public String sender;
 	public String senderType;
@@ -236,17 +238,45 @@ public class SocketMessage {
 	 * @param value - actual data to add at field
 	 */
 	public void addData(String key, Object value){
-		if (this.data == null){
+		if (getData() == null){
 			this.data = new JSONObject(); 
 		}
 		JSON.add(this.data, key, value);
 	}
 	
+	/**
+	 * Get data block. If the message was read without parsing the data (see {@link SocketMessageCodec}) it is parsed now.
+	 * @return data or null
+	 */
+	public JSONObject getData(){
+		if (this.data == null && this.rawData != null){
+			try{
+				this.data = (JSONObject) new JSONParser().parse(this.rawData);
+			}catch (Exception e){
+				throw new RuntimeException("Failed to parse message data: " + e.getMessage(), e);
+			}
+			this.rawData = null;
+		}
+		return this.data;
+	}
+	/**
+	 * Set data block as JSON string. It will be parsed the first time {@link #getData()} is called.
+	 */
+	public void setRawData(String rawData){
+		this.rawData = rawData;
+	}
+	String getRawData(){
+		return this.rawData;
+	}
+	boolean hasRawData(){
+		return (this.rawData != null);
+	}
+	
 	/**
 	 * Get data.dataType ({@link DataType}) value or null.
 	 */
 	public String getDataType(){
-		if (this.data == null){
+		if (getData() == null){
 			return null;
 		}else{
 			return JSON.getString(this.data, "dataType");
@@ -266,7 +296,7 @@ public class SocketMessage {
 	 * @return value or null
 	 */
 	public String getDataParameterAsString(String key){
-		if (this.data != null){
+		if (getData() != null){
 			if (this.data.containsKey("parameters")){
 				return JSON.getString((JSONObject) this.data.get("parameters"), key);
 			}
@@ -305,7 +335,7 @@ public class SocketMessage {
 		if (text != null && !text.isEmpty()) message.put("text", escapedText);
 		if (textType != null && !textType.isEmpty()) message.put("textType", textType);
 		if (html != null && !html.isEmpty()) message.put("html", html);
-		if (data != null && !data.isEmpty()) message.put("data", data);
+		if (getData() != null && !data.isEmpty()) message.put("data", data);
 		if (clientType != null && !clientType.isEmpty())message.put("clientType", clientType);
 		if (userList != null && !userList.isEmpty()){
 			message.put("userList", userList);
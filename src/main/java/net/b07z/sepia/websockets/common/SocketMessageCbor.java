@@ -0,0 +1,331 @@
+package net.b07z.sepia.websockets.common;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONAware;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * Compact binary (CBOR, RFC 8949) format for {@link SocketMessage}. The message has the same structure as {@link SocketMessage#getJSON()},
+ * only the encoding is different. Supports the JSON data model (maps, arrays, strings, integers, floats, booleans and null).<br>
+ * Clients request it with the WebSocket subprotocol {@link #SUBPROTOCOL} (or URL parameter 'format=cbor').
+ *
+ * @author Florian Quirin
+ *
+ */
+public class SocketMessageCbor {
+
+	public static final String SUBPROTOCOL = "sepia-cbor";
+	public static final String FORMAT_NAME = "cbor";
+
+	private static final int MAX_DEPTH = 64;
+
+	//major types
+	private static final int UNSIGNED = 0;
+	private static final int NEGATIVE = 1;
+	private static final int BYTES = 2;
+	private static final int TEXT = 3;
+	private static final int ARRAY = 4;
+	private static final int MAP = 5;
+	private static final int TAG = 6;
+	private static final int SIMPLE = 7;
+
+	//------------------------- write --------------------------
+
+	/**
+	 * Encode message to CBOR.
+	 * @param msg - {@link SocketMessage}
+	 * @return bytes
+	 */
+	public static byte[] writeMessage(SocketMessage msg){
+		return write(msg.getJSON());
+	}
+
+	/**
+	 * Encode any JSON value (e.g. a safe message JSONObject) to CBOR.
+	 * @param value - JSONObject, JSONArray, String, Number, Boolean or null
+	 * @return bytes
+	 */
+	public static byte[] write(Object value){
+		ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+		writeValue(out, value);
+		return out.toByteArray();
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static void writeValue(ByteArrayOutputStream out, Object value){
+		if (value == null){
+			out.write(0xF6);
+		}else if (value instanceof String){
+			writeText(out, (String) value);
+		}else if (value instanceof Boolean){
+			out.write(((Boolean) value)? 0xF5 : 0xF4);
+		}else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte){
+			long l = ((Number) value).longValue();
+			if (l >= 0){
+				writeHead(out, UNSIGNED, l);
+			}else{
+				writeHead(out, NEGATIVE, -1 - l);
+			}
+		}else if (value instanceof Number){
+			double d = ((Number) value).doubleValue();
+			if (Double.isInfinite(d) || Double.isNaN(d)){
+				out.write(0xF6);		//same as JSON
+			}else{
+				out.write(0xFB);
+				long bits = Double.doubleToLongBits(d);
+				for (int i = 7; i >= 0; i--){
+					out.write((int) (bits >>> (i * 8)) & 0xFF);
+				}
+			}
+		}else if (value instanceof Map){
+			Map map = (Map) value;
+			writeHead(out, MAP, map.size());
+			for (Object o : map.entrySet()){
+				Map.Entry e = (Map.Entry) o;
+				writeText(out, String.valueOf(e.getKey()));
+				writeValue(out, e.getValue());
+			}
+		}else if (value instanceof Collection){
+			Collection list = (Collection) value;
+			writeHead(out, ARRAY, list.size());
+			for (Object o : list){
+				writeValue(out, o);
+			}
+		}else if (value instanceof JSONAware){
+			//pre-serialized JSON (e.g. channel history) - parse once to encode it
+			Object parsed;
+			try{
+				parsed = new JSONParser().parse(((JSONAware) value).toJSONString());
+			}catch (Exception e){
+				parsed = null;
+			}
+			writeValue(out, parsed);
+		}else{
+			writeText(out, value.toString());
+		}
+	}
+
+	private static void writeText(ByteArrayOutputStream out, String s){
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeHead(out, TEXT, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeHead(ByteArrayOutputStream out, int majorType, long n){
+		int mt = majorType << 5;
+		if (n < 24){
+			out.write(mt | (int) n);
+		}else if (n <= 0xFF){
+			out.write(mt | 24);
+			out.write((int) n);
+		}else if (n <= 0xFFFF){
+			out.write(mt | 25);
+			out.write((int) (n >>> 8) & 0xFF);
+			out.write((int) n & 0xFF);
+		}else if (n <= 0xFFFFFFFFL){
+			out.write(mt | 26);
+			for (int i = 3; i >= 0; i--){
+				out.write((int) (n >>> (i * 8)) & 0xFF);
+			}
+		}else{
+			out.write(mt | 27);
+			for (int i = 7; i >= 0; i--){
+				out.write((int) (n >>> (i * 8)) & 0xFF);
+			}
+		}
+	}
+
+	//------------------------- read --------------------------
+
+	/**
+	 * Decode CBOR message.
+	 * @param buf - buffer
+	 * @param offset - start of message in buffer
+	 * @param length - length of message
+	 * @return {@link SocketMessage}
+	 * @throws Exception if data is not valid or not a message
+	 */
+	public static SocketMessage readMessage(byte[] buf, int offset, int length) throws Exception {
+		Object o = read(buf, offset, length);
+		if (!(o instanceof JSONObject)){
+			throw new Exception("Invalid CBOR message: not a map");
+		}
+		return SocketMessage.importJSON((JSONObject) o);
+	}
+
+	/**
+	 * Decode CBOR to JSON value (JSONObject, JSONArray, String, Long, Double, Boolean or null).
+	 * @param buf - buffer
+	 * @param offset - start of data in buffer
+	 * @param length - length of data
+	 * @return decoded value
+	 * @throws Exception if data is not valid
+	 */
+	public static Object read(byte[] buf, int offset, int length) throws Exception {
+		Reader r = new Reader(buf, offset, offset + length);
+		Object o = r.readValue(0);
+		if (r.pos != r.end){
+			throw new Exception("Invalid CBOR: unexpected data after value");
+		}
+		return o;
+	}
+
+	private static class Reader {
+		private final byte[] buf;
+		private int pos;
+		private final int end;
+
+		Reader(byte[] buf, int pos, int end){
+			this.buf = buf;
+			this.pos = pos;
+			this.end = end;
+		}
+
+		int readByte() throws Exception {
+			if (pos >= end) throw new Exception("Invalid CBOR: unexpected end");
+			return buf[pos++] & 0xFF;
+		}
+		long readUInt(int bytes) throws Exception {
+			long n = 0;
+			for (int i = 0; i < bytes; i++){
+				n = (n << 8) | readByte();
+			}
+			return n;
+		}
+		//argument of initial byte (-1 for indefinite length)
+		long readArgument(int info) throws Exception {
+			if (info < 24) return info;
+			switch (info){
+				case 24: return readUInt(1);
+				case 25: return readUInt(2);
+				case 26: return readUInt(4);
+				case 27: return readUInt(8);
+				case 31: return -1;
+				default: throw new Exception("Invalid CBOR: reserved additional info " + info);
+			}
+		}
+		int checkLength(long n) throws Exception {
+			if (n < 0 || n > (end - pos)){
+				throw new Exception("Invalid CBOR: bad length " + n);		//every item has at least 1 byte
+			}
+			return (int) n;
+		}
+
+		@SuppressWarnings("unchecked")
+		Object readValue(int depth) throws Exception {
+			if (depth > MAX_DEPTH) throw new Exception("Invalid CBOR: nesting too deep");
+			int ib = readByte();
+			int major = ib >>> 5;
+			int info = ib & 0x1F;
+			switch (major){
+				case UNSIGNED:{
+					long n = readArgument(info);
+					if (n < 0 && info == 27) throw new Exception("Invalid CBOR: integer too large");
+					return n;
+				}
+				case NEGATIVE:{
+					long n = readArgument(info);
+					if (n < 0 && info == 27) throw new Exception("Invalid CBOR: integer too large");
+					return -1 - n;
+				}
+				case BYTES:
+					throw new Exception("Invalid CBOR: byte strings are not supported");
+				case TEXT:{
+					long n = readArgument(info);
+					if (n == -1){
+						//indefinite length: chunks of definite text strings
+						StringBuilder sb = new StringBuilder();
+						while (true){
+							if (pos < end && (buf[pos] & 0xFF) == 0xFF){
+								pos++;
+								return sb.toString();
+							}
+							int cb = readByte();
+							if ((cb >>> 5) != TEXT || (cb & 0x1F) == 31) throw new Exception("Invalid CBOR: bad text chunk");
+							int len = checkLength(readArgument(cb & 0x1F));
+							sb.append(new String(buf, pos, len, StandardCharsets.UTF_8));
+							pos += len;
+						}
+					}
+					int len = checkLength(n);
+					String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+					pos += len;
+					return s;
+				}
+				case ARRAY:{
+					long n = readArgument(info);
+					JSONArray arr = new JSONArray();
+					if (n == -1){
+						while (!readBreak()){
+							arr.add(readValue(depth + 1));
+						}
+					}else{
+						int len = checkLength(n);
+						for (int i = 0; i < len; i++){
+							arr.add(readValue(depth + 1));
+						}
+					}
+					return arr;
+				}
+				case MAP:{
+					long n = readArgument(info);
+					JSONObject map = new JSONObject();
+					if (n == -1){
+						while (!readBreak()){
+							map.put(String.valueOf(readValue(depth + 1)), readValue(depth + 1));
+						}
+					}else{
+						int len = checkLength(n);
+						for (int i = 0; i < len; i++){
+							map.put(String.valueOf(readValue(depth + 1)), readValue(depth + 1));
+						}
+					}
+					return map;
+				}
+				case TAG:
+					readArgument(info);
+					return readValue(depth + 1);		//tags are ignored
+				default:
+					//SIMPLE
+					switch (info){
+						case 20: return false;
+						case 21: return true;
+						case 22: return null;
+						case 23: return null;		//undefined
+						case 25: return (double) halfToFloat((int) readUInt(2));
+						case 26: return (double) Float.intBitsToFloat((int) readUInt(4));
+						case 27: return Double.longBitsToDouble(readUInt(8));
+						default: throw new Exception("Invalid CBOR: unsupported simple value " + info);
+					}
+			}
+		}
+		boolean readBreak(){
+			if (pos < end && (buf[pos] & 0xFF) == 0xFF){
+				pos++;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	//IEEE 754 half precision to float
+	private static float halfToFloat(int h){
+		int exp = (h >>> 10) & 0x1F;
+		int mant = h & 0x3FF;
+		float val;
+		if (exp == 0){
+			val = mant * (float) Math.pow(2, -24);
+		}else if (exp != 31){
+			val = (mant + 1024) * (float) Math.pow(2, exp - 25);
+		}else{
+			val = (mant == 0)? Float.POSITIVE_INFINITY : Float.NaN;
+		}
+		return ((h & 0x8000) != 0)? -val : val;
+	}
+}
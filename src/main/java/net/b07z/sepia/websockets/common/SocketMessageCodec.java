@@ -0,0 +1,672 @@
+package net.b07z.sepia.websockets.common;
+
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONAware;
+import org.json.simple.parser.JSONParser;
+import org.owasp.encoder.Encode;
+
+import net.b07z.sepia.server.core.tools.Converters;
+import net.b07z.sepia.server.core.tools.Is;
+
+/**
+ * Streaming reader and writer for the {@link SocketMessage} envelope.<br>
+ * The reader walks the message string once and keeps the 'data' block as raw JSON until {@link SocketMessage#getData()}
+ * is called. The writer appends all fields directly to a reusable (per thread) buffer instead of building a JSONObject first.
+ * Both produce the same fields, values and escaping as {@link SocketMessage#importJSON(String)} and {@link SocketMessage#getJSON()}
+ * (field order can differ, just like for any JSONObject).
+ *
+ * @author Florian Quirin
+ *
+ */
+public class SocketMessageCodec {
+
+	private static final int MAX_KEEP_BUFFER = 65536;		//don't keep huge buffers after large messages
+	private static final ThreadLocal<StringBuilder> writeBuffer = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+	//------------------------- read --------------------------
+
+	/**
+	 * Read a message. The 'data' block is parsed when it is used the first time.
+	 * @param msg - message as JSON string
+	 * @return {@link SocketMessage}
+	 * @throws Exception if the message is not a valid JSON object or a field has the wrong type
+	 */
+	public static SocketMessage readMessage(String msg) throws Exception {
+		return readMessage(msg, false);
+	}
+	/**
+	 * Read a message.
+	 * @param msg - message as JSON string
+	 * @param parseData - parse 'data' block right away (e.g. when message is given to code that uses {@link SocketMessage#data} directly)
+	 * @return {@link SocketMessage}
+	 * @throws Exception if the message is not a valid JSON object or a field has the wrong type
+	 */
+	public static SocketMessage readMessage(String msg, boolean parseData) throws Exception {
+		Reader r = new Reader(msg);
+		SocketMessage imported = new SocketMessage();
+		//NOTE: same defaults as 'importJSON' (missing fields are null)
+		imported.msgId = null;
+		imported.channelId = null;
+		imported.serverId = null;
+		imported.senderDeviceId = null;
+		imported.receiverDeviceId = null;
+		boolean hasTime = false;
+
+		r.skipWhitespace();
+		r.expect('{');
+		r.skipWhitespace();
+		if (r.peek() == '}'){
+			r.pos++;
+		}else{
+			while (true){
+				r.skipWhitespace();
+				String key = r.readString();
+				r.skipWhitespace();
+				r.expect(':');
+				r.skipWhitespace();
+				switch (key){
+					case "msgId": imported.msgId = r.readStringOrNull(key); break;
+					case "channelId": imported.channelId = r.readStringOrNull(key); break;
+					case "serverId": imported.serverId = r.readStringOrNull(key); break;
+					case "sender": imported.sender = r.readStringOrNull(key); break;
+					case "senderType": imported.senderType = r.readStringOrNull(key); break;
+					case "senderDeviceId": imported.senderDeviceId = r.readStringOrNull(key); break;
+					case "receiver": imported.receiver = r.readStringOrNull(key); break;
+					case "receiverDeviceId": imported.receiverDeviceId = r.readStringOrNull(key); break;
+					case "time": imported.timeStampHHmmss = r.readStringOrNull(key); break;
+					case "text": imported.text = r.readStringOrNull(key); break;
+					case "textType": imported.textType = r.readStringOrNull(key); break;
+					case "html": imported.html = r.readStringOrNull(key); break;
+					case "clientType": imported.clientType = r.readStringOrNull(key); break;
+					case "timeUNIX":
+						imported.timeStampUNIX = r.readLong(key);
+						hasTime = true;
+						break;
+					case "data":
+						if (r.peekNull()){
+							imported.data = null;
+							imported.setRawData(null);
+						}else if (r.peek() == '{'){
+							int start = r.pos;
+							r.skipValue();
+							imported.data = null;
+							imported.setRawData(msg.substring(start, r.pos));
+						}else{
+							throw new ClassCastException("Field 'data' must be an object");
+						}
+						break;
+					case "userList":
+						if (r.peekNull()){
+							imported.userList = null;
+						}else if (r.peek() == '['){
+							int start = r.pos;
+							r.skipValue();
+							imported.userList = (JSONArray) new JSONParser().parse(msg.substring(start, r.pos));
+						}else{
+							throw new ClassCastException("Field 'userList' must be an array");
+						}
+						break;
+					default:
+						r.skipValue();
+				}
+				r.skipWhitespace();
+				char c = r.next();
+				if (c == '}'){
+					break;
+				}else if (c != ','){
+					throw r.error("Expected ',' or '}'");
+				}
+			}
+		}
+		r.skipWhitespace();
+		if (r.pos < msg.length()){
+			throw r.error("Unexpected content after message");
+		}
+		if (!hasTime){
+			throw new NullPointerException("Field 'timeUNIX' is missing");		//same as 'importJSON'
+		}
+
+		//post-processing (see 'importJSON')
+		if (imported.timeStampHHmmss == null){
+			imported.timeStampHHmmss = new SimpleDateFormat("HH:mm:ss").format(new Date(imported.timeStampUNIX));
+		}
+		if (Is.notNullOrEmpty(imported.text)){
+			imported.text = Converters.unescapeHTML(imported.text.trim());		//simple un-escape of HTML
+		}
+		if (parseData){
+			imported.getData();
+		}
+		return imported;
+	}
+
+	/**
+	 * Routing info of a message, see {@link SocketMessageCodec#readHeader(String)}.
+	 */
+	public static class Header {
+		public String msgId;
+		public String channelId;
+		public String receiver;
+		public String dataType;		//data.dataType
+		public boolean hasData;		//data is not null and not empty
+		
+		@Override
+		public String toString(){
+			return ("msgId:" + msgId + ",channelId:" + channelId + ",receiver:" + receiver + ",dataType:" + dataType);
+		}
+	}
+	
+	/**
+	 * Get header fields of a message that was already decoded (e.g. from binary format).
+	 * @param msg - {@link SocketMessage}
+	 * @return {@link Header}
+	 */
+	public static Header getHeader(SocketMessage msg){
+		Header header = new Header();
+		header.msgId = msg.msgId;
+		header.channelId = msg.channelId;
+		header.receiver = msg.receiver;
+		header.hasData = (msg.data != null && !msg.data.isEmpty());
+		header.dataType = header.hasData? msg.getDataType() : null;
+		return header;
+	}
+	
+	/**
+	 * Pre-scan a message and extract only 'msgId', 'channelId', 'receiver' and 'data.dataType' without decoding the rest.
+	 * Use this to validate and route a message before it is read completely.
+	 * @param msg - message as JSON string
+	 * @return {@link Header}
+	 * @throws Exception if the message is not a valid JSON object or a field has the wrong type
+	 */
+	public static Header readHeader(String msg) throws Exception {
+		Reader r = new Reader(msg);
+		Header header = new Header();
+		r.skipWhitespace();
+		r.expect('{');
+		r.skipWhitespace();
+		if (r.peek() == '}'){
+			r.pos++;
+		}else{
+			while (true){
+				r.skipWhitespace();
+				String key = r.readString();
+				r.skipWhitespace();
+				r.expect(':');
+				r.skipWhitespace();
+				switch (key){
+					case "msgId": header.msgId = r.readStringOrNull(key); break;
+					case "channelId": header.channelId = r.readStringOrNull(key); break;
+					case "receiver": header.receiver = r.readStringOrNull(key); break;
+					case "data":
+						header.dataType = null;
+						header.hasData = false;
+						if (r.peekNull()){
+							break;
+						}else if (r.peek() != '{'){
+							throw new ClassCastException("Field 'data' must be an object");
+						}
+						r.pos++;
+						r.skipWhitespace();
+						if (r.peek() == '}'){
+							r.pos++;
+							break;
+						}
+						header.hasData = true;
+						while (true){
+							r.skipWhitespace();
+							String dataKey = r.readString();
+							r.skipWhitespace();
+							r.expect(':');
+							r.skipWhitespace();
+							if (dataKey.equals("dataType")){
+								header.dataType = r.readStringOrNull("data.dataType");
+							}else{
+								r.skipValue();
+							}
+							r.skipWhitespace();
+							char c = r.next();
+							if (c == '}') break;
+							if (c != ',') throw r.error("Expected ',' or '}'");
+						}
+						break;
+					default:
+						r.skipValue();
+				}
+				r.skipWhitespace();
+				char c = r.next();
+				if (c == '}'){
+					break;
+				}else if (c != ','){
+					throw r.error("Expected ',' or '}'");
+				}
+			}
+		}
+		r.skipWhitespace();
+		if (r.pos < msg.length()){
+			throw r.error("Unexpected content after message");
+		}
+		return header;
+	}
+
+	/**
+	 * Minimal JSON reader working directly on the message string.
+	 */
+	private static class Reader {
+		private final String s;
+		private int pos = 0;
+		private StringBuilder sb;		//only used for strings with escape sequences
+
+		Reader(String s){
+			this.s = s;
+		}
+
+		Exception error(String reason){
+			return new Exception("Invalid message JSON at position " + pos + ": " + reason);
+		}
+		char peek() throws Exception {
+			if (pos >= s.length()) throw error("Unexpected end");
+			return s.charAt(pos);
+		}
+		char next() throws Exception {
+			if (pos >= s.length()) throw error("Unexpected end");
+			return s.charAt(pos++);
+		}
+		void expect(char c) throws Exception {
+			if (next() != c) throw error("Expected '" + c + "'");
+		}
+		void skipWhitespace(){
+			while (pos < s.length()){
+				char c = s.charAt(pos);
+				if (c == ' ' || c == '\t' || c == '\n' || c == '\r'){
+					pos++;
+				}else{
+					break;
+				}
+			}
+		}
+		boolean peekNull() throws Exception {
+			if (s.startsWith("null", pos)){
+				pos += 4;
+				return true;
+			}
+			return false;
+		}
+
+		String readStringOrNull(String key) throws Exception {
+			if (peekNull()){
+				return null;
+			}else if (peek() != '"'){
+				throw new ClassCastException("Field '" + key + "' must be a string");
+			}
+			return readString();
+		}
+
+		String readString() throws Exception {
+			expect('"');
+			int start = pos;
+			//fast path: no escape sequences
+			while (pos < s.length()){
+				char c = s.charAt(pos);
+				if (c == '"'){
+					return s.substring(start, pos++);
+				}else if (c == '\\'){
+					break;
+				}
+				pos++;
+			}
+			if (sb == null){
+				sb = new StringBuilder();
+			}
+			sb.setLength(0);
+			sb.append(s, start, pos);
+			while (true){
+				char c = next();
+				if (c == '"'){
+					return sb.toString();
+				}else if (c == '\\'){
+					char e = next();
+					switch (e){
+						case '"': sb.append('"'); break;
+						case '\\': sb.append('\\'); break;
+						case '/': sb.append('/'); break;
+						case 'b': sb.append('\b'); break;
+						case 'f': sb.append('\f'); break;
+						case 'n': sb.append('\n'); break;
+						case 'r': sb.append('\r'); break;
+						case 't': sb.append('\t'); break;
+						case 'u':
+							if (pos + 4 > s.length()) throw error("Invalid unicode escape");
+							try{
+								sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+							}catch (NumberFormatException ex){
+								throw error("Invalid unicode escape");
+							}
+							pos += 4;
+							break;
+						default:
+							throw error("Invalid escape sequence");
+					}
+				}else{
+					sb.append(c);
+				}
+			}
+		}
+
+		long readLong(String key) throws Exception {
+			if (peekNull()){
+				throw new NullPointerException("Field '" + key + "' is null");
+			}
+			int start = pos;
+			if (peek() == '-') pos++;
+			while (pos < s.length() && Character.isDigit(s.charAt(pos))) pos++;
+			if (pos == start || (pos < s.length() && ".eE".indexOf(s.charAt(pos)) >= 0)){
+				throw new ClassCastException("Field '" + key + "' must be an integer");
+			}
+			return Long.parseLong(s.substring(start, pos));
+		}
+
+		//skip any value and check its syntax
+		void skipValue() throws Exception {
+			char c = peek();
+			if (c == '"'){
+				skipString();
+			}else if (c == '{'){
+				pos++;
+				skipWhitespace();
+				if (peek() == '}'){
+					pos++;
+					return;
+				}
+				while (true){
+					skipWhitespace();
+					skipString();
+					skipWhitespace();
+					expect(':');
+					skipWhitespace();
+					skipValue();
+					skipWhitespace();
+					char n = next();
+					if (n == '}') return;
+					if (n != ',') throw error("Expected ',' or '}'");
+				}
+			}else if (c == '['){
+				pos++;
+				skipWhitespace();
+				if (peek() == ']'){
+					pos++;
+					return;
+				}
+				while (true){
+					skipWhitespace();
+					skipValue();
+					skipWhitespace();
+					char n = next();
+					if (n == ']') return;
+					if (n != ',') throw error("Expected ',' or ']'");
+				}
+			}else if (s.startsWith("true", pos)){
+				pos += 4;
+			}else if (s.startsWith("false", pos)){
+				pos += 5;
+			}else if (s.startsWith("null", pos)){
+				pos += 4;
+			}else if (c == '-' || isDigit(c)){
+				skipNumber();
+			}else{
+				throw error("Unexpected character '" + c + "'");
+			}
+		}
+		//NOTE: skipped values are forwarded as raw data, so we check the full grammar here
+		void skipString() throws Exception {
+			expect('"');
+			while (true){
+				char c = next();
+				if (c == '"'){
+					return;
+				}else if (c == '\\'){
+					char e = next();
+					if (e == 'u'){
+						for (int i = 0; i < 4; i++){
+							if (Character.digit(next(), 16) < 0) throw error("Invalid unicode escape");
+						}
+					}else if ("\"\\/bfnrt".indexOf(e) < 0){
+						throw error("Invalid escape sequence");
+					}
+				}else if (c < 0x20){
+					throw error("Invalid control character in string");
+				}
+			}
+		}
+		//-?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?
+		void skipNumber() throws Exception {
+			if (peek() == '-') pos++;
+			char c = next();
+			if (c != '0'){
+				if (!isDigit(c)) throw error("Invalid number");
+				skipDigits();
+			}
+			if (pos < s.length() && s.charAt(pos) == '.'){
+				pos++;
+				if (!isDigit(next())) throw error("Invalid number");
+				skipDigits();
+			}
+			if (pos < s.length() && (s.charAt(pos) == 'e' || s.charAt(pos) == 'E')){
+				pos++;
+				char e = next();
+				if (e == '+' || e == '-') e = next();
+				if (!isDigit(e)) throw error("Invalid number");
+				skipDigits();
+			}
+		}
+		private void skipDigits(){
+			while (pos < s.length() && isDigit(s.charAt(pos))) pos++;
+		}
+		private static boolean isDigit(char c){
+			return (c >= '0' && c <= '9');
+		}
+	}
+
+	//------------------------- write --------------------------
+
+	/**
+	 * Write message to JSON string. Result is the same as {@code msg.getJSON().toJSONString()}.
+	 * @param msg - {@link SocketMessage}
+	 * @return JSON string
+	 */
+	public static String writeMessage(SocketMessage msg){
+		StringBuilder sb = writeBuffer.get();
+		sb.setLength(0);
+		writeMessage(msg, sb);
+		String res = sb.toString();
+		if (sb.capacity() > MAX_KEEP_BUFFER){
+			writeBuffer.set(new StringBuilder(1024));
+		}
+		return res;
+	}
+	/**
+	 * Write message without sensitive data ('data.credentials' and 'data.parameters') to JSON string.
+	 * Result is the same as {@code SepiaSocketBroadcaster.makeSafeMessage(msg).toJSONString()}.
+	 * @param msg - {@link SocketMessage}
+	 * @return JSON string
+	 */
+	public static String writeSafeMessage(SocketMessage msg){
+		StringBuilder sb = writeBuffer.get();
+		sb.setLength(0);
+		writeMessage(msg, sb, true);
+		String res = sb.toString();
+		if (sb.capacity() > MAX_KEEP_BUFFER){
+			writeBuffer.set(new StringBuilder(1024));
+		}
+		return res;
+	}
+	/**
+	 * Write message to given buffer. Fields and conditions are the same as in {@link SocketMessage#getJSON()}.
+	 * @param msg - {@link SocketMessage}
+	 * @param sb - buffer to append to
+	 */
+	public static void writeMessage(SocketMessage msg, StringBuilder sb){
+		writeMessage(msg, sb, false);
+	}
+	private static void writeMessage(SocketMessage msg, StringBuilder sb, boolean isSafe){
+		//pre-processing
+		String escapedText = "";
+		if (msg.text != null){
+			msg.text = msg.text.trim();
+			escapedText = Encode.forHtml(msg.text);		//escape HTML
+		}
+		sb.append('{');
+		writeField(sb, "msgId", msg.msgId, true);
+		writeField(sb, "channelId", msg.channelId, false);
+		writeField(sb, "serverId", msg.serverId, false);
+		writeField(sb, "sender", msg.sender, false);
+		if (Is.notNullOrEmpty(msg.senderDeviceId)) writeField(sb, "senderDeviceId", msg.senderDeviceId, false);
+		if (Is.notNullOrEmpty(msg.senderType)) writeField(sb, "senderType", msg.senderType, false);
+		sb.append(",\"timeUNIX\":").append(msg.timeStampUNIX);
+		writeField(sb, "time", msg.timeStampHHmmss, false);
+		if (Is.notNullOrEmpty(msg.receiver)) writeField(sb, "receiver", msg.receiver, false);
+		if (Is.notNullOrEmpty(msg.receiverDeviceId)) writeField(sb, "receiverDeviceId", msg.receiverDeviceId, false);
+		if (Is.notNullOrEmpty(msg.text)) writeField(sb, "text", escapedText, false);
+		if (Is.notNullOrEmpty(msg.textType)) writeField(sb, "textType", msg.textType, false);
+		if (Is.notNullOrEmpty(msg.html)) writeField(sb, "html", msg.html, false);
+		if (isSafe && msg.hasRawData() && !isSafeRawData(msg.getRawData())){
+			msg.getData(); 		//parse to remove sensitive fields
+		}
+		if (msg.data != null){
+			if (!msg.data.isEmpty()){
+				if (isSafe){
+					writeSafeData(sb, msg.data);
+				}else{
+					sb.append(",\"data\":");
+					writeValue(sb, msg.data);
+				}
+			}
+		}else if (msg.hasRawData()){
+			//not parsed yet - use as is
+			sb.append(",\"data\":").append(msg.getRawData());
+		}
+		if (Is.notNullOrEmpty(msg.clientType)) writeField(sb, "clientType", msg.clientType, false);
+		if (msg.userList != null && !msg.userList.isEmpty()){
+			sb.append(",\"userList\":");
+			writeValue(sb, msg.userList);
+		}
+		sb.append('}');
+	}
+
+	//data without 'credentials' and 'parameters' (same as 'makeSafeMessage', object stays even if nothing is left)
+	@SuppressWarnings("rawtypes")
+	private static void writeSafeData(StringBuilder sb, Map data){
+		sb.append(",\"data\":{");
+		boolean first = true;
+		for (Object o : data.entrySet()){
+			Map.Entry e = (Map.Entry) o;
+			String key = String.valueOf(e.getKey());
+			if (key.equals("credentials") || key.equals("parameters")){
+				continue;
+			}
+			if (!first) sb.append(',');
+			first = false;
+			writeString(sb, key);
+			sb.append(':');
+			writeValue(sb, e.getValue());
+		}
+		sb.append('}');
+	}
+	//raw data can be forwarded unparsed if it can't contain sensitive fields (no escaped key can hide them)
+	private static boolean isSafeRawData(String rawData){
+		return !rawData.contains("credentials") && !rawData.contains("parameters") && !rawData.contains("\\u");
+	}
+
+	private static void writeField(StringBuilder sb, String key, String value, boolean isFirst){
+		if (!isFirst) sb.append(',');
+		sb.append('"').append(key).append("\":");
+		if (value == null){
+			sb.append("null");
+		}else{
+			writeString(sb, value);
+		}
+	}
+
+	/**
+	 * Write any JSON value the same way json-simple does (see JSONValue.toJSONString).
+	 */
+	@SuppressWarnings("rawtypes")
+	public static void writeValue(StringBuilder sb, Object value){
+		if (value == null){
+			sb.append("null");
+		}else if (value instanceof String){
+			writeString(sb, (String) value);
+		}else if (value instanceof Double){
+			Double d = (Double) value;
+			sb.append((d.isInfinite() || d.isNaN())? "null" : d.toString());
+		}else if (value instanceof Float){
+			Float f = (Float) value;
+			sb.append((f.isInfinite() || f.isNaN())? "null" : f.toString());
+		}else if (value instanceof Number || value instanceof Boolean){
+			sb.append(value.toString());
+		}else if (value instanceof Map){
+			sb.append('{');
+			Iterator it = ((Map) value).entrySet().iterator();
+			boolean first = true;
+			while (it.hasNext()){
+				Map.Entry e = (Map.Entry) it.next();
+				if (!first) sb.append(',');
+				first = false;
+				writeString(sb, String.valueOf(e.getKey()));
+				sb.append(':');
+				writeValue(sb, e.getValue());
+			}
+			sb.append('}');
+		}else if (value instanceof List){
+			sb.append('[');
+			boolean first = true;
+			for (Object o : (Collection) value){
+				if (!first) sb.append(',');
+				first = false;
+				writeValue(sb, o);
+			}
+			sb.append(']');
+		}else if (value instanceof JSONAware){
+			sb.append(((JSONAware) value).toJSONString());
+		}else{
+			sb.append(value.toString());
+		}
+	}
+
+	/**
+	 * Write quoted and escaped string the same way json-simple does (see JSONValue.escape).
+	 */
+	public static void writeString(StringBuilder sb, String s){
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++){
+			char ch = s.charAt(i);
+			switch (ch){
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\b': sb.append("\\b"); break;
+				case '\f': sb.append("\\f"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				case '/': sb.append("\\/"); break;
+				default:
+					if ((ch <= 0x1F) || (ch >= 0x7F && ch <= 0x9F) || (ch >= 0x2000 && ch <= 0x20FF)){
+						String hex = Integer.toHexString(ch);
+						sb.append("\\u");
+						for (int k = 0; k < 4 - hex.length(); k++){
+							sb.append('0');
+						}
+						sb.append(hex.toUpperCase());
+					}else{
+						sb.append(ch);
+					}
+			}
+		}
+		sb.append('"');
+	}
+}
@@ -147,7 +147,11 @@ public class SocketUser {
 		return activeChannelId;
 	}
 	public void setActiveChannel(String channelId){
-		activeChannelId = channelId;
+		synchronized (this){
+			String oldChannelId = activeChannelId;
+			activeChannelId = channelId;
+			SocketUserPool.updateActiveChannelIndex(this, oldChannelId, channelId);
+		}
 	}
 	public boolean isActiveInChannelOrOmnipresent(String channelId){
 		if (this.isOmnipresent() || (this.getActiveChannel().equals(channelId) && this.isActive())){
@@ -161,7 +165,10 @@ public class SocketUser {
 		return isOmnipresent;
 	}
 	public void setOmnipresent(){
-		this.isOmnipresent = true;
+		synchronized (this){
+			this.isOmnipresent = true;
+			SocketUserPool.updateOmnipresentIndex(this);
+		}
 	}
 	
 	public Role getUserRole(){
@@ -171,6 +178,9 @@ public class SocketUser {
 	public String getDeviceId(){
 		return deviceId;
 	}
+	/**
+	 * Set device ID. NOTE: do this before the user is stored in {@link SocketUserPool} (it is used as index there).
+	 */
 	public void setDeviceId(String deviceId){
 		this.deviceId = deviceId;
 	}
@@ -2,15 +2,19 @@ package net.b07z.sepia.websockets.common;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.stream.Collectors;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.jetty.websocket.api.Session;
 import org.json.simple.JSONObject;
 
 import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.websockets.server.SocketTimingWheel;
 
 /**
  * Manages the connected users.
@@ -23,27 +27,157 @@ public class SocketUserPool {
 	private static Map<Session, SocketUser> userPool = new ConcurrentHashMap<>();
 	private static Map<Session, JSONObject> pendingSession = new ConcurrentHashMap<>();
 	
+	//deadlines of pending sessions (sessions that don't authenticate in time are closed)
+	public static final int CLOSE_CODE_AUTH_TIMEOUT = 4408;
+	private static final long PENDING_SESSION_DISCONNECT_DELAY_MS = 5000;		//wait for close handshake before connection is dropped
+	private static Map<Session, SocketTimingWheel.Timeout> pendingSessionDeadlines = new ConcurrentHashMap<>();
+	private static volatile SocketTimingWheel pendingSessionTimer;
+	private static AtomicLong reapedPendingSessions = new AtomicLong(0);
+	private static AtomicLong disconnectedPendingSessions = new AtomicLong(0);
+	
+	//indices to find sessions without iterating the whole pool
+	private static Map<String, Set<SocketUser>> usersById = new ConcurrentHashMap<>();		//key: normalized user ID
+	private static Map<String, Map<String, SocketUser>> usersByIdAndDevice = new ConcurrentHashMap<>();	//keys: normalized user ID -> normalized device ID (last session wins)
+	private static Map<String, Set<SocketUser>> usersByActiveChannel = new ConcurrentHashMap<>();	//key: channel ID the user is currently in (active or not)
+	private static Set<SocketUser> omnipresentUsers = ConcurrentHashMap.newKeySet();				//users that are in all their channels at the same time
+	
+	//keys for indices (user IDs are compared ignoring case)
+	static String getIdKey(String userId){
+		return userId.toLowerCase(Locale.ROOT);
+	}
+	private static String getDeviceKey(String deviceId){
+		return ((deviceId != null)? deviceId.toLowerCase(Locale.ROOT) : "");
+	}
+	
+	//add/remove user to/from set of an index
+	private static void addToIndex(Map<String, Set<SocketUser>> index, String key, SocketUser user){
+		index.compute(key, (k, users) -> {
+			if (users == null){
+				users = ConcurrentHashMap.newKeySet();
+			}
+			users.add(user);
+			return users;
+		});
+	}
+	private static void removeFromIndex(Map<String, Set<SocketUser>> index, String key, SocketUser user){
+		index.computeIfPresent(key, (k, users) -> {
+			users.remove(user);
+			return (users.isEmpty()? null : users);
+		});
+	}
+	//is this exact user object in the pool?
+	private static boolean isStored(SocketUser user){
+		Session session = user.getUserSession();
+		return (session != null && userPool.get(session) == user);
+	}
+	
 	/**
 	 * Store authenticated user with session in user pool. 
 	 */
 	public static void storeUser(SocketUser user){
-		userPool.put(user.getUserSession(), user);
+		synchronized (user){
+			userPool.put(user.getUserSession(), user);
+			String userId = user.getUserId();
+			if (userId != null){
+				addToIndex(usersById, getIdKey(userId), user);
+				usersByIdAndDevice.compute(getIdKey(userId), (k, devices) -> {
+					if (devices == null){
+						devices = new ConcurrentHashMap<>();
+					}
+					devices.put(getDeviceKey(user.getDeviceId()), user);
+					return devices;
+				});
+			}
+			if (user.getActiveChannel() != null){
+				addToIndex(usersByActiveChannel, user.getActiveChannel(), user);
+			}
+			if (user.isOmnipresent()){
+				omnipresentUsers.add(user);
+			}
+		}
 		user.registerActivities();
 	}
 	/**
 	 * Remove user from user pool. 
 	 */
 	public static void removeUser(SocketUser user){
-		if (user != null){
-			user.closeAllActivities();
+		if (user == null){
+			return;
 		}
-		userPool.remove(user.getUserSession());
+		user.closeAllActivities();
+		synchronized (user){
+			userPool.remove(user.getUserSession());
+			String userId = user.getUserId();
+			if (userId != null){
+				removeFromIndex(usersById, getIdKey(userId), user);
+				usersByIdAndDevice.computeIfPresent(getIdKey(userId), (k, devices) -> {
+					devices.remove(getDeviceKey(user.getDeviceId()), user);
+					return (devices.isEmpty()? null : devices);
+				});
+			}
+			if (user.getActiveChannel() != null){
+				removeFromIndex(usersByActiveChannel, user.getActiveChannel(), user);
+			}
+			omnipresentUsers.remove(user);
+		}
+	}
+	
+	/**
+	 * Update channel index after user switched channel. Called by {@link SocketUser#setActiveChannel(String)} (synchronized on user).
+	 */
+	static void updateActiveChannelIndex(SocketUser user, String oldChannelId, String newChannelId){
+		if (!isStored(user)){
+			return;
+		}
+		if (oldChannelId != null){
+			removeFromIndex(usersByActiveChannel, oldChannelId, user);
+		}
+		if (newChannelId != null){
+			addToIndex(usersByActiveChannel, newChannelId, user);
+		}
+	}
+	/**
+	 * Update index after user became omnipresent. Called by {@link SocketUser#setOmnipresent()} (synchronized on user).
+	 */
+	static void updateOmnipresentIndex(SocketUser user){
+		if (isStored(user)){
+			omnipresentUsers.add(user);
+		}
+	}
+	
+	/**
+	 * Get all users that currently have this channel as active channel (including deactivated users, excluding omnipresent users of other channels).
+	 * NOTE: users are not checked for channel membership here.
+	 */
+	public static Collection<SocketUser> getUsersInChannel(String channelId){
+		Set<SocketUser> users = usersByActiveChannel.get(channelId);
+		if (users == null){
+			return Collections.emptySet();
+		}else{
+			return users;
+		}
+	}
+	/**
+	 * Get all users that are active in all their channels at the same time (e.g. assistants).
+	 */
+	public static Collection<SocketUser> getOmnipresentUsers(){
+		return omnipresentUsers;
 	}
+	
 	/**
 	 * Store non-authenticated user session in pending session pool. 
 	 */
 	public static void storePendingSession(Session session){
 		pendingSession.put(session, JSON.make("pendingSince", System.currentTimeMillis()));
+		if (SocketConfig.pendingSessionTimeoutMs > 0){
+			SocketTimingWheel.Timeout deadline = getPendingSessionTimer().schedule(
+					SocketConfig.pendingSessionTimeoutMs, () -> reapPendingSession(session)
+			);
+			SocketTimingWheel.Timeout old = pendingSessionDeadlines.put(session, deadline);
+			if (old != null){
+				old.cancel();
+			}
+		}
 	}
 	/**
 	 * Remove user session from pending session pool (because user was authenticated or left). 
@@ -51,7 +185,59 @@ public class SocketUserPool {
 	 */
 	public static void removePendingSession(Session session){
 		pendingSession.remove(session);
-		//TODO: we never clean this up ... I think
+		SocketTimingWheel.Timeout deadline = pendingSessionDeadlines.remove(session);
+		if (deadline != null){
+			deadline.cancel();
+		}
+	}
+	
+	//close session that did not authenticate in time (runs on timer thread)
+	private static void reapPendingSession(Session session){
+		pendingSessionDeadlines.remove(session);
+		if (pendingSession.remove(session) == null || userPool.containsKey(session)){
+			return;
+		}
+		reapedPendingSessions.incrementAndGet();
+		try{
+			session.close(CLOSE_CODE_AUTH_TIMEOUT, "Authentication timeout");
+		}catch (Exception e){
+			//ignore, we disconnect below
+		}
+		//half-open connections will never finish the close handshake
+		getPendingSessionTimer().schedule(PENDING_SESSION_DISCONNECT_DELAY_MS, () -> {
+			if (session.isOpen()){
+				disconnectedPendingSessions.incrementAndGet();
+				try{
+					session.disconnect();
+				}catch (Exception e){
+					//ignore
+				}
+			}
+		});
+	}
+	
+	private static SocketTimingWheel getPendingSessionTimer(){
+		if (pendingSessionTimer == null){
+			synchronized (SocketUserPool.class){
+				if (pendingSessionTimer == null){
+					pendingSessionTimer = new SocketTimingWheel("pending-session-timer", 500, 128);
+				}
+			}
+		}
+		return pendingSessionTimer;
+	}
+	
+	/**
+	 * Number of pending sessions that were closed because they did not authenticate in time.
+	 */
+	public static long getReapedPendingSessions(){
+		return reapedPendingSessions.get();
+	}
+	/**
+	 * Number of reaped sessions that did not finish the close handshake and were disconnected.
+	 */
+	public static long getDisconnectedPendingSessions(){
+		return disconnectedPendingSessions.get();
 	}
 	
 	/**
@@ -78,22 +264,28 @@ public class SocketUserPool {
 		}
 	}
 	/**
-	 * Get all users by id with open session or null if no user with this id is present in pool.
+	 * Get all users by id with open session (list can be empty).
 	 */
 	public static List<SocketUser> getAllUsersById(String id){
-		try{
-			return userPool.entrySet().stream()
-				.filter(e -> {
-					//SocketUser su = e.getValue();
-					//return (su.getUserSession().isOpen() && su.getUserId().equalsIgnoreCase(id));
-					return (e.getValue().getUserId().equalsIgnoreCase(id));
-				})
-				.map(Map.Entry::getValue)
-				.collect(Collectors.toList());
-
-		}catch (Exception e){
+		if (id == null){
+			return new ArrayList<>();
+		}
+		Set<SocketUser> users = usersById.get(getIdKey(id));
+		if (users == null){
+			return new ArrayList<>();
+		}else{
+			return new ArrayList<>(users);
+		}
+	}
+	/**
+	 * Get the (last stored) user with given user ID and device ID or null.
+	 */
+	public static SocketUser getUserByIdAndDevice(String id, String deviceId){
+		if (id == null){
 			return null;
 		}
+		Map<String, SocketUser> devices = usersByIdAndDevice.get(getIdKey(id));
+		return ((devices != null)? devices.get(getDeviceKey(deviceId)) : null);
 	}
 	/**
 	 * Deactivated all users that are identical (same user ID, same device ID, same channel ID).
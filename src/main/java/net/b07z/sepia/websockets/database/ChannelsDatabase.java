@@ -24,6 +24,13 @@ public interface ChannelsDatabase {
 	 */
 	public int storeChannel(SocketChannel socketChannel);
 	
+	/**
+	 * Store many {@link SocketChannel}s in database at once.
+	 * @param socketChannels - channels to store
+	 * @return result code for each channel (same order): 0) all good 1) connection error 2) unknown error
+	 */
+	public int[] storeChannels(List<SocketChannel> socketChannels);
+	
 	/**
 	 * Update previously stored {@link SocketChannel}.
 	 * @param channelId - ID of channel to update 
@@ -32,6 +39,13 @@ public interface ChannelsDatabase {
 	 */
 	public int updateChannel(String channelId, JSONObject updateData);
 	
+	/**
+	 * Update many previously stored {@link SocketChannel}s at once.
+	 * @param updateDataByChannelId - map with channel ID as key and new/changed (partial) channel data as value
+	 * @return result code for each channel ID: 0) all good 1) connection error 2) unknown error
+	 */
+	public Map<String, Integer> updateChannels(Map<String, JSONObject> updateDataByChannelId);
+	
 	/**
 	 * Remove channel from database.
 	 * @param channelId - ID of channel to be removed
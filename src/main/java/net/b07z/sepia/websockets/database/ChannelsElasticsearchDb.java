@@ -1,6 +1,7 @@
 package net.b07z.sepia.websockets.database;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -78,12 +79,40 @@ public class ChannelsElasticsearchDb implements ChannelsDatabase {
 		}
 	}
 	
+	@Override
+	public int[] storeChannels(List<SocketChannel> socketChannels){
+		ElasticsearchBulk bulk = new ElasticsearchBulk(this.esServerUrl);
+		for (SocketChannel sc : socketChannels){
+			bulk.index(SocketConfig.DB_CHAT_CHANNELS, ES_CHANNELS_TYPE, sc.getChannelId(), sc.getJson());
+		}
+		return bulk.execute();
+	}
+	
 	@Override
 	public int updateChannel(String channelId, JSONObject updateData){
 		//NOTE: channelId is ES ID as well
 		return this.es.updateItemData(SocketConfig.DB_CHAT_CHANNELS, ES_CHANNELS_TYPE, channelId, updateData);
 	}
 	
+	@Override
+	public Map<String, Integer> updateChannels(Map<String, JSONObject> updateDataByChannelId){
+		Map<String, Integer> codes = new HashMap<>();
+		if (updateDataByChannelId.isEmpty()){
+			return codes;
+		}
+		List<String> channelIds = new ArrayList<>(updateDataByChannelId.keySet());
+		ElasticsearchBulk bulk = new ElasticsearchBulk(this.esServerUrl);
+		for (String channelId : channelIds){
+			//NOTE: channelId is ES ID as well
+			bulk.update(SocketConfig.DB_CHAT_CHANNELS, ES_CHANNELS_TYPE, channelId, updateDataByChannelId.get(channelId), false);
+		}
+		int[] res = bulk.execute();
+		for (int i=0; i<res.length; i++){
+			codes.put(channelIds.get(i), res[i]);
+		}
+		return codes;
+	}
+	
 	@Override
 	public Map<String, SocketChannel> getAllChannles(boolean includeOtherServers){
 		Map<String, SocketChannel> allChannelsById = new ConcurrentHashMap<>();
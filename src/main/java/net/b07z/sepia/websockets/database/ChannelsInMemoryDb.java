@@ -1,6 +1,7 @@
 package net.b07z.sepia.websockets.database;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -33,11 +34,25 @@ public class ChannelsInMemoryDb implements ChannelsDatabase {
 		return 0;
 	}
 	
+	@Override
+	public int[] storeChannels(List<SocketChannel> socketChannels){
+		return new int[socketChannels.size()];		//NOTE: all 0
+	}
+	
 	@Override
 	public int updateChannel(String channelId, JSONObject updateData){
 		return 0;
 	}
 	
+	@Override
+	public Map<String, Integer> updateChannels(Map<String, JSONObject> updateDataByChannelId){
+		Map<String, Integer> codes = new HashMap<>();
+		for (String channelId : updateDataByChannelId.keySet()){
+			codes.put(channelId, 0);
+		}
+		return codes;
+	}
+	
 	@Override
 	public Map<String, SocketChannel> getAllChannles(boolean includeOtherServers){
 		return new ConcurrentHashMap<>(); 		//NOTE: return empty Map
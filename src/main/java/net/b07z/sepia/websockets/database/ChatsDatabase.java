@@ -1,6 +1,7 @@
 package net.b07z.sepia.websockets.database;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.json.simple.JSONObject;
@@ -24,6 +25,14 @@ public interface ChatsDatabase {
 	 */
 	public int updateChannelsWithMissedMessagesForUser(String userId, Set<String> channelIds, boolean userReceivedNote);
 	
+	/**
+	 * Update/create (overwrite) sets with channels that should be checked for messages for many users at once.
+	 * @param channelIdsByUser - map with user ID as key and set of channel IDs as value
+	 * @param userReceivedNote - see {@link #updateChannelsWithMissedMessagesForUser(String, Set, boolean)}
+	 * @return result code for each user ID: 0) all good 1) connection error 2) unknown error
+	 */
+	public Map<String, Integer> updateChannelsWithMissedMessagesForUsers(Map<String, Set<String>> channelIdsByUser, boolean userReceivedNote);
+	
 	/**
 	 * Return all channels that should be checked by user for missed messages.
 	 * @param userId - user might have missed a message
@@ -38,6 +47,13 @@ public interface ChatsDatabase {
 	 */
 	public int storeChannelMessage(JSONObject msg);
 	
+	/**
+	 * Store many "safe" socket messages as JSON in DB at once.
+	 * @param msgs - list of {@link SocketMessage}s in JSON format, prepared to be stored (see {@link #storeChannelMessage(JSONObject)})
+	 * @return result code for each message (same order): 0) all good 1) connection error 2) unknown error
+	 */
+	public int[] storeChannelMessages(List<JSONObject> msgs);
+	
 	/**
 	 * Get all stored messages of a channel optionally with range filter.
 	 * @param channelId - ID of channel
@@ -2,7 +2,9 @@ package net.b07z.sepia.websockets.database;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -48,6 +50,30 @@ public class ChatsElasticsearchDb implements ChatsDatabase {
 	@Override
 	public int updateChannelsWithMissedMessagesForUser(String userId, Set<String> channelIds, boolean userReceivedNote){
 		//NOTE: userId is ES ID as well
+		JSONObject updateData = makeMissedMessagesUpdateData(userId, channelIds, userReceivedNote);
+		return this.es.updateItemData(SocketConfig.DB_CHAT_USERS, ES_CHAT_COMMON_TYPE, userId, updateData);
+	}
+	
+	@Override
+	public Map<String, Integer> updateChannelsWithMissedMessagesForUsers(Map<String, Set<String>> channelIdsByUser, boolean userReceivedNote){
+		Map<String, Integer> codes = new HashMap<>();
+		if (channelIdsByUser.isEmpty()){
+			return codes;
+		}
+		List<String> userIds = new ArrayList<>(channelIdsByUser.keySet());
+		ElasticsearchBulk bulk = new ElasticsearchBulk(this.esServerUrl);
+		for (String userId : userIds){
+			JSONObject updateData = makeMissedMessagesUpdateData(userId, channelIdsByUser.get(userId), userReceivedNote);
+			bulk.update(SocketConfig.DB_CHAT_USERS, ES_CHAT_COMMON_TYPE, userId, updateData, true);
+		}
+		int[] res = bulk.execute();
+		for (int i=0; i<res.length; i++){
+			codes.put(userIds.get(i), res[i]);
+		}
+		return codes;
+	}
+	
+	private static JSONObject makeMissedMessagesUpdateData(String userId, Set<String> channelIds, boolean userReceivedNote){
 		JSONObject updateData = JSON.make(
 				"userId", userId
 		);
@@ -61,7 +87,7 @@ public class ChatsElasticsearchDb implements ChatsDatabase {
 			JSON.add(cC, s);
 		});
 		JSON.put(updateData, "checkChannels", cC);
-		return this.es.updateItemData(SocketConfig.DB_CHAT_USERS, ES_CHAT_COMMON_TYPE, userId, updateData);
+		return updateData;
 	}
 
 	@Override
@@ -115,6 +141,15 @@ public class ChatsElasticsearchDb implements ChatsDatabase {
 			return 2;
 		}
 	}
+	
+	@Override
+	public int[] storeChannelMessages(List<JSONObject> msgs){
+		ElasticsearchBulk bulk = new ElasticsearchBulk(this.esServerUrl);
+		for (JSONObject msg : msgs){
+			bulk.index(SocketConfig.DB_CHAT_MESSAGES, ES_CHAT_COMMON_TYPE, null, msg);
+		}
+		return bulk.execute();
+	}
 
 	@Override
 	public int removeOldChannelMessages(String channelId, long olderThanUnix){
@@ -1,7 +1,9 @@
 package net.b07z.sepia.websockets.database;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.json.simple.JSONObject;
@@ -28,11 +30,25 @@ public class ChatsInMemoryDb implements ChatsDatabase {
 	public JSONObject getAllChannelsWithMissedMassegesForUser(String userId){
 		return new JSONObject();
 	}
+	
+	@Override
+	public Map<String, Integer> updateChannelsWithMissedMessagesForUsers(Map<String, Set<String>> channelIdsByUser, boolean userReceivedNote){
+		Map<String, Integer> codes = new HashMap<>();
+		for (String userId : channelIdsByUser.keySet()){
+			codes.put(userId, 0);
+		}
+		return codes;
+	}
 
 	@Override
 	public int storeChannelMessage(JSONObject msg){
 		return 0;
 	}
+	
+	@Override
+	public int[] storeChannelMessages(List<JSONObject> msgs){
+		return new int[msgs.size()];		//NOTE: all 0
+	}
 
 	@Override
 	public int removeOldChannelMessages(String channelId, long olderThanUnix){
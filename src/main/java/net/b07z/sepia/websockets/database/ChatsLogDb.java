@@ -0,0 +1,658 @@
+package net.b07z.sepia.websockets.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.websockets.common.SocketConfig;
+import net.b07z.sepia.websockets.common.SocketMessage;
+
+/**
+ * {@link ChatsDatabase} that stores channel messages and missed-message data of users in local append-only segment files.
+ * Made for single-node installations that want a persistent channel history without Elasticsearch.<br>
+ * <br>
+ * All records are appended to the active segment, a new segment is started when it reaches {@link SocketConfig#chatsLogDbSegmentBytes}.
+ * An index in memory points to the messages of each channel, messages are read from memory-mapped segments.
+ * Removed or outdated records are dropped when a segment is compacted (live records are copied to the active segment).<br>
+ * Replay does not depend on record order: message records have a unique ID, the newest user record wins (highest ID)
+ * and removal records apply to all messages of a channel older than a timestamp.
+ * <br>
+ * Record format: [int length][int CRC32][byte type][long record ID][JSON payload (UTF-8)], length and CRC cover type, ID and payload.
+ * <br>
+ * NOTE: All instances share the same data (the module is created for each call).
+ *
+ * @author Florian Quirin
+ *
+ */
+public class ChatsLogDb implements ChatsDatabase {
+
+	private static final Logger log = LoggerFactory.getLogger(ChatsLogDb.class);
+
+	private static final String SEGMENT_PREFIX = "chats-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int HEADER_BYTES = 4 + 4;			//length + CRC
+	private static final int RECORD_META_BYTES = 1 + 8;		//type + ID
+	private static final byte TYPE_MESSAGE = 'M';
+	private static final byte TYPE_USER = 'U';
+	private static final byte TYPE_REMOVE = 'R';
+	private static final double COMPACT_BELOW_LIVE_RATIO = 0.5;
+	private static final long MAX_SEGMENT_BYTES = 1024 * 1024 * 1024;	//leaves room for the last record before Integer.MAX_VALUE
+
+	private static volatile Store store;
+
+	private final Store db;
+
+	public ChatsLogDb(){
+		Store s = store;
+		if (s == null){
+			synchronized (ChatsLogDb.class){
+				s = store;
+				if (s == null){
+					s = new Store(new File(SocketConfig.chatsLogDbFolder), SocketConfig.chatsLogDbSegmentBytes);
+					store = s;
+				}
+			}
+		}
+		this.db = s;
+	}
+
+	/**
+	 * Close files of the shared store (next instance will open them again).
+	 */
+	public static synchronized void closeStore(){
+		if (store != null){
+			store.close();
+			store = null;
+		}
+	}
+
+	//--- user data ---
+
+	@Override
+	public int updateChannelsWithMissedMessagesForUser(String userId, Set<String> channelIds, boolean userReceivedNote){
+		try{
+			db.updateUser(userId, channelIds, userReceivedNote);
+			db.sync();
+			return 0;
+		}catch (Exception e){
+			log.error("updateChannelsWithMissedMessagesForUser - failed with error: " + e.getMessage());
+			return 2;
+		}
+	}
+
+	@Override
+	public Map<String, Integer> updateChannelsWithMissedMessagesForUsers(Map<String, Set<String>> channelIdsByUser, boolean userReceivedNote){
+		Map<String, Integer> codes = new HashMap<>();
+		for (Map.Entry<String, Set<String>> e : channelIdsByUser.entrySet()){
+			try{
+				db.updateUser(e.getKey(), e.getValue(), userReceivedNote);
+				codes.put(e.getKey(), 0);
+			}catch (Exception ex){
+				log.error("updateChannelsWithMissedMessagesForUsers - failed for user '" + e.getKey() + "' with error: " + ex.getMessage());
+				codes.put(e.getKey(), 2);
+			}
+		}
+		try{
+			db.sync();
+		}catch (Exception e){
+			log.error("updateChannelsWithMissedMessagesForUsers - failed to sync with error: " + e.getMessage());
+			codes.replaceAll((k, v) -> 2);
+		}
+		return codes;
+	}
+
+	@Override
+	public JSONObject getAllChannelsWithMissedMassegesForUser(String userId){
+		JSONObject userData = db.getUser(userId);
+		if (userData == null){
+			return new JSONObject();
+		}
+		return JSON.make(
+			"checkChannels", userData.get("checkChannels"),
+			"lastMissedMessage", userData.get("lastMissedMessage"),
+			"lastMissNoteReceived", userData.get("lastMissNoteReceived")
+		);
+	}
+
+	//--- messages ---
+
+	@Override
+	public int storeChannelMessage(JSONObject msg){
+		try{
+			db.addMessage(msg);
+			db.sync();
+			return 0;
+		}catch (Exception e){
+			log.error("storeChannelMessage - failed with error: " + e.getMessage());
+			return 2;
+		}
+	}
+
+	@Override
+	public int[] storeChannelMessages(List<JSONObject> msgs){
+		int[] codes = new int[msgs.size()];
+		for (int i=0; i<msgs.size(); i++){
+			try{
+				db.addMessage(msgs.get(i));
+			}catch (Exception e){
+				log.error("storeChannelMessages - failed with error: " + e.getMessage());
+				codes[i] = 2;
+			}
+		}
+		try{
+			db.sync();
+		}catch (Exception e){
+			log.error("storeChannelMessages - failed to sync with error: " + e.getMessage());
+			for (int i=0; i<codes.length; i++){
+				codes[i] = 2;
+			}
+		}
+		return codes;
+	}
+
+	@Override
+	public int removeOldChannelMessages(String channelId, long olderThanUnix){
+		try{
+			int removed = db.removeMessages(channelId, olderThanUnix);
+			db.sync();
+			db.compactIfRequired();
+			return removed;
+		}catch (Exception e){
+			log.error("removeOldChannelMessages - failed with error: " + e.getMessage());
+			return -1;
+		}
+	}
+
+	@Override
+	public List<SocketMessage> getAllMessagesOfChannel(String channelId, long notOlderThanUNIX){
+		try{
+			List<SocketMessage> allMessages = new ArrayList<>();
+			for (JSONObject msgJson : db.getMessages(channelId, notOlderThanUNIX)){
+				allMessages.add(SocketMessage.importJSON(msgJson));
+			}
+			return allMessages;
+		}catch (Exception e){
+			log.error("getAllMessagesOfChannel - Failed to load messages with error: " + e);
+			return null;
+		}
+	}
+
+	//------------------------- store --------------------------
+
+	//position of a record in a segment
+	private static class RecordRef {
+		final long recordId;
+		final long timeUNIX;
+		final Segment segment;
+		final long offset;		//start of record (header)
+		final int length;		//complete record incl. header
+		RecordRef(long recordId, long timeUNIX, Segment segment, long offset, int length){
+			this.recordId = recordId;
+			this.timeUNIX = timeUNIX;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private static class UserEntry {
+		final JSONObject data;
+		final RecordRef ref;
+		UserEntry(JSONObject data, RecordRef ref){
+			this.data = data;
+			this.ref = ref;
+		}
+	}
+
+	private static class RemoveEntry {
+		final long olderThan;
+		final RecordRef ref;
+		RemoveEntry(long olderThan, RecordRef ref){
+			this.olderThan = olderThan;
+			this.ref = ref;
+		}
+	}
+
+	private static class Segment {
+		final long id;
+		final File file;
+		final FileChannel channel;
+		long size;
+		long liveBytes = 0;
+		boolean isSealed = false;	//no more appends, can be memory-mapped
+		MappedByteBuffer map;		//read-only view of a sealed segment
+
+		Segment(long id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.size = channel.size();
+		}
+
+		ByteBuffer read(long offset, int length) throws IOException {
+			if (isSealed){
+				//sealed segments don't grow, map them once
+				if (map == null){
+					map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				}
+				ByteBuffer buf = map.duplicate();
+				buf.position((int) offset);
+				buf.limit((int) (offset + length));
+				return buf.slice();
+			}else{
+				//active segment grows with each append, read it directly instead of mapping it again
+				return readDirect(offset, length);
+			}
+		}
+
+		ByteBuffer readDirect(long offset, int length) throws IOException {
+			ByteBuffer buf = ByteBuffer.allocate(length);
+			while (buf.hasRemaining()){
+				if (channel.read(buf, offset + buf.position()) < 0){
+					throw new IOException("Unexpected end of segment " + file.getName() + " at " + (offset + buf.position()));
+				}
+			}
+			buf.flip();
+			return buf;
+		}
+
+		void close(){
+			try{
+				unmap();
+				channel.close();
+			}catch (IOException e){
+				log.error("Failed to close segment " + file.getName() + ": " + e.getMessage());
+			}
+		}
+
+		//release the mapping right away (else the file stays mapped until GC and cannot be deleted on Windows).
+		//NOTE: only safe because buffers never leave the synchronized store methods
+		private void unmap(){
+			if (map == null){
+				return;
+			}
+			MappedByteBuffer m = map;
+			map = null;
+			try{
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Field f = unsafeClass.getDeclaredField("theUnsafe");
+				f.setAccessible(true);
+				unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(f.get(null), m);
+			}catch (Exception e){
+				log.debug("ChatsLogDb - could not unmap segment " + file.getName() + " (will be released by GC): " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Segment files and index. All methods are synchronized (writes are appends to one file anyway).
+	 */
+	private static class Store {
+		private final File folder;
+		private final long maxSegmentBytes;
+		private final TreeMap<Long, Segment> segments = new TreeMap<>();
+		private Segment active;
+		private long nextRecordId = 1;
+		private boolean isDirty = false;
+
+		private final Map<String, List<RecordRef>> messagesByChannel = new HashMap<>();
+		private final Map<String, UserEntry> users = new HashMap<>();
+		private final Map<String, RemoveEntry> removedBefore = new HashMap<>();
+
+		Store(File folder, long maxSegmentBytes){
+			this.folder = folder;
+			//offsets in mapped segments are int
+			this.maxSegmentBytes = Math.min(MAX_SEGMENT_BYTES, Math.max(64 * 1024, maxSegmentBytes));
+			try{
+				open();
+			}catch (IOException e){
+				throw new RuntimeException("ChatsLogDb - failed to open folder '" + folder + "': " + e.getMessage(), e);
+			}
+		}
+
+		//--- load ---
+
+		private synchronized void open() throws IOException {
+			if (!folder.exists() && !folder.mkdirs()){
+				throw new IOException("Cannot create folder");
+			}
+			File[] files = folder.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+			if (files != null){
+				for (File f : files){
+					String idStr = f.getName().substring(SEGMENT_PREFIX.length(), f.getName().length() - SEGMENT_SUFFIX.length());
+					try{
+						long id = Long.parseLong(idStr);
+						segments.put(id, new Segment(id, f));
+					}catch (NumberFormatException e){
+						log.error("ChatsLogDb - ignoring unknown file: " + f.getName());
+					}
+				}
+			}
+			Set<Long> seenMessages = new HashSet<>();
+			int records = 0;
+			for (Segment seg : segments.values()){
+				boolean isLast = (seg == segments.lastEntry().getValue());
+				records += replaySegment(seg, isLast, seenMessages);
+				seg.isSealed = !isLast;
+			}
+			//apply removals to messages of all segments
+			for (Map.Entry<String, RemoveEntry> e : removedBefore.entrySet()){
+				removeFromIndex(e.getKey(), e.getValue().olderThan);
+			}
+			if (segments.isEmpty()){
+				startNewSegment();
+			}else{
+				active = segments.lastEntry().getValue();
+			}
+			log.info("ChatsLogDb - loaded " + records + " records from " + segments.size() + " segments in: " + folder.getAbsolutePath());
+		}
+
+		//read all records of a segment into the index, broken tail of last segment is cut off
+		private int replaySegment(Segment seg, boolean isLast, Set<Long> seenMessages) throws IOException {
+			//read with the file channel (not mapped), a broken tail can be truncated then
+			int n = 0;
+			long pos = 0;
+			while (pos < seg.size){
+				if (seg.size - pos < HEADER_BYTES + RECORD_META_BYTES){
+					break;
+				}
+				ByteBuffer header = seg.readDirect(pos, HEADER_BYTES);
+				int len = header.getInt();
+				int crc = header.getInt();
+				if (len < RECORD_META_BYTES || pos + HEADER_BYTES + len > seg.size){
+					break;
+				}
+				byte[] body = seg.readDirect(pos + HEADER_BYTES, len).array();
+				CRC32 c = new CRC32();
+				c.update(body);
+				if ((int) c.getValue() != crc){
+					break;
+				}
+				byte type = body[0];
+				long recordId = ByteBuffer.wrap(body, 1, 8).getLong();
+				JSONObject payload = parsePayload(body, RECORD_META_BYTES, len - RECORD_META_BYTES);
+				nextRecordId = Math.max(nextRecordId, recordId + 1);
+				int recLen = HEADER_BYTES + len;
+				if (type == TYPE_MESSAGE){
+					if (seenMessages.add(recordId)){		//copies can exist after an interrupted compaction
+						indexMessage(payload, new RecordRef(recordId, JSON.getLongOrDefault(payload, "timeUNIX", 0), seg, pos, recLen));
+					}
+				}else if (type == TYPE_USER){
+					UserEntry old = users.get(JSON.getString(payload, "userId"));
+					if (old == null || old.ref.recordId < recordId){
+						indexUser(payload, new RecordRef(recordId, 0, seg, pos, recLen));
+					}
+				}else if (type == TYPE_REMOVE){
+					RemoveEntry old = removedBefore.get(JSON.getString(payload, "channelId"));
+					long olderThan = JSON.getLongOrDefault(payload, "olderThan", 0);
+					if (old == null || old.olderThan < olderThan){
+						indexRemove(JSON.getString(payload, "channelId"), olderThan, new RecordRef(recordId, 0, seg, pos, recLen));
+					}
+				}
+				pos += recLen;
+				n++;
+			}
+			if (pos < seg.size){
+				if (isLast){
+					log.error("ChatsLogDb - cutting off broken end of segment " + seg.file.getName() + " at " + pos + " of " + seg.size + " bytes");
+					seg.channel.truncate(pos);
+					seg.size = pos;
+				}else{
+					log.error("ChatsLogDb - broken record in segment " + seg.file.getName() + " at " + pos + ", rest of segment is ignored");
+				}
+			}
+			return n;
+		}
+
+		private static JSONObject parsePayload(byte[] bytes, int offset, int length) throws IOException {
+			try{
+				return JSON.parseStringOrFail(new String(bytes, offset, length, StandardCharsets.UTF_8));
+			}catch (Exception e){
+				throw new IOException("Invalid record payload: " + e.getMessage());
+			}
+		}
+
+		//--- index ---
+
+		private void indexMessage(JSONObject msg, RecordRef ref){
+			String channelId = JSON.getString(msg, "channelId");
+			messagesByChannel.computeIfAbsent(channelId, k -> new ArrayList<>()).add(ref);
+			ref.segment.liveBytes += ref.length;
+		}
+		private void indexUser(JSONObject data, RecordRef ref){
+			UserEntry old = users.put(JSON.getString(data, "userId"), new UserEntry(data, ref));
+			if (old != null){
+				old.ref.segment.liveBytes -= old.ref.length;
+			}
+			ref.segment.liveBytes += ref.length;
+		}
+		private void indexRemove(String channelId, long olderThan, RecordRef ref){
+			RemoveEntry old = removedBefore.put(channelId, new RemoveEntry(olderThan, ref));
+			if (old != null){
+				old.ref.segment.liveBytes -= old.ref.length;
+			}
+			ref.segment.liveBytes += ref.length;
+		}
+		private int removeFromIndex(String channelId, long olderThan){
+			List<RecordRef> refs = messagesByChannel.get(channelId);
+			if (refs == null){
+				return 0;
+			}
+			int removed = 0;
+			Iterator<RecordRef> it = refs.iterator();
+			while (it.hasNext()){
+				RecordRef ref = it.next();
+				if (ref.timeUNIX < olderThan){
+					it.remove();
+					ref.segment.liveBytes -= ref.length;
+					removed++;
+				}
+			}
+			if (refs.isEmpty()){
+				messagesByChannel.remove(channelId);
+			}
+			return removed;
+		}
+
+		//--- write ---
+
+		private void startNewSegment() throws IOException {
+			long id = segments.isEmpty()? 1 : (segments.lastKey() + 1);
+			File f = new File(folder, SEGMENT_PREFIX + String.format("%010d", id) + SEGMENT_SUFFIX);
+			Segment seg = new Segment(id, f);
+			segments.put(id, seg);
+			active = seg;
+		}
+
+		//append record to active segment
+		private RecordRef append(byte type, long recordId, long timeUNIX, JSONObject payload) throws IOException {
+			if (active.size >= maxSegmentBytes){
+				active.channel.force(false);
+				active.isSealed = true;
+				startNewSegment();
+			}
+			byte[] json = payload.toJSONString().getBytes(StandardCharsets.UTF_8);
+			int len = RECORD_META_BYTES + json.length;
+			ByteBuffer body = ByteBuffer.allocate(len);
+			body.put(type);
+			body.putLong(recordId);
+			body.put(json);
+			CRC32 c = new CRC32();
+			c.update(body.array());
+			ByteBuffer rec = ByteBuffer.allocate(HEADER_BYTES + len);
+			rec.putInt(len);
+			rec.putInt((int) c.getValue());
+			rec.put(body.array());
+			rec.flip();
+			long offset = active.size;
+			while (rec.hasRemaining()){
+				active.channel.write(rec, active.size + rec.position());
+			}
+			active.size += HEADER_BYTES + len;
+			isDirty = true;
+			return new RecordRef(recordId, timeUNIX, active, offset, HEADER_BYTES + len);
+		}
+
+		synchronized void addMessage(JSONObject msg) throws IOException {
+			String channelId = JSON.getString(msg, "channelId");
+			if (channelId == null){
+				throw new IOException("Message has no channelId");
+			}
+			long timeUNIX = JSON.getLongOrDefault(msg, "timeUNIX", System.currentTimeMillis());
+			RecordRef ref = append(TYPE_MESSAGE, nextRecordId++, timeUNIX, msg);
+			indexMessage(msg, ref);
+		}
+
+		synchronized void updateUser(String userId, Set<String> channelIds, boolean userReceivedNote) throws IOException {
+			//same fields as Elasticsearch 'update' (partial data is merged with existing data)
+			UserEntry old = users.get(userId);
+			JSONObject data = (old != null)? new JSONObject(old.data) : new JSONObject();
+			JSON.put(data, "userId", userId);
+			if (userReceivedNote){
+				JSON.put(data, "lastMissNoteReceived", System.currentTimeMillis());
+			}else{
+				JSON.put(data, "lastMissedMessage", System.currentTimeMillis());
+			}
+			JSONArray cC = new JSONArray();
+			for (String s : channelIds){
+				JSON.add(cC, s);
+			}
+			JSON.put(data, "checkChannels", cC);
+			RecordRef ref = append(TYPE_USER, nextRecordId++, 0, data);
+			indexUser(data, ref);
+		}
+
+		synchronized JSONObject getUser(String userId){
+			UserEntry ue = users.get(userId);
+			return (ue != null)? ue.data : null;
+		}
+
+		synchronized int removeMessages(String channelId, long olderThan) throws IOException {
+			RemoveEntry old = removedBefore.get(channelId);
+			if (old != null && old.olderThan >= olderThan){
+				//covered by existing record already (e.g. late messages with old timestamp)
+				return removeFromIndex(channelId, olderThan);
+			}
+			RecordRef ref = append(TYPE_REMOVE, nextRecordId++, 0, JSON.make("channelId", channelId, "olderThan", olderThan));
+			indexRemove(channelId, olderThan, ref);
+			return removeFromIndex(channelId, olderThan);
+		}
+
+		synchronized void sync() throws IOException {
+			if (isDirty){
+				active.channel.force(false);
+				isDirty = false;
+			}
+		}
+
+		//--- read ---
+
+		synchronized List<JSONObject> getMessages(String channelId, long notOlderThan) throws IOException {
+			List<JSONObject> msgs = new ArrayList<>();
+			List<RecordRef> refs = messagesByChannel.get(channelId);
+			if (refs == null){
+				return msgs;
+			}
+			for (RecordRef ref : refs){
+				if (ref.timeUNIX >= notOlderThan){
+					msgs.add(readPayload(ref));
+				}
+			}
+			return msgs;
+		}
+
+		private JSONObject readPayload(RecordRef ref) throws IOException {
+			ByteBuffer buf = ref.segment.read(ref.offset + HEADER_BYTES + RECORD_META_BYTES, ref.length - HEADER_BYTES - RECORD_META_BYTES);
+			byte[] bytes = new byte[buf.remaining()];
+			buf.get(bytes);
+			return parsePayload(bytes, 0, bytes.length);
+		}
+
+		//--- compaction ---
+
+		/**
+		 * Compact all sealed segments with too little live data: copy live records to the active segment and delete the segment.
+		 */
+		synchronized void compactIfRequired() throws IOException {
+			List<Segment> candidates = new ArrayList<>();
+			for (Segment seg : segments.values()){
+				if (seg != active && seg.liveBytes < seg.size * COMPACT_BELOW_LIVE_RATIO){
+					candidates.add(seg);
+				}
+			}
+			for (Segment seg : candidates){
+				compact(seg);
+			}
+		}
+
+		private void compact(Segment seg) throws IOException {
+			long liveBefore = seg.liveBytes;
+			long sizeBefore = seg.size;
+			//copy live messages (same record ID)
+			for (List<RecordRef> refs : messagesByChannel.values()){
+				for (int i=0; i<refs.size(); i++){
+					RecordRef ref = refs.get(i);
+					if (ref.segment == seg){
+						RecordRef copy = append(TYPE_MESSAGE, ref.recordId, ref.timeUNIX, readPayload(ref));
+						copy.segment.liveBytes += copy.length;
+						refs.set(i, copy);
+					}
+				}
+			}
+			//copy live user data and removal markers
+			for (Map.Entry<String, UserEntry> e : users.entrySet()){
+				UserEntry ue = e.getValue();
+				if (ue.ref.segment == seg){
+					RecordRef copy = append(TYPE_USER, ue.ref.recordId, 0, ue.data);
+					copy.segment.liveBytes += copy.length;
+					e.setValue(new UserEntry(ue.data, copy));
+				}
+			}
+			for (Map.Entry<String, RemoveEntry> e : removedBefore.entrySet()){
+				RemoveEntry re = e.getValue();
+				if (re.ref.segment == seg){
+					RecordRef copy = append(TYPE_REMOVE, re.ref.recordId, 0, JSON.make("channelId", e.getKey(), "olderThan", re.olderThan));
+					copy.segment.liveBytes += copy.length;
+					e.setValue(new RemoveEntry(re.olderThan, copy));
+				}
+			}
+			//make copies durable before the old segment is deleted
+			sync();
+			segments.remove(seg.id);
+			seg.close();
+			if (!seg.file.delete()){
+				//live records are copied already, a leftover segment only holds duplicates (ignored by replay)
+				log.error("ChatsLogDb - failed to delete compacted segment: " + seg.file.getName());
+				seg.file.deleteOnExit();
+			}
+			log.info("ChatsLogDb - compacted segment " + seg.file.getName() + ": " + liveBefore + " of " + sizeBefore + " bytes were live");
+		}
+
+		synchronized void close(){
+			for (Segment seg : segments.values()){
+				seg.close();
+			}
+			segments.clear();
+		}
+	}
+}
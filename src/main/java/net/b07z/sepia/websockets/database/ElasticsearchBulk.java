@@ -0,0 +1,195 @@
+package net.b07z.sepia.websockets.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.tools.Is;
+import net.b07z.sepia.server.core.tools.JSON;
+
+/**
+ * Collects index and update actions and sends them with one request to the Elasticsearch '_bulk' API.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class ElasticsearchBulk {
+
+	private static final Logger log = LoggerFactory.getLogger(ElasticsearchBulk.class);
+
+	public static int connectTimeoutMs = 5000;
+	public static int readTimeoutMs = 30000;
+
+	private final String esServerUrl;
+	private final String authType;
+	private final String authData;
+	private final StringBuilder body = new StringBuilder();
+	private int actions = 0;
+
+	/**
+	 * New bulk request for server with auth. data of {@link ConfigElasticSearch}.
+	 * @param serverUrl - Elasticsearch endpoint
+	 */
+	public ElasticsearchBulk(String serverUrl){
+		this(serverUrl, ConfigElasticSearch.getAuthType(), ConfigElasticSearch.getAuthData());
+	}
+	/**
+	 * New bulk request.
+	 * @param serverUrl - Elasticsearch endpoint
+	 * @param authType - e.g. 'Basic' or null
+	 * @param authData - auth. data or null
+	 */
+	public ElasticsearchBulk(String serverUrl, String authType, String authData){
+		this.esServerUrl = serverUrl;
+		this.authType = authType;
+		this.authData = authData;
+	}
+
+	/**
+	 * Add an 'index' action (create or overwrite a document).
+	 * @param index - ES index
+	 * @param type - ES type
+	 * @param id - document ID or null to let ES create one
+	 * @param doc - document
+	 */
+	public ElasticsearchBulk index(String index, String type, String id, JSONObject doc){
+		JSONObject meta = JSON.make("_index", index, "_type", type);
+		if (id != null){
+			JSON.put(meta, "_id", id);
+		}
+		body.append(JSON.make("index", meta).toJSONString()).append('\n');
+		body.append(doc.toJSONString()).append('\n');
+		actions++;
+		return this;
+	}
+
+	/**
+	 * Add an 'update' action (partial update of a document).
+	 * @param index - ES index
+	 * @param type - ES type
+	 * @param id - document ID
+	 * @param updateData - new/changed (partial) document data
+	 * @param upsert - create document with this data if it does not exist (else the action fails)
+	 */
+	public ElasticsearchBulk update(String index, String type, String id, JSONObject updateData, boolean upsert){
+		body.append(JSON.make("update", JSON.make("_index", index, "_type", type, "_id", id)).toJSONString()).append('\n');
+		JSONObject doc = JSON.make("doc", updateData);
+		if (upsert){
+			JSON.put(doc, "doc_as_upsert", true);
+		}
+		body.append(doc.toJSONString()).append('\n');
+		actions++;
+		return this;
+	}
+
+	/**
+	 * Number of actions added so far.
+	 */
+	public int size(){
+		return actions;
+	}
+
+	/**
+	 * Send all actions.
+	 * @return result code for each action in the order they were added: 0) all good 1) connection error 2) unknown error
+	 */
+	public int[] execute(){
+		int[] codes = new int[actions];
+		if (actions == 0){
+			return codes;
+		}
+		HttpURLConnection con = null;
+		try{
+			con = (HttpURLConnection) new URL(esServerUrl + "/_bulk").openConnection();
+			con.setConnectTimeout(connectTimeoutMs);
+			con.setReadTimeout(readTimeoutMs);
+			con.setRequestMethod("POST");
+			con.setDoOutput(true);
+			con.setRequestProperty("Content-Type", "application/x-ndjson; charset=utf-8");
+			if (Is.notNullOrEmpty(authData)){
+				con.setRequestProperty("Authorization", (Is.notNullOrEmpty(authType)? (authType + " ") : "") + authData);
+			}
+			byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+			con.setFixedLengthStreamingMode(bytes.length);
+			try (OutputStream out = con.getOutputStream()){
+				out.write(bytes);
+			}
+			int status = con.getResponseCode();
+			if (status < 200 || status > 299){
+				String err = readAll(con.getErrorStream());
+				log.error("execute - bulk request failed with HTTP status " + status + ": " + err);
+				//overloaded or unavailable can be retried
+				fill(codes, (status == 429 || status >= 500)? 1 : 2);
+				return codes;
+			}
+			JSONObject res = JSON.parseStringOrFail(readAll(con.getInputStream()));
+			JSONArray items = JSON.getJArray(res, "items");
+			if (items == null || items.size() != actions){
+				log.error("execute - unexpected bulk response, items: " + ((items == null)? "null" : items.size()) + " - expected: " + actions);
+				fill(codes, 2);
+				return codes;
+			}
+			for (int i = 0; i < actions; i++){
+				JSONObject item = JSON.getJObject(items, i);
+				//{"index": {"status": 201, ...}} or {"update": {...}}
+				JSONObject result = null;
+				for (Object v : item.values()){
+					result = (JSONObject) v;
+				}
+				int itemStatus = JSON.getIntegerOrDefault(result, "status", -1);
+				if (itemStatus >= 200 && itemStatus <= 299){
+					codes[i] = 0;
+				}else if (itemStatus == 429 || itemStatus >= 500){
+					codes[i] = 1;
+				}else{
+					codes[i] = 2;
+					log.error("execute - bulk item " + i + " failed with: " + result);
+				}
+			}
+			return codes;
+
+		}catch (IOException e){
+			log.error("execute - bulk request failed with connection error: " + e.getMessage());
+			fill(codes, 1);
+			return codes;
+		}catch (Exception e){
+			log.error("execute - bulk request failed with error: " + e.getMessage());
+			fill(codes, 2);
+			return codes;
+		}finally{
+			if (con != null){
+				con.disconnect();
+			}
+		}
+	}
+
+	private static void fill(int[] codes, int code){
+		for (int i = 0; i < codes.length; i++){
+			codes[i] = code;
+		}
+	}
+
+	private static String readAll(InputStream in) throws IOException {
+		if (in == null){
+			return "";
+		}
+		try (InputStream is = in){
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = is.read(buf)) != -1){
+				out.write(buf, 0, n);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+}
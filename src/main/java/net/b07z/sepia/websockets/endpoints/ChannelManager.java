@@ -16,8 +16,10 @@ import net.b07z.sepia.server.core.tools.Debugger;
 import net.b07z.sepia.server.core.tools.Is;
 import net.b07z.sepia.server.core.tools.JSON;
 import net.b07z.sepia.server.core.users.Account;
+import net.b07z.sepia.websockets.client.SepiaSocketClient;
 import net.b07z.sepia.websockets.common.SocketChannel;
 import net.b07z.sepia.websockets.common.SocketConfig;
+import net.b07z.sepia.websockets.server.SocketAuthenticationCache;
 import net.b07z.sepia.websockets.server.SocketChannelHistory;
 import net.b07z.sepia.websockets.server.SocketChannelPool;
 import net.b07z.sepia.websockets.server.Statistics;
@@ -40,7 +42,7 @@ public class ChannelManager {
     	
     	//authenticate
     	Account userAccount = new Account();
-		if (userAccount.authenticate(params)){
+		if (SocketAuthenticationCache.authenticateUncached(userAccount, params)){
 			long tic = Debugger.tic();
 			
 			//log.info("Authenticated: " + userAccount.getUserID() + ", roles: " + userAccount.getUserRoles()); 		//debug
@@ -176,7 +178,7 @@ public class ChannelManager {
     	
     	//authenticate
     	Account userAccount = new Account();
-		if (userAccount.authenticate(params)){
+		if (SocketAuthenticationCache.authenticateUncached(userAccount, params)){
 			long tic = Debugger.tic();
 			
 			//allowed?
@@ -253,7 +255,7 @@ public class ChannelManager {
     	
     	//authenticate
     	Account userAccount = new Account();
-		if (userAccount.authenticate(params)){
+		if (SocketAuthenticationCache.authenticateUncached(userAccount, params)){
 			long tic = Debugger.tic();
 			
 			boolean isAllowed;
@@ -303,24 +305,38 @@ public class ChannelManager {
     }
     
     /**
-     * Get channels available to the user (every channel that he's a member of). Optionally exclude public channels.
+     * Get channels available to the user (every channel that he's a member of). Optionally exclude public channels.<br>
+     * The response has an 'ETag' header. If the client sends it back via 'If-None-Match' in a GET request and nothing changed
+     * the result is 304 (no content). POST requests always get the full list (a conditional POST is not defined by HTTP).<br>
+     * GET requests have to send the credentials via header 'Authorization: Bearer [KEY]' (never in the URL, it ends up in access logs),
+     * other parameters ('client', 'includePublic') are query parameters.
      */
     public static String getAvailableChannels(Request request, Response response){
     	//get parameters (or throw error)
-    	RequestParameters params = new RequestPostParameters(request);
+    	boolean isGet = "GET".equalsIgnoreCase(request.requestMethod());
+    	RequestParameters params;
+    	if (isGet){
+    		params = getParametersWithAuthorizationHeader(request);
+    		if (params == null){
+    			JSONObject msgJSON = JSON.make("result", "fail", "error", "missing 'Authorization' header.");
+    			return SparkJavaFw.returnResult(request, response, msgJSON.toJSONString(), 401);
+    		}
+    	}else{
+    		params = new RequestPostParameters(request);
+    	}
     	boolean includePublic = params.getBoolOrDefault("includePublic", true);
     	
     	//authenticate
     	Account userAccount = new Account();
-		if (userAccount.authenticate(params)){
+		if (SocketAuthenticationCache.authenticateUncached(userAccount, params)){
 			long tic = Debugger.tic();
 			
 			//get ID and data
 			String userId = userAccount.getUserID();
-			List<SocketChannel> channels = SocketChannelPool.getAllChannelsAvailableTo(userId, includePublic);
+			SocketChannelPool.ClientChannelList channelsArray = SocketChannelPool.getClientChannelList(userId, includePublic);
 			
 			//check result
-			if (channels == null){
+			if (channelsArray == null){
 				//error
 				JSONObject msgJSON = JSON.make("result", "fail", "error", "failed to get channel data (database error?).");
 				
@@ -330,8 +346,15 @@ public class ChannelManager {
 				
 				return SparkJavaFw.returnResult(request, response, msgJSON.toJSONString(), 200);
 			}else{
-				//convert result
-				JSONArray channelsArray = SocketChannelPool.convertChannelListToClientArray(channels, userId);
+				//not modified?
+				response.header("ETag", channelsArray.getETag());
+				if (isGet && matchesETag(request.headers("If-None-Match"), channelsArray.getETag())){
+					//statistics
+					Statistics.addOtherApiHit("getAvailableChannels-notModified");
+					Statistics.addOtherApiTime("getAvailableChannels-notModified", tic);
+					
+					return SparkJavaFw.returnResult(request, response, "", 304);
+				}
 				
 				//all good
 				JSONObject msgJSON = JSON.make(
@@ -352,6 +375,41 @@ public class ChannelManager {
 		}
     }
     
+    //parameters of a GET request with credentials from 'Authorization: Bearer [KEY]' header or null
+    private static RequestParameters getParametersWithAuthorizationHeader(Request request){
+    	String auth = request.headers("Authorization");
+    	if (Is.nullOrEmpty(auth) || !auth.regionMatches(true, 0, "Bearer ", 0, 7) || auth.substring(7).trim().isEmpty()){
+    		return null;
+    	}
+    	JSONObject parameters = JSON.make(SepiaSocketClient.CREDENTIALS_KEY, auth.substring(7).trim());
+    	String clientInfo = request.queryParams(SepiaSocketClient.PARAMETERS_CLIENT);
+    	if (Is.notNullOrEmpty(clientInfo)){
+    		JSON.put(parameters, SepiaSocketClient.PARAMETERS_CLIENT, clientInfo);
+    	}
+    	String includePublic = request.queryParams("includePublic");
+    	if (Is.notNullOrEmpty(includePublic)){
+    		JSON.put(parameters, "includePublic", Boolean.parseBoolean(includePublic));
+    	}
+    	return new RequestPostParameters(parameters);
+    }
+    
+    //check 'If-None-Match' header value (list of tags or '*')
+    private static boolean matchesETag(String ifNoneMatch, String eTag){
+    	if (Is.nullOrEmpty(ifNoneMatch)){
+    		return false;
+    	}
+    	for (String tag : ifNoneMatch.split(",")){
+    		tag = tag.trim();
+    		if (tag.startsWith("W/")){
+    			tag = tag.substring(2);
+    		}
+    		if (tag.equals("*") || tag.equals(eTag)){
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+    
     /**
      * Get channels of the user that are marked for 'missed messages'.<br>
      * NOTE: This data can (and should?) be requested via socket connection as well.
@@ -362,7 +420,7 @@ public class ChannelManager {
     	
     	//authenticate
     	Account userAccount = new Account();
-		if (userAccount.authenticate(params)){
+		if (SocketAuthenticationCache.authenticateUncached(userAccount, params)){
 			long tic = Debugger.tic();
 			
 			//get ID and data
@@ -410,7 +468,7 @@ public class ChannelManager {
     	RequestParameters params = new RequestPostParameters(request);
     	//authenticate
     	Account userAccount = new Account();
-		if (userAccount.authenticate(params)){
+		if (SocketAuthenticationCache.authenticateUncached(userAccount, params)){
 			long tic = Debugger.tic();
 			
 			//must be superuser
@@ -460,7 +518,7 @@ public class ChannelManager {
     	RequestParameters params = new RequestPostParameters(request);
     	//authenticate
     	Account userAccount = new Account();
-		if (userAccount.authenticate(params)){
+		if (SocketAuthenticationCache.authenticateUncached(userAccount, params)){
 			long tic = Debugger.tic();
 			
 			//must be superuser
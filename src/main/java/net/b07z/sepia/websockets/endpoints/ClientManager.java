@@ -20,6 +20,7 @@ import net.b07z.sepia.server.core.users.Account;
 import net.b07z.sepia.server.core.users.SharedAccessItem;
 import net.b07z.sepia.websockets.common.SocketUser;
 import net.b07z.sepia.websockets.common.SocketUserPool;
+import net.b07z.sepia.websockets.server.SocketAuthenticationCache;
 import net.b07z.sepia.websockets.server.Statistics;
 import spark.Request;
 import spark.Response;
@@ -41,7 +42,7 @@ public class ClientManager {
     	
     	//authenticate
     	Account userAccount = new Account();
-		if (userAccount.authenticate(params)){
+		if (SocketAuthenticationCache.authenticateUncached(userAccount, params)){
 			long tic = Debugger.tic();
 			
 			//depends on user
@@ -167,7 +168,7 @@ public class ClientManager {
     	
     	//authenticate
     	Account userAccount = new Account();
-		if (userAccount.authenticate(params)){
+		if (SocketAuthenticationCache.authenticateUncached(userAccount, params)){
 			long tic = Debugger.tic();
 			
 			boolean isAdmin = userAccount.hasRole(Role.superuser.name());
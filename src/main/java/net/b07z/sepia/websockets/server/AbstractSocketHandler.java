@@ -1,6 +1,7 @@
 package net.b07z.sepia.websockets.server;
 import org.eclipse.jetty.websocket.api.*;
 import org.eclipse.jetty.websocket.api.annotations.*;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
 /**
  * Abstract handler that implements the webSocket interface and redirects events to the given "real" server handler.<br>
  * To use it set static "SocketServer server" for this class and implement your server there.  
@@ -28,6 +29,19 @@ public class AbstractSocketHandler {
     	server.onMessage(userSession, message);
     }
     
+    @OnWebSocketMessage
+    public void onMessage(Session userSession, byte[] buffer, int offset, int length) {
+    	server.onBinaryMessage(userSession, buffer, offset, length);
+    }
+    
+    @OnWebSocketFrame
+    public void onFrame(Session userSession, Frame frame) {
+    	//we only care about pong frames (answer to alive-ping), everything else is handled by the methods above
+    	if (frame.getType() == Frame.Type.PONG){
+    		server.onPong(userSession, frame.getPayload());
+    	}
+    }
+    
     @OnWebSocketError
     public void onError(Session userSession, Throwable error) {
     	server.onError(userSession, error);
@@ -4,9 +4,18 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.jetty.websocket.api.Session;
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,7 +26,6 @@ import net.b07z.sepia.server.core.server.RequestParameters;
 import net.b07z.sepia.server.core.server.RequestPostParameters;
 import net.b07z.sepia.server.core.tools.Is;
 import net.b07z.sepia.server.core.tools.JSON;
-import net.b07z.sepia.server.core.users.Account;
 import net.b07z.sepia.server.core.users.SharedAccessItem;
 import net.b07z.sepia.websockets.client.SepiaSocketClient;
 import net.b07z.sepia.websockets.common.SocketChannel;
@@ -38,6 +46,12 @@ public class SepiaAuthenticationHandler implements ServerMessageHandler {
 	
 	SocketServer server;
 	
+	//blocking Assist-API calls run on their own threads (not on the WebSocket I/O thread)
+	private static volatile ThreadPoolExecutor authExecutor;
+	private static Set<Session> authenticatingSessions = ConcurrentHashMap.newKeySet();
+	private static AtomicLong rejectedAuthentications = new AtomicLong(0);
+	private static AtomicLong timedOutAuthentications = new AtomicLong(0);
+	
 	/**
 	 * Create new handler for SEPIA authentication messages.
 	 */
@@ -48,143 +62,275 @@ public class SepiaAuthenticationHandler implements ServerMessageHandler {
 	@Override
 	public void handle(Session userSession, SocketMessage msg) throws Exception {
 		//check credentials
-		JSONObject credentials = (JSONObject) msg.data.get("credentials");
+		JSONObject credentials = (JSONObject) msg.getData().get("credentials");
 		if (credentials != null && !credentials.isEmpty()){
 			//----- build auth. request ----
-	    	JSONObject parameters = (JSONObject) msg.data.get("parameters");
+	    	JSONObject parameters = (JSONObject) msg.getData().get("parameters");
+	    	String credentialsString = credentials.get(SepiaSocketClient.CREDENTIALS_USER_ID) + ";" + credentials.get(SepiaSocketClient.CREDENTIALS_PASSWORD);
 	    	if (parameters != null && !parameters.isEmpty()){
-		    	JSON.put(parameters, SepiaSocketClient.CREDENTIALS_KEY, credentials.get(SepiaSocketClient.CREDENTIALS_USER_ID) + ";" + credentials.get(SepiaSocketClient.CREDENTIALS_PASSWORD));
+		    	JSON.put(parameters, SepiaSocketClient.CREDENTIALS_KEY, credentialsString);
 	    	}else{
 	    		parameters = JSON.make(
-	    			SepiaSocketClient.CREDENTIALS_KEY, credentials.get(SepiaSocketClient.CREDENTIALS_USER_ID) + ";" + credentials.get(SepiaSocketClient.CREDENTIALS_PASSWORD),
+	    			SepiaSocketClient.CREDENTIALS_KEY, credentialsString,
 	    			SepiaSocketClient.PARAMETERS_CLIENT, ConfigDefaults.defaultClientInfo
 	    		);
 	    	}
 	    	RequestParameters params = new RequestPostParameters(parameters);
 			//----------------------------
-			Account userAccount = new Account();
+			String clientInfo = JSON.getString(parameters, SepiaSocketClient.PARAMETERS_CLIENT);
 			
-			//AUTH. SUCCESS
-			if (userAccount.authenticate(params)){
-				
-				//is assistant, thing or user? - we can add more here if required
-				String userId = userAccount.getUserID();
-				String clientInfo = JSON.getString(parameters, "client");
-				String deviceId = Is.notNullOrEmpty(msg.senderDeviceId)? 
-						msg.senderDeviceId : ((Is.notNullOrEmpty(parameters))? JSON.getString(parameters, SepiaSocketClient.PARAMETERS_DEVICE_ID) : null); 
-				if (Is.nullOrEmpty(deviceId)){
-					deviceId = (String) msg.data.get("deviceId");		//Some clients might use this "extra" entry
-				}
-				Role role;
-				if (userAccount.hasRole(Role.assistant.name())){
-					role = Role.assistant;
-				}else if (userAccount.hasRole(Role.thing.name())){
-					role = Role.thing;
-				}else{
-					role = Role.user;
-				}
-				Map<String, List<SharedAccessItem>> sharedAccess = userAccount.getSharedAccess();
-				log.info("Authenticated: " + userId + ", roles: " + userAccount.getUserRoles() + ", deviceId: " + deviceId); 		//debug
-				//System.out.println("Parameters: " + parameters); 		//debug
-				
-				//CREATE and STORE SocketUser
-				String acceptedName = userAccount.getUserNameShort();
-				SocketUser participant = new SocketUser(userSession, userId, acceptedName, role, deviceId);
-				if (clientInfo != null){
-					participant.setInfo("clientInfo", clientInfo);
+			//NOTE: successful authentications are cached for a short time (reconnects) and can be used right away
+			SocketAuthenticationCache.Result cachedResult = SocketAuthenticationCache.getCachedResult(credentialsString, clientInfo);
+			if (cachedResult != null){
+				handleAuthenticationResult(userSession, msg, parameters, cachedResult);
+				return;
+			}
+			//else call Assist-API in background (the session stays in pending pool until we have a result)
+			if (!authenticatingSessions.add(userSession)){
+				log.info("Authentication for session is already running - request ignored.");
+				return;
+			}
+			final JSONObject authParameters = parameters;
+			authenticateAsync(userSession, params, credentialsString, clientInfo).whenComplete((authResult, error) -> {
+				authenticatingSessions.remove(userSession);
+				if (!userSession.isOpen()){
+					return;
 				}
-				//participant.setDeviceId(deviceId);
-				if (sharedAccess != null){
-					participant.setSharedAccess(sharedAccess);
+				try{
+					if (error == null){
+						handleAuthenticationResult(userSession, msg, authParameters, authResult);
+					}else{
+						Throwable cause = (error instanceof CompletionException && error.getCause() != null)? error.getCause() : error;
+						handleAuthenticationError(userSession, msg, cause);
+					}
+				}catch (Exception e){
+					log.error("Failed to handle authentication result: " + e.getMessage());
 				}
-				server.storeUser(participant);
-				participant.setAuthenticated();
-				
-				SocketUserPool.removePendingSession(userSession);
-				
-				//CREATE and STORE private SocketChannel - or get it from pool
-				SocketChannel sc = SocketChannelPool.getChannel(userId);
-				String channelId = null;
-				if (sc == null){
-					String channelName = "<assistant_name>";
-					Set<String> members = new HashSet<String>(); 		//we can leave this empty, it will auto-add the owner
-					boolean addAssistant = true;
-					sc = SocketChannelPool.createChannel(userId, userId, false, channelName, members, addAssistant);
-					channelId = sc.getChannelId();
-					//... we can add more here coming from user account ...
-				}else{
-					channelId = sc.getChannelId();
+			});
+		//AUTH. missing credentials to try
+		}else{
+			SocketMessage msgLoginError = SepiaSocketBroadcaster.makeServerStatusMessage(
+					msg.msgId, "<auto>", "Login failed, missing credentials (401)", DataType.errorMessage, false
+			);
+			server.broadcastMessage(msgLoginError, userSession);
+		}
+	}
+	
+	/**
+	 * Run authentication on the bounded authentication executor.
+	 * @return future that fails with {@link RejectedExecutionException} (too many waiting) or {@link TimeoutException} (waited too long)
+	 */
+	private static CompletableFuture<SocketAuthenticationCache.Result> authenticateAsync(Session userSession, RequestParameters params, 
+			String credentialsString, String clientInfo){
+		long queuedAt = System.currentTimeMillis();
+		try{
+			return CompletableFuture.supplyAsync(() -> {
+				if (!userSession.isOpen()){
+					throw new CompletionException(new IllegalStateException("session closed"));
 				}
-				participant.setActive();
-				participant.setActiveChannel(sc.getChannelId());
-				//assistants are omni-present in their active channels
-				if (role.equals(Role.assistant)){
-					participant.setOmnipresent();
+				if ((System.currentTimeMillis() - queuedAt) > SocketConfig.authQueueTimeoutMs){
+					timedOutAuthentications.incrementAndGet();
+					throw new CompletionException(new TimeoutException("waited too long for authentication"));
 				}
-				
-				//broadcast channel-join event
-				JSONObject data = new JSONObject();
-		        JSON.add(data, "dataType", DataType.joinChannel.name());
-		        JSON.add(data, "channelId", sc.getChannelId());
-		        JSON.add(data, "channelName", sc.getChannelName());
-		        JSON.add(data, "givenName", acceptedName);
-
-		        SocketMessage msgUserName = new SocketMessage(channelId, SocketConfig.SERVERNAME, SocketConfig.localName, userId, deviceId, data);
-		        if (msg.msgId != null) msgUserName.setMessageId(msg.msgId);
-		        server.broadcastMessage(msgUserName, userSession);
-		        
-		        //broadcast request to update channel data
-		        boolean includePublic = true;
-		        List<SocketChannel> channels = SocketChannelPool.getAllChannelsAvailableTo(userId, includePublic);
-		        JSONArray channelsArray = null;
-		        if (channels != null){
-		        	channelsArray = SocketChannelPool.convertChannelListToClientArray(channels, userId);
-		        }
-		        SocketMessage msgUpdateData = SepiaSocketBroadcaster.makeServerUpdateDataMessage(
-		        		"availableChannels", channelsArray
-		        );
-		        server.broadcastMessage(msgUpdateData, userSession);
-
-		        //broadcast channel welcome and update userList to whole channel
-		        SocketMessage msgListUpdate = SepiaSocketBroadcaster.makeServerStatusMessage(
-		        		"", channelId, (acceptedName + " (" + userId + ") joined the chat"), DataType.welcome, true
-		        );
-		        server.broadcastMessage(participant, msgListUpdate);
+				return SocketAuthenticationCache.authenticate(params, credentialsString, clientInfo);
+			}, getAuthExecutor());
+		}catch (RejectedExecutionException e){
+			rejectedAuthentications.incrementAndGet();
+			CompletableFuture<SocketAuthenticationCache.Result> rejected = new CompletableFuture<>();
+			rejected.completeExceptionally(e);
+			return rejected;
+		}
+	}
+	
+	//executor with fixed number of threads and limited queue (admission limit)
+	private static synchronized ThreadPoolExecutor getAuthExecutor(){
+		if (authExecutor == null){
+			int workers = Math.max(1, SocketConfig.authWorkers);
+			AtomicInteger threadNumber = new AtomicInteger(0);
+			authExecutor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, 
+					new ArrayBlockingQueue<>(Math.max(1, SocketConfig.authQueueSize)), 
+					r -> {
+						Thread t = new Thread(r, "auth-worker-" + threadNumber.getAndIncrement());
+						t.setDaemon(true);
+						return t;
+					}
+			);
+			authExecutor.allowCoreThreadTimeOut(true);
+			log.info("Started authentication executor with " + workers + " workers - queue size: " + SocketConfig.authQueueSize);
+		}
+		return authExecutor;
+	}
+	
+	/**
+	 * Send error for authentication that was not executed (overload).
+	 */
+	private void handleAuthenticationError(Session userSession, SocketMessage msg, Throwable error){
+		SocketMessage msgLoginError;
+		if (error instanceof RejectedExecutionException){
+			msgLoginError = SepiaSocketBroadcaster.makeServerStatusMessage(
+					msg.msgId, "<auto>", "Login temporarily blocked due to too many requests (429)", DataType.errorMessage, false
+			);
+			msgLoginError.addData("errorType", SocketMessage.ErrorType.authentication.name());
+			msgLoginError.addData("errorCode", 429);
+		}else{
+			log.error("Authentication failed with error: " + error.getMessage());
+			msgLoginError = SepiaSocketBroadcaster.makeServerStatusMessage(
+					msg.msgId, "<auto>", "Login failed, authentication timed out or unknown error (500)", DataType.errorMessage, false
+			);
+			msgLoginError.addData("errorType", SocketMessage.ErrorType.authentication.name());
+			msgLoginError.addData("errorCode", 500);
+		}
+		server.broadcastMessage(msgLoginError, userSession);
+	}
+	
+	//--- statistics ---
+	
+	/**
+	 * Authentications waiting for a free worker.
+	 */
+	public static int getQueuedAuthentications(){
+		ThreadPoolExecutor ex = authExecutor;
+		return (ex != null)? ex.getQueue().size() : 0;
+	}
+	/**
+	 * Authentications rejected because the queue was full.
+	 */
+	public static long getRejectedAuthentications(){
+		return rejectedAuthentications.get();
+	}
+	/**
+	 * Authentications dropped because they waited longer than {@link SocketConfig#authQueueTimeoutMs}.
+	 */
+	public static long getTimedOutAuthentications(){
+		return timedOutAuthentications.get();
+	}
+	
+	/**
+	 * Store and welcome authenticated user or send error.
+	 */
+	private void handleAuthenticationResult(Session userSession, SocketMessage msg, JSONObject parameters, 
+			SocketAuthenticationCache.Result authResult) throws Exception {
+		//AUTH. SUCCESS
+		if (authResult.isAuthenticated()){
 			
-			//AUTH. FAIL
+			//is assistant, thing or user? - we can add more here if required
+			String userId = authResult.getUserId();
+			String clientInfo = JSON.getString(parameters, "client");
+			String deviceId = Is.notNullOrEmpty(msg.senderDeviceId)? 
+					msg.senderDeviceId : ((Is.notNullOrEmpty(parameters))? JSON.getString(parameters, SepiaSocketClient.PARAMETERS_DEVICE_ID) : null); 
+			if (Is.nullOrEmpty(deviceId)){
+				deviceId = (String) msg.getData().get("deviceId");		//Some clients might use this "extra" entry
+			}
+			Role role;
+			if (authResult.hasRole(Role.assistant.name())){
+				role = Role.assistant;
+			}else if (authResult.hasRole(Role.thing.name())){
+				role = Role.thing;
 			}else{
-				int authErrorCode = userAccount.getAuthErrorCode();
-				SocketMessage msgLoginError;
-				if (authErrorCode == 2){
-					//Server reached but login failed 
-					msgLoginError = SepiaSocketBroadcaster.makeServerStatusMessage(
-							msg.msgId, "<auto>", "Login failed, credentials wrong or token expired (401)", DataType.errorMessage, false
-					);
-					msgLoginError.addData("errorType", SocketMessage.ErrorType.authentication.name());
-					msgLoginError.addData("errorCode", 401);
-				}else if (authErrorCode == 10){
-					//Server reached but login temporarily blocked 
-					msgLoginError = SepiaSocketBroadcaster.makeServerStatusMessage(
-							msg.msgId, "<auto>", "Login temporarily blocked due to too many failed requests (429)", DataType.errorMessage, false
-					);
-					msgLoginError.addData("errorType", SocketMessage.ErrorType.authentication.name());
-					msgLoginError.addData("errorCode", 429);
-				}else{
-					//Other error
-					msgLoginError = SepiaSocketBroadcaster.makeServerStatusMessage(
-							msg.msgId, "<auto>", "Login failed, assistant not reachable or unknown error (500)", DataType.errorMessage, false
-					);
-					msgLoginError.addData("errorType", SocketMessage.ErrorType.authentication.name());
-					msgLoginError.addData("errorCode", 500);
-					msgLoginError.addData("returnCode", authErrorCode);
-				}
-				server.broadcastMessage(msgLoginError, userSession);
+				role = Role.user;
 			}
-		//AUTH. missing credentials to try
+			//too many sessions of this user? (assistants are not limited)
+			if (!role.equals(Role.assistant) && !SocketAdmissionControl.admitUser(userSession, userId, deviceId)){
+				return;
+			}
+			Map<String, List<SharedAccessItem>> sharedAccess = authResult.getSharedAccess();
+			log.info("Authenticated: " + userId + ", roles: " + authResult.getUserRoles() + ", deviceId: " + deviceId + (authResult.isFromCache()? " (cached)" : "")); 		//debug
+			//System.out.println("Parameters: " + parameters); 		//debug
+			
+			//CREATE and STORE SocketUser
+			String acceptedName = authResult.getUserNameShort();
+			SocketUser participant = new SocketUser(userSession, userId, acceptedName, role, deviceId);
+			if (clientInfo != null){
+				participant.setInfo("clientInfo", clientInfo);
+			}
+			//participant.setDeviceId(deviceId);
+			if (sharedAccess != null){
+				participant.setSharedAccess(sharedAccess);
+			}
+			server.storeUser(participant);
+			participant.setAuthenticated();
+			
+			SocketUserPool.removePendingSession(userSession);
+			
+			//closed in the meantime? (result can come from an auth. worker while 'onClose' runs and finds no user yet)
+			if (!userSession.isOpen()){
+				server.removeUser(participant);
+				log.info("Session of '" + userId + "' closed during authentication - user removed again");
+				return;
+			}
+			
+			//CREATE and STORE private SocketChannel - or get it from pool
+			SocketChannel sc = SocketChannelPool.getChannel(userId);
+			String channelId = null;
+			if (sc == null){
+				String channelName = "<assistant_name>";
+				Set<String> members = new HashSet<String>(); 		//we can leave this empty, it will auto-add the owner
+				boolean addAssistant = true;
+				sc = SocketChannelPool.createChannel(userId, userId, false, channelName, members, addAssistant);
+				channelId = sc.getChannelId();
+				//... we can add more here coming from user account ...
+			}else{
+				channelId = sc.getChannelId();
+			}
+			participant.setActive();
+			participant.setActiveChannel(sc.getChannelId());
+			//assistants are omni-present in their active channels
+			if (role.equals(Role.assistant)){
+				participant.setOmnipresent();
+			}
+			
+			//broadcast channel-join event
+			JSONObject data = new JSONObject();
+	        JSON.add(data, "dataType", DataType.joinChannel.name());
+	        JSON.add(data, "channelId", sc.getChannelId());
+	        JSON.add(data, "channelName", sc.getChannelName());
+	        JSON.add(data, "givenName", acceptedName);
+
+	        SocketMessage msgUserName = new SocketMessage(channelId, SocketConfig.SERVERNAME, SocketConfig.localName, userId, deviceId, data);
+	        if (msg.msgId != null) msgUserName.setMessageId(msg.msgId);
+	        server.broadcastMessage(msgUserName, userSession);
+	        
+	        //broadcast request to update channel data
+	        boolean includePublic = true;
+	        SocketChannelPool.ClientChannelList channelsArray = SocketChannelPool.getClientChannelList(userId, includePublic);
+	        SocketMessage msgUpdateData = SepiaSocketBroadcaster.makeServerUpdateDataMessage(
+	        		"availableChannels", channelsArray
+	        );
+	        server.broadcastMessage(msgUpdateData, userSession);
+
+	        //broadcast channel welcome and update userList to whole channel
+	        SocketMessage msgListUpdate = SepiaSocketBroadcaster.makeServerStatusMessage(
+	        		"", channelId, (acceptedName + " (" + userId + ") joined the chat"), DataType.welcome, true
+	        );
+	        server.broadcastMessage(participant, msgListUpdate);
+		
+		//AUTH. FAIL
 		}else{
-			SocketMessage msgLoginError = SepiaSocketBroadcaster.makeServerStatusMessage(
-					msg.msgId, "<auto>", "Login failed, missing credentials (401)", DataType.errorMessage, false
-			);
+			int authErrorCode = authResult.getAuthErrorCode();
+			SocketMessage msgLoginError;
+			if (authErrorCode == 2){
+				//Server reached but login failed 
+				msgLoginError = SepiaSocketBroadcaster.makeServerStatusMessage(
+						msg.msgId, "<auto>", "Login failed, credentials wrong or token expired (401)", DataType.errorMessage, false
+				);
+				msgLoginError.addData("errorType", SocketMessage.ErrorType.authentication.name());
+				msgLoginError.addData("errorCode", 401);
+			}else if (authErrorCode == 10){
+				//Server reached but login temporarily blocked 
+				msgLoginError = SepiaSocketBroadcaster.makeServerStatusMessage(
+						msg.msgId, "<auto>", "Login temporarily blocked due to too many failed requests (429)", DataType.errorMessage, false
+				);
+				msgLoginError.addData("errorType", SocketMessage.ErrorType.authentication.name());
+				msgLoginError.addData("errorCode", 429);
+			}else{
+				//Other error
+				msgLoginError = SepiaSocketBroadcaster.makeServerStatusMessage(
+						msg.msgId, "<auto>", "Login failed, assistant not reachable or unknown error (500)", DataType.errorMessage, false
+				);
+				msgLoginError.addData("errorType", SocketMessage.ErrorType.authentication.name());
+				msgLoginError.addData("errorCode", 500);
+				msgLoginError.addData("returnCode", authErrorCode);
+			}
 			server.broadcastMessage(msgLoginError, userSession);
 		}
 	}
@@ -3,7 +3,6 @@ package net.b07z.sepia.websockets.server;
 import java.util.Map;
 
 import org.eclipse.jetty.websocket.api.Session;
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,9 +36,9 @@ public class SepiaChannelJoinHandler implements ServerMessageHandler {
 
 	@Override
 	public void handle(Session userSession, SocketMessage msg) throws Exception {
-		//System.out.println("JOIN CHANNEL: " + msg.data); 		//DEBUG
+		//System.out.println("JOIN CHANNEL: " + msg.getData()); 		//DEBUG
 		SocketUser user = server.getUserBySession(userSession);
-		JSONObject credentials = (JSONObject) msg.data.get("credentials");
+		JSONObject credentials = (JSONObject) msg.getData().get("credentials");
 		if (credentials != null && !credentials.isEmpty()){
 			String newChannelId = (String) credentials.get("channelId");
 			if (newChannelId != null && !newChannelId.isEmpty()){
@@ -83,14 +82,14 @@ public class SepiaChannelJoinHandler implements ServerMessageHandler {
 						}
 						
 						//get channel data
-						JSONArray channelHistory = null;
+						SocketChannelHistoryBuffer.JsonFragment channelHistory = null;
 						if (SocketConfig.storeMessagesPerChannel > 0){
 							Map<String, Object> filter = null;
-							JSONObject channelHistoryFilter = JSON.getJObject(msg.data, "channelHistoryFilter");
+							JSONObject channelHistoryFilter = JSON.getJObject(msg.getData(), "channelHistoryFilter");
 							if (Is.notNullOrEmpty(channelHistoryFilter)){
 								filter = Converters.json2HashMap(channelHistoryFilter);
 							}
-							channelHistory = SocketChannelHistory.getChannelHistoryAsJson(nsc.getChannelId(), filter);
+							channelHistory = SocketChannelHistory.getChannelHistoryAsJsonFragment(nsc.getChannelId(), filter);
 							//TODO: can be null (=error) so handle that ...
 						}
 						
@@ -101,7 +100,17 @@ public class SepiaChannelJoinHandler implements ServerMessageHandler {
 				        JSON.add(data, "channelName", nsc.getChannelName());
 				        JSON.add(data, "givenName", user.getUserName());
 				        if (channelHistory != null){
-				        	JSON.add(data, "channelHistory", channelHistory);
+				        	if (channelHistory.isIncremental()){
+				        		//client has the history up to its cursor - send only newer messages or the "up to date" marker
+				        		if (channelHistory.size() == 0){
+				        			JSON.add(data, "channelHistoryUpToDate", true);
+				        		}else{
+				        			JSON.add(data, "channelHistory", channelHistory);
+				        			JSON.add(data, "channelHistoryIncremental", true);
+				        		}
+				        	}else{
+				        		JSON.add(data, "channelHistory", channelHistory);
+				        	}
 				        }
 
 				        SocketMessage msgJoinChannel = new SocketMessage("", SocketConfig.SERVERNAME, SocketConfig.localName, 
@@ -1,8 +1,14 @@
 package net.b07z.sepia.websockets.server;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.BooleanSupplier;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jetty.websocket.api.Session;
 import org.slf4j.Logger;
@@ -10,7 +16,6 @@ import org.slf4j.LoggerFactory;
 
 import net.b07z.sepia.server.core.tools.Is;
 import net.b07z.sepia.server.core.tools.JSON;
-import net.b07z.sepia.server.core.tools.ThreadManager;
 import net.b07z.sepia.websockets.common.SocketConfig;
 import net.b07z.sepia.websockets.common.SocketMessage;
 import net.b07z.sepia.websockets.common.SocketUser;
@@ -27,35 +32,77 @@ public class SepiaClientPingHandler implements ServerMessageHandler {
 	
 	public static final long PING_EXPIRE_TIME_MS = 10000;
 	public static final long PING_NEXT_DELAY_MS = 1000*60*45;
+	public static final long PING_WHEEL_TICK_MS = 500;
+	public static final int PING_WHEEL_SIZE = 1024;
+	public static final long PING_FALLBACK_DELAY_MS = 15000;
+	public static final int PING_FRAME_SENDERS = 4;
+	public static final int PING_FRAME_QUEUE_SIZE = 10000;
 	
 	//ping request tracking
 	private static Map<String, PingRequest> openPingRequests = new ConcurrentHashMap<>();
+	//one timer for all ping requests
+	private static SocketTimingWheel pingWheel = new SocketTimingWheel("sepia-alive-ping-timer", PING_WHEEL_TICK_MS, PING_WHEEL_SIZE);
+	//ping frames are sent with a blocking call, so we don't do that on the timer thread
+	private static volatile ThreadPoolExecutor pingFrameSender;
 	public static int getNumberOfScheduledPingRequest(){
 		return openPingRequests.size();
 	}
+	public static int getNumberOfPendingPingTimers(){
+		return pingWheel.getNumberOfPendingTimeouts();
+	}
+	
+	private static ThreadPoolExecutor getPingFrameSender(){
+		if (pingFrameSender == null){
+			synchronized (SepiaClientPingHandler.class){
+				if (pingFrameSender == null){
+					AtomicInteger threadNumber = new AtomicInteger(0);
+					ThreadPoolExecutor ex = new ThreadPoolExecutor(PING_FRAME_SENDERS, PING_FRAME_SENDERS, 60, TimeUnit.SECONDS, 
+							new ArrayBlockingQueue<>(PING_FRAME_QUEUE_SIZE), 
+							r -> {
+								Thread t = new Thread(r, "ping-frame-sender-" + threadNumber.getAndIncrement());
+								t.setDaemon(true);
+								return t;
+							}
+					);
+					ex.allowCoreThreadTimeOut(true);
+					pingFrameSender = ex;
+				}
+			}
+		}
+		return pingFrameSender;
+	}
 	
 	SocketServer server;
 	
 	/**
-	 * Class representing a client ping request.
+	 * Class representing a client ping request. The request is first scheduled to send the ping and then to observe the result.
 	 */
-	public static class PingRequest {
+	public static class PingRequest implements Runnable {
 		public final String pingId;
 		private Session userSession;
-		private long expireTs = 0;
+		private volatile long expireTs = 0;
 		
 		private SocketMessage pingMsg;
-		private BooleanSupplier cancelRequestFun;
-		private BooleanSupplier cancelResultObserverFun;
+		private volatile SocketTimingWheel.Timeout timeout;
+		private final boolean useFrame;
 		
 		private boolean resolvedInTime = false;
 		
 		/**
-		 * New ping request.
+		 * New ping request using a JSON message.
 		 * @param userSession - User session that was "pinged"
 		 */
 		public PingRequest(Session userSession) {
+			this(userSession, false);
+		}
+		/**
+		 * New ping request.
+		 * @param userSession - User session that was "pinged"
+		 * @param useFrame - use WebSocket ping frame instead of JSON message (with ping ID as payload)
+		 */
+		public PingRequest(Session userSession, boolean useFrame) {
 			this.userSession = userSession;
+			this.useFrame = useFrame;
 			this.pingMsg = SepiaSocketBroadcaster.makeServerClientPingMessage();
 			this.pingId = this.pingMsg.msgId;
 			
@@ -64,32 +111,67 @@ public class SepiaClientPingHandler implements ServerMessageHandler {
 		
 		public void activate(long delay){
 			if (delay <= 0) delay = PING_NEXT_DELAY_MS + Math.round((Math.random() * 10000)); //default + random offset
-			if (cancelRequestFun == null){
+			if (timeout == null){
 				scheduleRequest(delay);
 			}
 		}
 		
 		private void scheduleRequest(long delay){
-			//use thread manager
-			cancelRequestFun = ThreadManager.scheduleBackgroundTaskAndForget(delay, () -> {
+			timeout = pingWheel.schedule(delay, this);
+		}
+		
+		private void scheduleObserveResult(){
+			this.expireTs = System.currentTimeMillis() + PING_EXPIRE_TIME_MS;
+			timeout = pingWheel.schedule(PING_EXPIRE_TIME_MS, this);
+		}
+		
+		/**
+		 * Called by timer: send ping or (after it was sent) check result.
+		 */
+		@Override
+		public void run(){
+			if (expireTs == 0){
 				if (userSession != null && userSession.isOpen()){
 					//send via session and observer result until expired
-					SepiaSocketBroadcaster.broadcastMessageToSession(this.pingMsg, this.userSession);
+					if (useFrame){
+						sendPingFrameAsync();
+					}else{
+						SepiaSocketBroadcaster.broadcastMessageToSession(this.pingMsg, this.userSession);
+					}
 					scheduleObserveResult();
 				}else{
-					//this should theoretically never happen (because 'cancelRequestFun' should be called to prevent it), but ...
+					//this should theoretically never happen (because 'cancelScheduledPing' should be called to prevent it), but ...
 					openPingRequests.remove(this.pingId);
 				}
-			});
-		}
-		
-		private void scheduleObserveResult(){
-			this.expireTs = System.currentTimeMillis() + PING_EXPIRE_TIME_MS;
-			//use thread manager
-			cancelResultObserverFun = ThreadManager.scheduleBackgroundTaskAndForget(PING_EXPIRE_TIME_MS, () -> {
+			}else{
 				//check result after PING_EXPIRE_TIME_MS
 				resolveRequest();
-			});
+			}
+		}
+		
+		//send ping frame off the timer thread - falls back to JSON message if that fails
+		private void sendPingFrameAsync(){
+			try{
+				getPingFrameSender().execute(() -> {
+					if (!sendPingFrame()){
+						SepiaSocketBroadcaster.broadcastMessageToSession(this.pingMsg, this.userSession);
+					}
+				});
+			}catch (RejectedExecutionException e){
+				log.error("Too many alive-ping frames waiting, using JSON message.");
+				SepiaSocketBroadcaster.broadcastMessageToSession(this.pingMsg, this.userSession);
+			}
+		}
+		
+		//send ping frame with ID as payload - returns false if that failed
+		private boolean sendPingFrame(){
+			try{
+				userSession.getRemote().sendPing(ByteBuffer.wrap(pingId.getBytes(StandardCharsets.UTF_8)));
+				return true;
+			}catch (Exception e){
+				log.error("Failed to send alive-ping frame, using JSON message. Error: " + e.getMessage());
+				return false;
+			}
 		}
 		
 		public boolean isExpired(){
@@ -101,9 +183,9 @@ public class SepiaClientPingHandler implements ServerMessageHandler {
 		 * @return resolved in time true/false
 		 */
 		public boolean resolveRequest(){
-			//close open observer thread
-			if (cancelResultObserverFun != null){
-				cancelResultObserverFun.getAsBoolean();
+			//stop open observer
+			if (timeout != null){
+				timeout.cancel();
 			}
 			if (!isExpired()){
 				this.resolvedInTime = true;
@@ -125,6 +207,12 @@ public class SepiaClientPingHandler implements ServerMessageHandler {
 						log.error("Client did not answer in time after alive-ping. Resetting connection for: " 
 								+ (user != null? user.getUserId() : "unknown"));
 						userSession.close(4080, "Alive-ping timeout");
+					}else if (useFrame && user != null){
+						//the client did not answer the ping frame ... try JSON message next time
+						user.setInfo("useJsonPing", true);
+						if (SocketConfig.useAlivePings){
+							scheduleNextUserPing(userSession, PING_FALLBACK_DELAY_MS);
+						}
 					}else{
 						//we assume the client does not know how to answer ... so we just leave it alone and hope for update ;-)
 					}
@@ -149,15 +237,13 @@ public class SepiaClientPingHandler implements ServerMessageHandler {
 		}
 		
 		public boolean cancelScheduledPing(){
-			if (cancelRequestFun != null){
+			if (timeout != null){
 				openPingRequests.remove(pingId);
-				return cancelRequestFun.getAsBoolean();
+				return timeout.cancel();		//NOTE: stops the result observer as well if ping was already sent
 			}else{
 				return false;
 			}
 		}
-		
-		//TODO: what about a "cancelResultObserver" method?
 	}
 	
 	/**
@@ -174,10 +260,22 @@ public class SepiaClientPingHandler implements ServerMessageHandler {
 	 * @return ping ID or null
 	 */
 	public static String scheduleNextUserPing(Session userSession, long overwriteDelay){
+		return scheduleNextUserPing(userSession, overwriteDelay, false);
+	}
+	/**
+	 * Schedule a ping to see if user is still online and return the ping ID (or null).
+	 * @param userSession - session of user
+	 * @param overwriteDelay - custom delay or 0 (or -1) for default
+	 * @param forceJson - use JSON message even if ping frames are configured (e.g. when the client requested the ping)
+	 * @return ping ID or null
+	 */
+	public static String scheduleNextUserPing(Session userSession, long overwriteDelay, boolean forceJson){
 		SocketUser user = SocketUserPool.getUserBySession(userSession);
 		if (userSession != null && userSession.isOpen()){
 			//create request
-			PingRequest pr = new PingRequest(userSession);
+			boolean useFrame = !forceJson && SocketConfig.alivePingMode.equals(SocketConfig.ALIVE_PING_MODE_FRAME)
+					&& (user == null || user.getInfoEntryOrNull("useJsonPing") == null);
+			PingRequest pr = new PingRequest(userSession, useFrame);
 			if (overwriteDelay > 0){
 				pr.activate(overwriteDelay);
 			}else{
@@ -198,39 +296,60 @@ public class SepiaClientPingHandler implements ServerMessageHandler {
 		}
 	}
 
+	/**
+	 * Handle pong frame with ping ID as payload.
+	 * @param userSession - session that sent the pong
+	 * @param payload - payload of pong frame
+	 */
+	public static void handlePong(Session userSession, ByteBuffer payload){
+		if (payload == null || !payload.hasRemaining()){
+			return;		//unsolicited pong (heartbeat) - ignore
+		}
+		String replyId = StandardCharsets.UTF_8.decode(payload.slice()).toString();
+		PingRequest pr = openPingRequests.get(replyId);
+		if (pr != null && pr.userSession == userSession){
+			resolveAndScheduleNext(userSession, pr);
+		}
+	}
+	
+	//resolve request and schedule next ping on success
+	private static void resolveAndScheduleNext(Session userSession, PingRequest pr){
+		boolean success = pr.resolveRequest();
+		if (success){
+			//schedule next call
+			if (SocketConfig.useAlivePings){
+				scheduleNextUserPing(userSession, -1);
+			}
+		}
+	}
+
 	@Override
 	public void handle(Session userSession, SocketMessage msg) throws Exception {
-		if (msg.data == null) return;
+		if (msg.getData() == null) return;
 		
 		//Get ping reply ID 
-		String replyId = JSON.getString(msg.data, "replyId");
+		String replyId = JSON.getString(msg.getData(), "replyId");
 	
 		//Check ID
 		if (Is.notNullOrEmpty(replyId) && openPingRequests.containsKey(replyId)){
 			PingRequest pr = openPingRequests.get(replyId);
 			if (pr != null){
-				boolean success = pr.resolveRequest();
-				if (success){
-					//schedule next call
-					if (SocketConfig.useAlivePings){
-						scheduleNextUserPing(userSession, -1);
-					}
-				}
+				resolveAndScheduleNext(userSession, pr);
 			}
 			
 		//Request ping?
 		}else{
-			long sendPing = JSON.getLongOrDefault(msg.data, "sendPing", 0);
+			long sendPing = JSON.getLongOrDefault(msg.getData(), "sendPing", 0);
 			if (sendPing > 0){
 				//send ping now
-				String pingId = scheduleNextUserPing(userSession, sendPing);
+				String pingId = scheduleNextUserPing(userSession, sendPing, true);
 				//... but only once
 				if (Is.notNullOrEmpty(pingId)) openPingRequests.remove(pingId);
 				//TODO: if the regular procedure runs it will probably break here
 			
 			}else if (sendPing == -1){
 				//send ping now and continue
-				scheduleNextUserPing(userSession, sendPing);
+				scheduleNextUserPing(userSession, sendPing, true);
 			
 			}else{
 				//Ignore for now!?
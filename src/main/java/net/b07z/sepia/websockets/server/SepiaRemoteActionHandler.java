@@ -45,8 +45,8 @@ public class SepiaRemoteActionHandler implements ServerMessageHandler {
 			//log.info("SepiaRemoteActionHandler: Could not find target user. Message will not be sent."); 		//debug
 			return;
 		}
-		String remoteMsgType = (String) msg.data.get("type");
-		String action = (String) msg.data.get("action");
+		String remoteMsgType = (String) msg.getData().get("type");
+		String action = (String) msg.getData().get("action");
 		
 		//build new message - we send this as server message
 		for (SocketUser user : users){
@@ -67,7 +67,7 @@ public class SepiaRemoteActionHandler implements ServerMessageHandler {
 			remoteMsg.addData("type", remoteMsgType);
 			remoteMsg.addData("action", action);
 			
-			String originalSender = JSON.getStringOrDefault(msg.data, "originalSender", null);
+			String originalSender = JSON.getStringOrDefault(msg.getData(), "originalSender", null);
 			if (originalSender != null){
 				remoteMsg.addData("originalSender", originalSender);
 			}
@@ -86,10 +86,10 @@ public class SepiaRemoteActionHandler implements ServerMessageHandler {
 	 */
 	public static List<SocketUser> findRemoteTargetSocketUsers(SocketMessage msg){
 		//the actual user information is in the data
-		String remoteUserId = (String) msg.data.get("remoteUserId");
-		String targetDeviceId = (String) msg.data.get("targetDeviceId");
-		String targetChannelId = (String) msg.data.get("targetChannelId");
-		String skipDeviceId = (String) msg.data.get("skipDeviceId");
+		String remoteUserId = (String) msg.getData().get("remoteUserId");
+		String targetDeviceId = (String) msg.getData().get("targetDeviceId");
+		String targetChannelId = (String) msg.getData().get("targetChannelId");
+		String skipDeviceId = (String) msg.getData().get("skipDeviceId");
 		boolean hasSkipDeviceId = Is.notNullOrEmpty(skipDeviceId);
 		boolean channelIdIsAuto = (targetChannelId == null || targetChannelId.isEmpty() || targetChannelId.equals("<auto>"));
 		boolean targetDeviceIsAuto = (targetDeviceId == null || targetDeviceId.isEmpty() || targetDeviceId.equals("<auto>"));
@@ -105,6 +105,14 @@ public class SepiaRemoteActionHandler implements ServerMessageHandler {
 					return users;
 				}
 			}
+			//one match - specific device in any channel
+			if (channelIdIsAuto && !targetDeviceIsAuto && !targetDeviceIsAll && !hasSkipDeviceId){
+				SocketUser user = SocketUserPool.getUserByIdAndDevice(remoteUserId, targetDeviceId);
+				if (user != null && user.getUserId().equalsIgnoreCase(remoteUserId) && targetDeviceId.equals(user.getDeviceId())){
+					users.add(user);
+					return users;
+				}
+			}
 			//one or many matches - find matching sessions
 			List<SocketUser> possibleRemoteUsers = SocketUserPool.getAllUsersById(remoteUserId);
 			boolean correctDevice = false;
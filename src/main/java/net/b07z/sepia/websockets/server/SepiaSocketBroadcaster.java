@@ -17,6 +17,8 @@ import net.b07z.sepia.server.core.tools.JSON;
 import net.b07z.sepia.websockets.common.SocketChannel;
 import net.b07z.sepia.websockets.common.SocketConfig;
 import net.b07z.sepia.websockets.common.SocketMessage;
+import net.b07z.sepia.websockets.common.SocketMessageCbor;
+import net.b07z.sepia.websockets.common.SocketMessageCodec;
 import net.b07z.sepia.websockets.common.SocketUser;
 import net.b07z.sepia.websockets.common.SocketUserPool;
 import net.b07z.sepia.websockets.common.SocketMessage.DataType;
@@ -115,7 +117,7 @@ public class SepiaSocketBroadcaster {
     		JSONObject nuData = new JSONObject();
     		
     		//we can keep card data
-    		JSONObject assistAnswer = JSON.getJObject(msg.data, "assistAnswer");
+    		JSONObject assistAnswer = JSON.getJObject(msg.getData(), "assistAnswer");
     		boolean hasCard = JSON.getBoolean(assistAnswer, "hasCard");
     		if (hasCard){
     			JSON.put(nuData, "assistAnswer", JSON.make(
@@ -228,13 +230,16 @@ public class SepiaSocketBroadcaster {
     			//broadcast to active users in channel
     			broadcastMessageToSocketUsers(msg, activeChannelUsers);
     			
-    			//broadcast 'check channel' to online users
-    			JSONArray data = new JSONArray();
-    			JSON.add(data, JSON.make("channelId", channelId));
-    			SocketMessage msgUpdateData = makeServerUpdateDataMessage(
-    					"missedChannelMessage", data
-    			);
-    			broadcastMessageToSocketUsers(msgUpdateData, inactiveChannelUsers);
+    			//broadcast 'check channel' to online users (once per time window)
+    			inactiveChannelUsers.removeIf(su -> !SocketChannelHistory.shouldSendMissedMessageNote(su.getUserId(), su.getDeviceId(), channelId));
+    			if (!inactiveChannelUsers.isEmpty()){
+	    			JSONArray data = new JSONArray();
+	    			JSON.add(data, JSON.make("channelId", channelId));
+	    			SocketMessage msgUpdateData = makeServerUpdateDataMessage(
+	    					"missedChannelMessage", data
+	    			);
+	    			broadcastMessageToSocketUsers(msgUpdateData, inactiveChannelUsers);
+    			}
     			
     			//build (filtered) channel history and notify users of missed messages
     			String dataType = msg.getDataType();
@@ -271,8 +276,12 @@ public class SepiaSocketBroadcaster {
     
     //Sends message to a list of active channel users
     public static void broadcastMessageToSocketUsers(SocketMessage msg, Collection<SocketUser> userList){
+    	//render each variant (safe/trusted) only once and reuse it for all receivers
+    	RenderedMessage rendered = new RenderedMessage(msg);
     	//to all users
     	if (msg.receiver == null || msg.receiver.isEmpty()){
+    		//filter some stuff like prevent slash-command repost
+    		boolean isBlockedForUntrusted = (msg.text != null && msg.text.matches("(\\w+ |^)saythis .*"));	//TODO: what about the other slash-commands?? (linkshare, http(s|), ...)
     		//old code: getAllUsers().stream().filter(Session::isOpen).forEach(session -> {
     		for (SocketUser su : userList){
     			//System.out.println("(1) Broadcast from " + msg.sender + " to " + su.getUserId() + " with role " + su.getUserRole());	//debug
@@ -282,19 +291,15 @@ public class SepiaSocketBroadcaster {
     			}else{
     				//make message safe if receiver is not trusty
 	    			if (!isTrustyReceiver(su)){
-	    				//filter some stuff like prevent slash-command repost
-	    				if (msg.text != null && msg.text.matches("(\\w+ |^)saythis .*")){ 		
-	    					//TODO: what about the other slash-commands?? (linkshare, http(s|), ...)
+	    				if (isBlockedForUntrusted){
 	    					return;
 	    				}
 	    				//don't send credentials when the receiver is not an assistant (or another trustworthy receiver)
-	    				JSONObject safeMsg = makeSafeMessage(msg);
-	    				//System.out.println("(1) Send safe data: " + safeMsg);		//debug
-	    				broadcastNow(safeMsg, su.getUserSession());
+	    				//System.out.println("(1) Send safe data: " + rendered.getSafe());		//debug
+	    				broadcastNow(rendered, false, su.getUserSession());
 	    			}else{
-	    				JSONObject fullMsg = msg.getJSON();
-	    				//System.out.println("(1) Send unsafe data: " + fullMsg);		//debug
-	    				broadcastNow(fullMsg, su.getUserSession());
+	    				//System.out.println("(1) Send unsafe data: " + rendered.getFull());		//debug
+	    				broadcastNow(rendered, true, su.getUserSession());
 	    			}
     			}
             }
@@ -330,17 +335,15 @@ public class SepiaSocketBroadcaster {
     			}else{
     				Session recSession = u.getUserSession();
     				boolean isTrusty = isTrustyReceiver(u);
-    				//make 2 messages, one safe one with credentials
+    				//use 2 messages, one safe one with credentials
     	    		if (recSession != null){
     	    			if (!isTrusty){
-    	    				JSONObject safeMsg = makeSafeMessage(msg);
     	        			//don't send credentials when the receiver is not an assistant (or another trustworthy receiver)
-    	    				//System.out.println("(2) Send safe data: " + safeMsg);		//debug
-    	    				broadcastNow(safeMsg, recSession);
+    	    				//System.out.println("(2) Send safe data: " + rendered.getSafe());		//debug
+    	    				broadcastNow(rendered, false, recSession);
     	    			}else{
-    	    				JSONObject fullMsg = msg.getJSON();
-    	    				//System.out.println("(2) Send unsafe data: " + fullMsg);		//debug
-    	    				broadcastNow(fullMsg, recSession);
+    	    				//System.out.println("(2) Send unsafe data: " + rendered.getFull());		//debug
+    	    				broadcastNow(rendered, true, recSession);
     	        		}
     	    		}
     	    		//confirmation to user is included in filter
@@ -353,7 +356,7 @@ public class SepiaSocketBroadcaster {
     public static void broadcastMessageToSession(SocketMessage msg, Session session) {
     	SocketUser su = SocketUserPool.getUserBySession(session);
     	if (su == null){
-    		broadcastNow(makeSafeMessage(msg), session); 		//TODO: is this limiting some authentication process?
+    		broadcastNow(new RenderedMessage(msg), false, session); 		//TODO: is this limiting some authentication process?
     	}else{
     		su.setActive();		//TODO: do we really want this? ... and do we really need all the following code here ... ?
     		Collection<SocketUser> userList = new ArrayList<>();
@@ -366,15 +369,68 @@ public class SepiaSocketBroadcaster {
     }
     
     //sends a message to user of given session - better not use this directly 'cause that would skip the safety procedures
-    private static void broadcastNow(JSONObject msg, Session session) {
-    	//System.out.println(msg); 		//DEBUG
-       	try {
-            session.getRemote().sendString(msg.toJSONString());
-            timeOfLastBroadcast = System.currentTimeMillis();
-            
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    private static void broadcastNow(RenderedMessage msg, boolean isTrusty, Session session) {
+    	//NOTE: this does not block, the message is queued and sent asynchronously
+    	SocketOutboundQueue queue = SocketOutboundQueue.getQueue(session);
+    	boolean isQueued;
+    	if (queue.isBinaryFormat()){
+    		isQueued = queue.send(isTrusty? msg.getFullBinary() : msg.getSafeBinary());
+    	}else{
+    		isQueued = queue.send(isTrusty? msg.getFull() : msg.getSafe());
+    	}
+    	if (isQueued){
+    		timeOfLastBroadcast = System.currentTimeMillis();
+    	}
+    }
+    
+    /**
+     * Serialized versions of a message (safe/full, JSON/binary), built on first use and then shared by all receivers of one broadcast.
+     * The message must not be modified while the broadcast is running.
+     */
+    private static class RenderedMessage {
+    	private final SocketMessage msg;
+    	private JSONObject safeMsg;
+    	private String safeJson;
+    	private String fullJson;
+    	private byte[] safeBinary;
+    	private byte[] fullBinary;
+    	
+    	RenderedMessage(SocketMessage msg){
+    		this.msg = msg;
+    	}
+    	
+    	//message without credentials and parameters
+    	private JSONObject getSafeMessage(){
+    		if (safeMsg == null){
+    			safeMsg = makeSafeMessage(msg);
+    		}
+    		return safeMsg;
+    	}
+    	String getSafe(){
+    		if (safeJson == null){
+    			safeJson = SocketMessageCodec.writeSafeMessage(msg);
+    		}
+    		return safeJson;
+    	}
+    	byte[] getSafeBinary(){
+    		if (safeBinary == null){
+    			safeBinary = SocketMessageCbor.write(getSafeMessage());
+    		}
+    		return safeBinary;
+    	}
+    	//full message for trusty receivers
+    	String getFull(){
+    		if (fullJson == null){
+    			fullJson = SocketMessageCodec.writeMessage(msg);
+    		}
+    		return fullJson;
+    	}
+    	byte[] getFullBinary(){
+    		if (fullBinary == null){
+    			fullBinary = SocketMessageCbor.writeMessage(msg);
+    		}
+    		return fullBinary;
+    	}
     }
 
 }
@@ -1,5 +1,8 @@
 package net.b07z.sepia.websockets.server;
+import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.jetty.websocket.api.*;
@@ -14,9 +17,10 @@ import net.b07z.sepia.server.core.tools.JSON;
 import net.b07z.sepia.websockets.common.SocketChannel;
 import net.b07z.sepia.websockets.common.SocketConfig;
 import net.b07z.sepia.websockets.common.SocketMessage;
+import net.b07z.sepia.websockets.common.SocketMessageCbor;
+import net.b07z.sepia.websockets.common.SocketMessageCodec;
 import net.b07z.sepia.websockets.common.SocketMessage.DataType;
 import net.b07z.sepia.websockets.common.SocketMessage.SenderType;
-import net.b07z.sepia.websockets.common.SocketMessage.TextType;
 import net.b07z.sepia.websockets.common.SocketUser;
 import net.b07z.sepia.websockets.common.SocketUserPool;
 /**
@@ -32,11 +36,21 @@ public class SepiaSocketHandler implements SocketServer {
 	static Logger log = LoggerFactory.getLogger(SepiaSocketHandler.class);
 	
     private static AtomicLong nextUserNumber = new AtomicLong(); 	//Assign to username for next connecting user
+    
+    private final ServerMessageHandlerRegistry messageHandlers = new ServerMessageHandlerRegistry(this);	//handlers by dataType
 	
     //Connect
     public void onConnect(Session userSession) throws Exception {
+    	//too many sessions or connections from this address?
+    	if (!SocketAdmissionControl.admitConnection(userSession)){
+    		return;
+    	}
     	//userSession.getPolicy().setIdleTimeout(SocketConfig.IDLE_TIMEOUT);
    		userSession.getPolicy().setAsyncWriteTimeout(SocketConfig.ASYNC_TIMEOUT);
+    	//binary message format requested?
+    	if (SocketConfig.allowBinaryFormat && isBinaryFormatRequested(userSession.getUpgradeRequest())){
+    		SocketOutboundQueue.getQueue(userSession).setBinaryFormat(true);
+    	}
     	//add pending user session
     	SocketUserPool.storePendingSession(userSession);
         //send authentication request back to user
@@ -46,8 +60,27 @@ public class SepiaSocketHandler implements SocketServer {
         broadcastMessage(msg, userSession);
     }
 
+    //check subprotocol or URL parameter 'format'
+    private static boolean isBinaryFormatRequested(UpgradeRequest req){
+    	if (req == null){
+    		return false;
+    	}
+    	List<String> subProtocols = req.getSubProtocols();
+    	if (subProtocols != null && subProtocols.contains(SocketMessageCbor.SUBPROTOCOL)){
+    		return true;
+    	}
+    	Map<String, List<String>> params = req.getParameterMap();
+    	if (params != null){
+    		List<String> format = params.get("format");
+    		return (format != null && format.contains(SocketMessageCbor.FORMAT_NAME));
+    	}
+    	return false;
+    }
+
     //Close
     public void onClose(Session userSession, int statusCode, String reason) {
+    	SocketOutboundQueue.removeQueue(userSession);
+    	SocketInboundRateLimiter.removeSession(userSession);
     	SocketUser user = getUserBySession(userSession);
     	if (user != null){
     		removeUser(user);
@@ -68,29 +101,70 @@ public class SepiaSocketHandler implements SocketServer {
     	//TODO: implement
     }
 
+    //Pong
+    public void onPong(Session userSession, ByteBuffer payload) {
+    	SepiaClientPingHandler.handlePong(userSession, payload);
+    }
+
+    //Binary message
+    public void onBinaryMessage(Session userSession, byte[] buffer, int offset, int length) {
+    	if (!SocketConfig.allowBinaryFormat){
+    		log.error("Binary message ignored - binary format is not allowed.");
+    		return;
+    	}
+    	SocketUser user = getUserBySession(userSession);
+    	if (!isAllowedByRateLimit(userSession, user, length)){
+    		return;
+    	}
+    	SocketMessage msg;
+    	try{
+    		msg = SocketMessageCbor.readMessage(buffer, offset, length);
+    	}catch (Exception e){
+    		log.error("Invalid binary message: " + e.getMessage());
+    		return;
+    	}
+    	//decoded message - same validation as text messages
+    	handleMessage(userSession, user, SocketMessageCodec.getHeader(msg), null, msg);
+    }
+
     //Message
     public void onMessage(Session userSession, String message) {
     	//System.out.println(message); 		//DEBUG
-    	SocketMessage msg;
+    	SocketUser user = getUserBySession(userSession);
+    	if (!isAllowedByRateLimit(userSession, user, message.length())){
+    		return;
+    	}
+    	SocketMessageCodec.Header header;
+    	try{
+    		//pre-scan routing info only - the full message is read after validation
+    		header = SocketMessageCodec.readHeader(message);
+    	}catch (Exception e){
+    		log.error("Invalid message: " + e.getMessage());
+    		return;
+    	}
+    	handleMessage(userSession, user, header, message, null);
+    }
+    
+    //rate limits of session (assistant is trusted) - checked before we parse anything
+    private static boolean isAllowedByRateLimit(Session userSession, SocketUser user, int size){
+    	boolean isAssistant = (user != null && user.getUserRole().equals(Role.assistant));
+    	return (isAssistant || SocketInboundRateLimiter.allowMessage(userSession, size));
+    }
+    
+    /**
+     * Validate and handle a message.
+     * @param userSession - session of sender
+     * @param user - user of session or null (not authenticated)
+     * @param header - routing info of message
+     * @param message - message as JSON string (read when needed) or null if 'msg' is given
+     * @param msg - already decoded message or null
+     */
+    private void handleMessage(Session userSession, SocketUser user, SocketMessageCodec.Header header, String message, SocketMessage msg){
 		try {
-			msg = SocketMessage.importJSON(message);
-			boolean msgHasData = (msg.data != null && !msg.data.isEmpty());
+			boolean msgHasData = header.hasData;
 			String dataType = "";
 			if (msgHasData){
-				dataType = (String) msg.data.get("dataType");	//TODO: dataType might be missing here
-			}
-			
-			SocketUser user = getUserBySession(userSession);
-			
-			//IMPORTANT: Make sure the sender is what he pretends to be
-			if (user == null){
-				msg.sender = "";
-			}else{
-				msg.sender = user.getUserId();
-			}
-			if (msg.senderType != null && msg.senderType.equals(SenderType.server.name()) && !msg.sender.equals(SocketConfig.SERVERNAME)){
-				msg.senderType = null; 		//don't allow fake SERVER senderType
-				//TODO: senderType could be confused with values of "dataType" like "assistAnswer" etc. ... 
+				dataType = header.dataType;		//TODO: dataType might be missing here
 			}
 			
 			//Validate user data
@@ -111,7 +185,10 @@ public class SepiaSocketHandler implements SocketServer {
 							userDataAccepted = true;
 						}else{
 							//... and we accept remote actions when target is source (e.g. device-to-device msg)
-							String remoteUserId = (String) msg.data.get("remoteUserId");
+							if (msg == null){
+								msg = SocketMessageCodec.readMessage(message);
+							}
+							String remoteUserId = (String) msg.getData().get("remoteUserId");
 							if (Is.notNullOrEmpty(remoteUserId) && remoteUserId.equals(user.getUserId())){
 								userDataAccepted = true;
 							}else{
@@ -137,114 +214,87 @@ public class SepiaSocketHandler implements SocketServer {
 			
 			//Validate channel
 			boolean channelAccepted = false;
-			String channelId = msg.channelId;
-			if (channelId == null || channelId.isEmpty()){
-				//white-list actions that are possible without channel
-				if (msgHasData && (
-							dataType.equals(DataType.joinChannel.name()) 
-						|| 	dataType.equals(DataType.authenticate.name())
-						|| 	dataType.equals(DataType.ping.name())
-						)){
-					channelAccepted = true;
-				}
-			}else if (channelId.equals("<auto>")){
-				//get active channel
-				if (user != null){
-					//do we have a user that can be in any channel? Then get the receiver active channel
-					if (user.isOmnipresent()){
-						SocketUser rec = SocketUserPool.getActiveUserById(msg.receiver);
-						if (rec != null){
-							channelId = rec.getActiveChannel(); //TODO: does it make sense to broadcast this to all users with this ID not only active?
-							msg.channelId = channelId;			//refresh
-							channelAccepted = true;
-						}
-					}else{
-						channelId = user.getActiveChannel();	//Note: I wonder what happens when the user is the assistant that is active in all channels?
-						msg.channelId = channelId;				//refresh
-						//check this channel here or assume that all "active channels" really exist and the user is allowed to use it?
+			String channelId = header.channelId;
+			if (userDataAccepted){
+				if (channelId == null || channelId.isEmpty()){
+					//white-list actions that are possible without channel
+					if (msgHasData && (
+								dataType.equals(DataType.joinChannel.name()) 
+							|| 	dataType.equals(DataType.authenticate.name())
+							|| 	dataType.equals(DataType.ping.name())
+							)){
 						channelAccepted = true;
 					}
-				}
-			}else{
-				//validate channel - TODO: this procedure has potential to fail when channel operations are not in sync with user, I'm sure, I think, maybe ... ^^ 
-				//user must exists if a message should be sent to channel
-				if (user != null){
-					SocketChannel testSc = SocketChannelPool.getChannel(channelId);
-					//channel exists?
-					if (testSc != null){
-						//user is active in this channel?
-						if (!user.getActiveChannel().equals(channelId)){
-							if (testSc.isUserMemberOfChannel(user)){
-								//user.setActiveChannel(channelId); 		//do this here?
+				}else if (channelId.equals("<auto>")){
+					//get active channel
+					if (user != null){
+						//do we have a user that can be in any channel? Then get the receiver active channel
+						if (user.isOmnipresent()){
+							SocketUser rec = SocketUserPool.getActiveUserById(header.receiver);
+							if (rec != null){
+								channelId = rec.getActiveChannel(); //TODO: does it make sense to broadcast this to all users with this ID not only active?
 								channelAccepted = true;
 							}
 						}else{
+							channelId = user.getActiveChannel();	//Note: I wonder what happens when the user is the assistant that is active in all channels?
+							//check this channel here or assume that all "active channels" really exist and the user is allowed to use it?
 							channelAccepted = true;
 						}
 					}
+				}else{
+					//validate channel - TODO: this procedure has potential to fail when channel operations are not in sync with user, I'm sure, I think, maybe ... ^^ 
+					//user must exists if a message should be sent to channel
+					if (user != null){
+						SocketChannel testSc = SocketChannelPool.getChannel(channelId);
+						//channel exists?
+						if (testSc != null){
+							//user is active in this channel?
+							if (!user.getActiveChannel().equals(channelId)){
+								if (testSc.isUserMemberOfChannel(user)){
+									//user.setActiveChannel(channelId); 		//do this here?
+									channelAccepted = true;
+								}
+							}else{
+								channelAccepted = true;
+							}
+						}
+					}
 				}
 			}
 			
 			//Validation summary
 			boolean isValidMessage = userDataAccepted && channelAccepted;
 			if (!isValidMessage){
-				log.info("Message failed the 'SocketUser' or 'channelId' test! - Message (safe): " 
-						+ SepiaSocketBroadcaster.makeSafeMessage(msg).toJSONString());
+				//drop without reading the rest of the message
+				log.info("Message failed the 'SocketUser' or 'channelId' test! - Message header: " + header.toString()
+						+ " - user: " + ((user != null)? user.getUserId() : "unknown"));
+				return;
 			}
 			//if we reach this point it means: a) we have a valid user and channel or b) we don't need them
 			
+			//read full message
+			if (msg == null){
+				msg = SocketMessageCodec.readMessage(message);
+			}
+			msg.channelId = channelId;		//refresh (e.g. '<auto>')
+			
+			//IMPORTANT: Make sure the sender is what he pretends to be
+			if (user == null){
+				msg.sender = "";
+			}else{
+				msg.sender = user.getUserId();
+			}
+			if (msg.senderType != null && msg.senderType.equals(SenderType.server.name()) && !msg.sender.equals(SocketConfig.SERVERNAME)){
+				msg.senderType = null; 		//don't allow fake SERVER senderType
+				//TODO: senderType could be confused with values of "dataType" like "assistAnswer" etc. ... 
+			}
+			
 			//check data
 			if (isValidMessage && msgHasData){
-				
-				//simply broadcast
-				if (dataType == null 
-						|| dataType.equals(DataType.openText.name())
-						|| dataType.equals(DataType.assistAnswer.name())
-						|| dataType.equals(DataType.assistFollowUp.name())
-						|| dataType.equals(DataType.directCmd.name())
-						){
-					broadcastMessage(user, msg);
-					
-				//error broadcast
-				}else if (dataType.equals(DataType.errorMessage.name())){
-					msg.textType = TextType.status.name(); 			//force status text
-					broadcastMessage(user, msg);
-				
-				//broadcast default welcome and byebye
-				/* -- has been disabled, for now only server is allowed to send it --
-				}else if (dataType.equals(DataType.welcome.name())){
-					String senderName = (String) msg.data.get("username");
-					SocketMessage msgWelcome = makeServerStatusMessage(msgId, channelId, 
-							(((senderName != null)? senderName : "???") + " (" + msg.sender + ") joined the chat"), 
-							DataType.welcome, true);
-			        broadcastMessage(msgWelcome);
-			    */
-					
-				//ping request or reply
-				}else if (dataType.equals(DataType.ping.name())){
-					ServerMessageHandler smh = new SepiaClientPingHandler(this);
-					smh.handle(userSession, msg);
-			        
-				//authenticate
-				}else if (dataType.equals(DataType.authenticate.name())){
-					ServerMessageHandler smh = new SepiaAuthenticationHandler(this);
-					smh.handle(userSession, msg);
-					
-				//join channel
-				}else if (dataType.equals(DataType.joinChannel.name())){
-					ServerMessageHandler smh = new SepiaChannelJoinHandler(this);
+				ServerMessageHandler smh = messageHandlers.get(dataType);
+				if (smh != null){
 					smh.handle(userSession, msg);
-					
-				//update data (request)
-				}else if (dataType.equals(DataType.updateData.name())){
-					ServerMessageHandler smh = new SepiaUpdateDataHandler(this);
-					smh.handle(userSession, msg);
-									
-			    //broadcast remote action - note: a remote action needs to be validated by an assistant (see checks above)
-				}else if (dataType.equals(DataType.remoteAction.name())){
-					ServerMessageHandler smh = new SepiaRemoteActionHandler(this);
-					smh.handle(userSession, msg);
-			        
+				
 				//unknown dataTypes
 				}else{
 					log.error(DateTime.getLogDate() + " ERROR - " + this.getClass().getName() + " - unhandled message dataType: " + dataType);
@@ -252,6 +302,10 @@ public class SepiaSocketHandler implements SocketServer {
 			
 			//all others are simply broadcasted
 			}else if (isValidMessage){
+				//rate limit of channel to protect all members from flooding
+				if (!SocketInboundRateLimiter.allowChannelBroadcast(userSession, user, msg)){
+					return;
+				}
 				broadcastMessage(user, msg);
 			}
 			
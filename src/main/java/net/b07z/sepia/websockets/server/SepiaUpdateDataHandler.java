@@ -38,9 +38,9 @@ public class SepiaUpdateDataHandler implements ServerMessageHandler {
 		SocketUser user = server.getUserBySession(userSession);
 		
 		//Send data 
-		//System.out.println(msg.data.toJSONString()); 				//DEBUG
-		String updateData = JSON.getString(msg.data, "updateData");
-		//JSONObject data = JSON.getJObject(msg.data, "data");
+		//System.out.println(msg.getData().toJSONString()); 				//DEBUG
+		String updateData = JSON.getString(msg.getData(), "updateData");
+		//JSONObject data = JSON.getJObject(msg.getData(), "data");
 	
 		//Missed channel messages set
 		if (updateData.equals("missedChannelMessage")){
@@ -58,7 +58,7 @@ public class SepiaUpdateDataHandler implements ServerMessageHandler {
 			
 		//userOrDeviceInfo
 		}else if (updateData.equals("userOrDeviceInfo")){
-			JSONObject data = JSON.getJObject(msg.data, "data");
+			JSONObject data = JSON.getJObject(msg.getData(), "data");
 			if (data != null){
 				//we only store white-listed items - compare: 'SocketUser#getUserListEntry'
 				if (data.containsKey("deviceLocalSite")){
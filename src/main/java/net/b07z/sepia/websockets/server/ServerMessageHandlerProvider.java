@@ -0,0 +1,26 @@
+package net.b07z.sepia.websockets.server;
+
+import java.util.Collection;
+
+/**
+ * Plug-in interface to add {@link ServerMessageHandler}s for custom (or built-in) data types without changing the server.<br>
+ * Implementations are found via {@link java.util.ServiceLoader}, i.e. list the class name in
+ * 'META-INF/services/net.b07z.sepia.websockets.server.ServerMessageHandlerProvider' of your JAR.
+ * 
+ * @author Florian Quirin
+ */
+public interface ServerMessageHandlerProvider {
+	
+	/**
+	 * Values of 'data.dataType' handled by this provider. Names of built-in {@link net.b07z.sepia.websockets.common.SocketMessage.DataType}s 
+	 * will replace the default handler.
+	 */
+	public Collection<String> getDataTypes();
+	
+	/**
+	 * Create the handler. This is called once during server start and the handler is used for all messages, so it must be thread-safe.
+	 * @param server - server for broadcasting and user handling
+	 */
+	public ServerMessageHandler createHandler(SocketServer server);
+
+}
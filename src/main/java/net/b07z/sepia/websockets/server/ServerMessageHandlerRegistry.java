@@ -0,0 +1,101 @@
+package net.b07z.sepia.websockets.server;
+
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.websockets.common.SocketUser;
+import net.b07z.sepia.websockets.common.SocketMessage.DataType;
+import net.b07z.sepia.websockets.common.SocketMessage.TextType;
+
+/**
+ * Registry of {@link ServerMessageHandler}s by 'data.dataType'. Each handler is created once per server and shared by all messages.<br>
+ * Additional handlers are loaded via {@link ServerMessageHandlerProvider}.
+ * 
+ * @author Florian Quirin
+ */
+public class ServerMessageHandlerRegistry {
+	
+	static Logger log = LoggerFactory.getLogger(ServerMessageHandlerRegistry.class);
+	
+	private final Map<String, ServerMessageHandler> handlers = new ConcurrentHashMap<>();
+	private final ServerMessageHandler defaultHandler;		//for data without dataType
+	
+	/**
+	 * Create registry with default SEPIA handlers and plug-ins found on class-path.
+	 * @param server - server given to handlers for broadcasting and user handling
+	 */
+	public ServerMessageHandlerRegistry(SocketServer server){
+		//simply broadcast (with rate limit of the channel to protect all members from flooding)
+		ServerMessageHandler broadcastHandler = (userSession, msg) -> {
+			SocketUser user = server.getUserBySession(userSession);
+			if (SocketInboundRateLimiter.allowChannelBroadcast(userSession, user, msg)){
+				server.broadcastMessage(user, msg);
+			}
+		};
+		this.defaultHandler = broadcastHandler;
+		register(DataType.openText.name(), broadcastHandler);
+		register(DataType.assistAnswer.name(), broadcastHandler);
+		register(DataType.assistFollowUp.name(), broadcastHandler);
+		register(DataType.directCmd.name(), broadcastHandler);
+		
+		//error broadcast
+		register(DataType.errorMessage.name(), (userSession, msg) -> {
+			msg.textType = TextType.status.name(); 			//force status text
+			SocketUser user = server.getUserBySession(userSession);
+			if (SocketInboundRateLimiter.allowChannelBroadcast(userSession, user, msg)){
+				server.broadcastMessage(user, msg);
+			}
+		});
+		
+		//NOTE: welcome and byebye are sent by the server only
+		
+		register(DataType.ping.name(), new SepiaClientPingHandler(server));
+		register(DataType.authenticate.name(), new SepiaAuthenticationHandler(server));
+		register(DataType.joinChannel.name(), new SepiaChannelJoinHandler(server));
+		register(DataType.updateData.name(), new SepiaUpdateDataHandler(server));
+		//note: a remote action needs to be validated by an assistant (see checks in 'onMessage')
+		register(DataType.remoteAction.name(), new SepiaRemoteActionHandler(server));
+		
+		//plug-ins
+		try{
+			for (ServerMessageHandlerProvider provider : ServiceLoader.load(ServerMessageHandlerProvider.class)){
+				ServerMessageHandler smh = provider.createHandler(server);
+				for (String dataType : provider.getDataTypes()){
+					if (handlers.containsKey(dataType)){
+						log.info("Message handler for dataType '" + dataType + "' replaced by: " + provider.getClass().getName());
+					}else{
+						log.info("Message handler for dataType '" + dataType + "' added by: " + provider.getClass().getName());
+					}
+					register(dataType, smh);
+				}
+			}
+		}catch (ServiceConfigurationError e){
+			log.error("Failed to load message handler plug-ins: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Register or replace handler for a dataType.
+	 */
+	public void register(String dataType, ServerMessageHandler handler){
+		handlers.put(dataType, handler);
+	}
+	
+	/**
+	 * Get handler for dataType.
+	 * @param dataType - value of 'data.dataType' or null
+	 * @return handler or null if dataType is unknown
+	 */
+	public ServerMessageHandler get(String dataType){
+		if (dataType == null){
+			return defaultHandler;
+		}else{
+			return handlers.get(dataType);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package net.b07z.sepia.websockets.server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.UpgradeRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.websockets.common.SocketConfig;
+import net.b07z.sepia.websockets.common.SocketUser;
+import net.b07z.sepia.websockets.common.SocketUserPool;
+
+/**
+ * Admission control for new connections and authentications to protect the server from reconnect storms
+ * (e.g. many clients reconnecting at the same time or a buggy client that reconnects in a loop).<br>
+ * Limits:<br>
+ * - total number of sessions (authenticated and pending) - checked on connect<br>
+ * - new connections per second for each remote address (token bucket) - checked on connect<br>
+ * - sessions per user (different devices) - checked on authentication<br>
+ * Rejected sessions are closed with {@link StatusCode#TRY_AGAIN_LATER} and a reason that contains a retry hint: 'retryAfterMs=...'.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class SocketAdmissionControl {
+
+	static Logger log = LoggerFactory.getLogger(SocketAdmissionControl.class);
+
+	private static SocketLruCache<String, SocketTokenBucket> connectBucketsByAddress = new SocketLruCache<>(
+			SocketConfig.admissionMaxTrackedAddresses, 0, null, null
+	);
+
+	//statistics
+	private static AtomicLong rejectedByServerLimit = new AtomicLong(0);
+	private static AtomicLong rejectedByAddressRate = new AtomicLong(0);
+	private static AtomicLong rejectedByUserLimit = new AtomicLong(0);
+
+	/**
+	 * Check if a new connection is allowed and close it if not.
+	 * @param userSession - new session
+	 * @return true if connection is allowed, false if it was closed
+	 */
+	public static boolean admitConnection(Session userSession){
+		//server limit
+		if (SocketConfig.admissionMaxSessions > 0){
+			int sessions = SocketUserPool.getAllUsers().size() + SocketUserPool.getAllPendingSessions().size();
+			if (sessions >= SocketConfig.admissionMaxSessions){
+				rejectedByServerLimit.incrementAndGet();
+				reject(userSession, "Server reached max. number of sessions", getRetryAfterMs(0));
+				return false;
+			}
+		}
+		//connection rate of remote address
+		if (SocketConfig.admissionConnectsPerSecondPerAddress > 0){
+			String address = getRemoteAddress(userSession);
+			if (address != null){
+				SocketTokenBucket bucket = connectBucketsByAddress.get(address);
+				if (bucket == null){
+					SocketTokenBucket newBucket = new SocketTokenBucket(
+							SocketConfig.admissionConnectsPerSecondPerAddress, SocketConfig.admissionConnectBurstPerAddress
+					);
+					bucket = connectBucketsByAddress.putIfAbsent(address, newBucket);
+					if (bucket == null){
+						bucket = newBucket;
+					}
+				}
+				if (!bucket.tryAcquire(1)){
+					rejectedByAddressRate.incrementAndGet();
+					reject(userSession, "Too many connections from your address", getRetryAfterMs(bucket.getWaitMs(1)));
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check if an authenticated user is allowed to have another session and close it if not.
+	 * Sessions with the same device ID don't count because the new one replaces the old one.
+	 * @param userSession - session of the user
+	 * @param userId - authenticated user ID
+	 * @param deviceId - device ID or null
+	 * @return true if allowed, false if session was closed
+	 */
+	public static boolean admitUser(Session userSession, String userId, String deviceId){
+		if (SocketConfig.admissionMaxSessionsPerUser <= 0){
+			return true;
+		}
+		int sessions = 0;
+		for (SocketUser su : SocketUserPool.getAllUsersById(userId)){
+			if (su.getUserSession() != userSession && (deviceId == null || !deviceId.equalsIgnoreCase(su.getDeviceId()))){
+				sessions++;
+			}
+		}
+		if (sessions >= SocketConfig.admissionMaxSessionsPerUser){
+			rejectedByUserLimit.incrementAndGet();
+			log.info("User '" + userId + "' reached max. number of sessions (" + sessions + ") - rejected device: " + deviceId);
+			reject(userSession, "Max. number of sessions for this account reached", getRetryAfterMs(0));
+			return false;
+		}
+		return true;
+	}
+
+	//close with code and retry hint
+	private static void reject(Session userSession, String reason, long retryAfterMs){
+		SocketUserPool.removePendingSession(userSession);
+		try{
+			userSession.close(StatusCode.TRY_AGAIN_LATER, reason + " - retryAfterMs=" + retryAfterMs);
+		}catch (Exception e){
+			log.error("Failed to close rejected session: " + e.getMessage());
+		}
+	}
+
+	//base delay (or the given minimum) plus random part so that rejected clients don't come back at the same time
+	private static long getRetryAfterMs(long minMs){
+		long base = Math.max(minMs, SocketConfig.admissionRetryAfterMs);
+		return base + ThreadLocalRandom.current().nextLong(Math.max(1, base));
+	}
+
+	private static String getRemoteAddress(Session userSession){
+		if (SocketConfig.admissionUseForwardedFor){
+			UpgradeRequest req = userSession.getUpgradeRequest();
+			List<String> forwardedFor = (req != null)? req.getHeaders("X-Forwarded-For") : null;
+			if (forwardedFor != null && !forwardedFor.isEmpty()){
+				//every proxy appends the address it got the request from, so only the last entries are trustworthy
+				//(the client can send any value to start with) - take the address the outermost trusted proxy saw
+				List<String> addresses = new ArrayList<>();
+				for (String header : forwardedFor){
+					for (String a : header.split(",")){
+						if (!a.trim().isEmpty()){
+							addresses.add(a.trim());
+						}
+					}
+				}
+				if (!addresses.isEmpty()){
+					int hops = Math.max(1, SocketConfig.admissionTrustedProxyHops);
+					return addresses.get(Math.max(0, addresses.size() - hops));
+				}
+			}
+		}
+		InetSocketAddress remote = userSession.getRemoteAddress();
+		if (remote == null){
+			return null;
+		}
+		return (remote.getAddress() != null)? remote.getAddress().getHostAddress() : remote.getHostString();
+	}
+
+	//--- statistics ---
+
+	/**
+	 * Statistics as HTML lines (for {@link Statistics}).
+	 */
+	public static String getStatistics(){
+		return "Rejected connections (server limit): " + rejectedByServerLimit.get() + "<br>" +
+				"Rejected connections (address rate): " + rejectedByAddressRate.get() + "<br>" +
+				"Rejected sessions (user limit): " + rejectedByUserLimit.get() + "<br>" +
+				"Tracked addresses: " + connectBucketsByAddress.size() + "<br>";
+	}
+}
@@ -0,0 +1,280 @@
+package net.b07z.sepia.websockets.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.server.RequestParameters;
+import net.b07z.sepia.server.core.tools.Is;
+import net.b07z.sepia.server.core.tools.Security;
+import net.b07z.sepia.server.core.users.Account;
+import net.b07z.sepia.server.core.users.SharedAccessItem;
+import net.b07z.sepia.websockets.client.SepiaSocketClient;
+import net.b07z.sepia.websockets.common.SocketConfig;
+
+/**
+ * Short-lived cache of successful authentications (Assist-API) so that many reconnects with the same credentials
+ * (e.g. after a network problem) don't create one API call each.<br>
+ * Entries are stored with a hash of the credentials (never the credentials themselves), are only valid for the same client info
+ * and expire after {@link SocketConfig#authCacheTtlMs}. Identical requests that come in while an authentication is running wait for its result.
+ * A failed authentication removes the entry, so does a rejection of the same credentials by another endpoint of this server
+ * (see {@link #authenticateUncached(Account, RequestParameters)}). A token that was revoked somewhere else can be used until the entry expires.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class SocketAuthenticationCache {
+
+	static Logger log = LoggerFactory.getLogger(SocketAuthenticationCache.class);
+
+	private static final int AUTH_ERROR_REJECTED = 2;		//Assist-API was reached and rejected the credentials
+
+	/**
+	 * Result of an authentication. Immutable copy of the account data used by the server, results are shared by all sessions
+	 * that use the same cache entry.
+	 */
+	public static class Result {
+		private final boolean isAuthenticated;
+		private final boolean isFromCache;
+		private final int authErrorCode;
+		private final String userId;
+		private final String userNameShort;
+		private final List<String> userRoles;
+		private final Map<String, List<SharedAccessItem>> sharedAccess;
+
+		private Result(Account account, boolean isAuthenticated){
+			this.isAuthenticated = isAuthenticated;
+			this.isFromCache = false;
+			this.authErrorCode = account.getAuthErrorCode();
+			if (isAuthenticated){
+				this.userId = account.getUserID();
+				this.userNameShort = account.getUserNameShort();
+				this.userRoles = (account.getUserRoles() != null)? 
+						Collections.unmodifiableList(new ArrayList<>(account.getUserRoles())) : Collections.emptyList();
+				Map<String, List<SharedAccessItem>> sa = account.getSharedAccess();
+				if (sa != null){
+					Map<String, List<SharedAccessItem>> saCopy = new HashMap<>();
+					for (Map.Entry<String, List<SharedAccessItem>> e : sa.entrySet()){
+						saCopy.put(e.getKey(), (e.getValue() != null)? Collections.unmodifiableList(new ArrayList<>(e.getValue())) : null);
+					}
+					this.sharedAccess = Collections.unmodifiableMap(saCopy);
+				}else{
+					this.sharedAccess = null;
+				}
+			}else{
+				this.userId = null;
+				this.userNameShort = null;
+				this.userRoles = Collections.emptyList();
+				this.sharedAccess = null;
+			}
+		}
+		private Result(Result res, boolean isFromCache){
+			this.isAuthenticated = res.isAuthenticated;
+			this.isFromCache = isFromCache;
+			this.authErrorCode = res.authErrorCode;
+			this.userId = res.userId;
+			this.userNameShort = res.userNameShort;
+			this.userRoles = res.userRoles;
+			this.sharedAccess = res.sharedAccess;
+		}
+		
+		public boolean isAuthenticated(){
+			return isAuthenticated;
+		}
+		public boolean isFromCache(){
+			return isFromCache;
+		}
+		/**
+		 * Error code of a failed authentication (see {@link Account#getAuthErrorCode()}).
+		 */
+		public int getAuthErrorCode(){
+			return authErrorCode;
+		}
+		public String getUserId(){
+			return userId;
+		}
+		public String getUserNameShort(){
+			return userNameShort;
+		}
+		public List<String> getUserRoles(){
+			return userRoles;
+		}
+		public boolean hasRole(String role){
+			return userRoles.contains(role);
+		}
+		/**
+		 * Shared access of the account (read-only) or null.
+		 */
+		public Map<String, List<SharedAccessItem>> getSharedAccess(){
+			return sharedAccess;
+		}
+	}
+
+	private static class Entry {
+		final Result result;
+		final String clientInfo;
+		final long expiresAt;
+		Entry(Result result, String clientInfo, long expiresAt){
+			this.result = result;
+			this.clientInfo = clientInfo;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static SocketLruCache<String, Entry> cache = new SocketLruCache<>(SocketConfig.authCacheMaxEntries, 0, null, null);
+	private static Map<String, CompletableFuture<Result>> runningAuthentications = new ConcurrentHashMap<>();
+
+	//statistics
+	private static AtomicLong apiCalls = new AtomicLong(0);
+	private static AtomicLong sharedCalls = new AtomicLong(0);
+	private static AtomicLong expiredEntries = new AtomicLong(0);
+	private static AtomicLong invalidatedEntries = new AtomicLong(0);
+
+	/**
+	 * Authenticate with cached result or call the Assist-API via {@link Account#authenticate(RequestParameters)}.
+	 * @param params - request parameters including credentials
+	 * @param credentials - credentials string (e.g. "userId;token") used to build the cache key
+	 * @param clientInfo - client info (tokens are client specific) or null
+	 * @return {@link Result}
+	 */
+	public static Result authenticate(RequestParameters params, String credentials, String clientInfo){
+		if (SocketConfig.authCacheTtlMs <= 0){
+			return callApi(params);
+		}
+		String key = getKey(credentials);
+		if (key == null){
+			return callApi(params);
+		}
+		Result cachedResult = getValidEntry(key, clientInfo);
+		if (cachedResult != null){
+			return cachedResult;
+		}
+		//only one API call for the same credentials and client at the same time
+		String runningKey = key + ";" + clientInfo;
+		CompletableFuture<Result> newAuth = new CompletableFuture<>();
+		CompletableFuture<Result> runningAuth = runningAuthentications.putIfAbsent(runningKey, newAuth);
+		if (runningAuth != null){
+			sharedCalls.incrementAndGet();
+			try{
+				return new Result(runningAuth.get(), true);
+			}catch (Exception ex){
+				log.error("authenticate - failed to wait for running authentication: " + ex.getMessage());
+				return callApi(params);
+			}
+		}
+		Result res = null;
+		try{
+			res = callApi(params);
+			if (res.isAuthenticated){
+				//NOTE: tokens are client specific, a different client replaces the entry
+				cache.put(key, new Entry(res, clientInfo, System.currentTimeMillis() + SocketConfig.authCacheTtlMs));
+			}else{
+				cache.remove(key);
+			}
+			return res;
+		}finally{
+			if (res != null){
+				newAuth.complete(res);
+			}else{
+				newAuth.completeExceptionally(new IllegalStateException("authentication failed with error"));
+			}
+			runningAuthentications.remove(runningKey, newAuth);
+		}
+	}
+
+	/**
+	 * Get cached successful authentication without calling the API.
+	 * @param credentials - credentials string (see {@link #authenticate(RequestParameters, String, String)})
+	 * @param clientInfo - client info or null
+	 * @return {@link Result} or null (not cached or expired)
+	 */
+	public static Result getCachedResult(String credentials, String clientInfo){
+		if (SocketConfig.authCacheTtlMs <= 0){
+			return null;
+		}
+		String key = getKey(credentials);
+		if (key == null){
+			return null;
+		}
+		return getValidEntry(key, clientInfo);
+	}
+
+	/**
+	 * Authenticate a request via {@link Account#authenticate(RequestParameters)} (without cache, e.g. for HTTP endpoints).
+	 * If the Assist-API rejects the credentials the cached authentication of the same credentials is removed.
+	 * @param userAccount - account to authenticate
+	 * @param params - request parameters including credentials
+	 * @return true if authenticated
+	 */
+	public static boolean authenticateUncached(Account userAccount, RequestParameters params){
+		boolean isAuthenticated = userAccount.authenticate(params);
+		if (!isAuthenticated && userAccount.getAuthErrorCode() == AUTH_ERROR_REJECTED){
+			String credentials = params.getString(SepiaSocketClient.CREDENTIALS_KEY);
+			if (Is.notNullOrEmpty(credentials)){
+				invalidate(credentials);
+			}
+		}
+		return isAuthenticated;
+	}
+
+	/**
+	 * Remove cached authentication (all clients), e.g. if the account was rejected somewhere else.
+	 * @param credentials - credentials string used for {@link #authenticate(RequestParameters, String, String)}
+	 */
+	public static void invalidate(String credentials){
+		String key = getKey(credentials);
+		if (key != null && cache.remove(key) != null){
+			invalidatedEntries.incrementAndGet();
+		}
+	}
+
+	private static Result getValidEntry(String key, String clientInfo){
+		Entry e = cache.get(key);
+		if (e == null){
+			return null;
+		}
+		if (e.expiresAt <= System.currentTimeMillis()){
+			cache.remove(key);
+			expiredEntries.incrementAndGet();
+			return null;
+		}
+		return Objects.equals(e.clientInfo, clientInfo)? new Result(e.result, true) : null;
+	}
+
+	private static Result callApi(RequestParameters params){
+		apiCalls.incrementAndGet();
+		Account userAccount = new Account();
+		boolean isAuthenticated = userAccount.authenticate(params);
+		return new Result(userAccount, isAuthenticated);
+	}
+
+	//hash of credentials
+	private static String getKey(String credentials){
+		try{
+			return Security.bytearrayToHexString(Security.getSha256(credentials));
+		}catch (Exception e){
+			log.error("getKey - failed to create hash: " + e.getMessage());
+			return null;
+		}
+	}
+
+	//--- statistics ---
+
+	/**
+	 * Cache statistics as HTML lines (for {@link Statistics}).
+	 */
+	public static String getCacheStatistics(){
+		return "Cached authentications: " + cache.size() + "<br>" +
+				"Auth. cache hits/misses/expired/invalidated: " + cache.getHits() + "/" + cache.getMisses() + "/" + expiredEntries.get() + "/" + invalidatedEntries.get() + "<br>" +
+				"Auth. API calls: " + apiCalls.get() + " (shared: " + sharedCalls.get() + ")<br>";
+	}
+}
@@ -4,11 +4,13 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -34,39 +36,130 @@ public class SocketChannelHistory {
 	
 	static Logger log = LoggerFactory.getLogger(SocketChannelHistory.class);
 	
-	private static Map<String, Set<String>> channelsWithMissedMessagesForEachUser = new ConcurrentHashMap<>();
+	//history filter keys for incremental sync (last message the client has)
+	public static final String HISTORY_CURSOR_TIMESTAMP = "lastTimestamp";
+	public static final String HISTORY_CURSOR_MESSAGE_ID = "lastMessageId";
 	
-	private static Map<String, ConcurrentLinkedQueue<JSONObject>> lastMessagesStoredForEachChannel = new ConcurrentHashMap<>();		//NOTE: this caches ALL messages (below threshold) of ALL channels
-	private static Map<String, AtomicInteger> numMessagesForEachChannel = new ConcurrentHashMap<>(); 	//NOTE: we use this because the size() method is slow
+	//debouncing of missed message DB writes and client notifications
+	private static SocketTimingWheel missedMessagesTimer = new SocketTimingWheel("missed-messages-timer", 250, 64);
+	private static Set<String> usersWithPendingMissedMessagesUpdate = ConcurrentHashMap.newKeySet();
+	private static Set<String> recentMissedMessageNotes = ConcurrentHashMap.newKeySet();
+	
+	//NOTE: both caches are limited (LRU), evicted entries are loaded again from DB when required
+	private static SocketLruCache<String, Set<String>> channelsWithMissedMessagesForEachUser = new SocketLruCache<>(
+			SocketConfig.missedMessagesCacheMaxUsers, 0, null, 
+			(userId, channels) -> !usersWithPendingMissedMessagesUpdate.contains(userId) 	//keep until DB is updated
+				&& !SocketChannelHistoryWriter.hasPendingMissedChannelsUpdate(userId)
+	);
+	private static Map<String, CompletableFuture<Set<String>>> missedChannelsLoads = new ConcurrentHashMap<>();	//loads in progress
+	private static Map<String, Set<String>> pendingMissedChannels = new ConcurrentHashMap<>();	//channels to add when the set of a user is loaded
+	private static Set<String> usersWithScheduledMissedChannelsLoad = ConcurrentHashMap.newKeySet();
+	private static volatile ThreadPoolExecutor missedChannelsLoader;
+	private static SocketLruCache<String, SocketChannelHistoryBuffer> lastMessagesStoredForEachChannel = new SocketLruCache<>(
+			SocketConfig.historyCacheMaxChannels, SocketConfig.historyCacheMaxBytes, SocketChannelHistoryBuffer::getMemorySize, null
+	);
+	private static Map<String, CompletableFuture<SocketChannelHistoryBuffer>> channelHistoryLoads = new ConcurrentHashMap<>();	//loads in progress
 	private static Map<String, Long> lastPolledMessageTimestampsForChannel = new ConcurrentHashMap<>();
 	private static Set<String> channelsScheduledForCleanUp = new ConcurrentSkipListSet<>();
 	
+	//--- Cache statistics ---
+	
+	/**
+	 * Cache statistics of channel histories and missed-message data as HTML lines (for {@link Statistics}).
+	 */
+	public static String getCacheStatistics(){
+		return "Cached channel histories: " + lastMessagesStoredForEachChannel.size() 
+					+ " (~" + (lastMessagesStoredForEachChannel.getWeight() / 1024) + " KB)<br>" +
+				"History cache hits/misses/evictions: " + lastMessagesStoredForEachChannel.getHits() + "/" 
+					+ lastMessagesStoredForEachChannel.getMisses() + "/" + lastMessagesStoredForEachChannel.getEvictions() + "<br>" +
+				"Cached missed-message users: " + channelsWithMissedMessagesForEachUser.size() + "<br>" +
+				"Missed-message cache hits/misses/evictions: " + channelsWithMissedMessagesForEachUser.getHits() + "/" 
+					+ channelsWithMissedMessagesForEachUser.getMisses() + "/" + channelsWithMissedMessagesForEachUser.getEvictions() + "<br>";
+	}
+	
 	//--- Methods for handling channels of specific users that might have missed messages ---
 	
 	/**
-	 * Add a channel to the set of channels that mark missed messages for a specific user.
+	 * Add a channel to the set of channels that mark missed messages for a specific user.<br>
+	 * The DB is updated after {@link SocketConfig#missedMessagesDebounceMs} with all channels marked until then.
 	 * @param userId - ID of user that missed a message
 	 * @param channelId - ID of channel with a missed message 
 	 */
 	public static void addChannelWithMissedMessagesForUser(String userId, String channelId){
+		//NOTE: we need the complete set because the DB entry is overwritten
 		Set<String> channels = channelsWithMissedMessagesForEachUser.get(userId);
 		if (channels == null){
-			channels = new ConcurrentSkipListSet<String>();
-			channelsWithMissedMessagesForEachUser.put(userId, channels);
+			//not loaded - remember channel and load in background (this is usually called by the broadcasting thread)
+			pendingMissedChannels.compute(userId, (k, pending) -> {
+				if (pending == null){
+					pending = ConcurrentHashMap.newKeySet();
+				}
+				pending.add(channelId);
+				return pending;
+			});
+			if (usersWithScheduledMissedChannelsLoad.add(userId)){
+				getMissedChannelsLoader().execute(() -> {
+					usersWithScheduledMissedChannelsLoad.remove(userId);
+					getAllChannelsWithMissedMassegesForUser(userId); 	//adds pending channels
+				});
+			}
+			return;
 		}
+		addChannelsWithMissedMessages(userId, channels, Collections.singleton(channelId));
+	}
+	
+	//add channels to loaded set and schedule DB update if changed
+	private static void addChannelsWithMissedMessages(String userId, Set<String> channels, Set<String> channelIds){
 		//store in DB if changed
-		if (channels.add(channelId)){
-			//don't wait for result (put in new thread)
-			Set<String> channelsNow = new HashSet<>(channels);
-			Thread worker = new Thread(() -> {
-				ChatsDatabase chatsDb = SocketConfig.getDefaultChatsDatabase();
-				int resCode = chatsDb.updateChannelsWithMissedMessagesForUser(userId, channelsNow, false); 	//Note the 'false'
-				if (resCode != 0){
-					log.error("Failed to update channel user data for missed messages - user ID: " + userId + " - Result code: " + resCode);
-					//TODO: retry later
-				}
+		if (channels.addAll(channelIds)){
+			if (SocketConfig.missedMessagesDebounceMs <= 0){
+				//don't wait for result (write-behind queue)
+				SocketChannelHistoryWriter.updateChannelsWithMissedMessagesForUser(userId, new HashSet<>(channels), false); 	//Note the 'false'
+			}else if (usersWithPendingMissedMessagesUpdate.add(userId)){
+				//first change in this time window - write the set as it is at the end of the window
+				scheduleMissedChannelsWrite(userId);
+			}
+		}
+	}
+	private static void scheduleMissedChannelsWrite(String userId){
+		missedMessagesTimer.schedule(SocketConfig.missedMessagesDebounceMs, () -> {
+			//NOTE: we use the current set of the cache (not the one at schedule time, it could have been replaced)
+			Set<String> channels = channelsWithMissedMessagesForEachUser.get(userId);
+			if (channels == null){
+				usersWithPendingMissedMessagesUpdate.remove(userId);
+				return;
+			}
+			//NOTE: the flag is removed after the write is queued so the cache entry can't be evicted in between
+			Set<String> channelsToWrite = new HashSet<>(channels);
+			SocketChannelHistoryWriter.updateChannelsWithMissedMessagesForUser(userId, channelsToWrite, false); 	//Note the 'false'
+			usersWithPendingMissedMessagesUpdate.remove(userId);
+			//changed in the meantime?
+			if (!channelsToWrite.equals(channels) && usersWithPendingMissedMessagesUpdate.add(userId)){
+				scheduleMissedChannelsWrite(userId);
+			}
+		});
+	}
+	
+	/**
+	 * Check if an online user (device) that is not active in a channel should get a 'missedChannelMessage' note now.
+	 * Only the first missed message of a channel in each time window ({@link SocketConfig#missedMessagesDebounceMs}) creates a note.
+	 * @param userId - ID of user
+	 * @param deviceId - ID of user device
+	 * @param channelId - ID of channel with a missed message
+	 * @return true if the note should be sent
+	 */
+	public static boolean shouldSendMissedMessageNote(String userId, String deviceId, String channelId){
+		if (SocketConfig.missedMessagesDebounceMs <= 0){
+			return true;
+		}
+		String key = userId + "\t" + deviceId + "\t" + channelId;
+		if (recentMissedMessageNotes.add(key)){
+			missedMessagesTimer.schedule(SocketConfig.missedMessagesDebounceMs, () -> {
+				recentMissedMessageNotes.remove(key);
 			});
-			worker.start();
+			return true;
+		}else{
+			return false;
 		}
 	}
 	
@@ -78,24 +171,90 @@ public class SocketChannelHistory {
 	public static Set<String> getAllChannelsWithMissedMassegesForUser(String userId){
 		Set<String> channels = channelsWithMissedMessagesForEachUser.get(userId);
 		if (channels == null){
-			//create object first
-			channels = new ConcurrentSkipListSet<String>();
-			channelsWithMissedMessagesForEachUser.put(userId, channels);
-			//check DB if there is any data
-			ChatsDatabase chatsDb = SocketConfig.getDefaultChatsDatabase();
-			JSONObject cwmmResult = chatsDb.getAllChannelsWithMissedMassegesForUser(userId);
-			if (Is.notNullOrEmpty(cwmmResult)){
-				JSONArray channelsToCheck = JSON.getJArray(cwmmResult, "checkChannels");
-				if (Is.notNullOrEmpty(channelsToCheck)){
-					for (Object co : channelsToCheck){
-						channels.add((String) co);
+			channels = getLoadedMissedChannels(userId);
+			if (channels == null){
+				return null;
+			}
+		}
+		//channels that were added while the set was not loaded
+		Set<String> pending = pendingMissedChannels.remove(userId);
+		if (pending != null){
+			addChannelsWithMissedMessages(userId, channels, pending);
+		}
+		return channels;
+	}
+	
+	/**
+	 * Load set of channels with missed messages of a user from DB and put it in the cache when it is complete. 
+	 * Only one load per user runs at the same time, concurrent callers wait for the result.
+	 * @param userId - ID of user
+	 * @return loaded set or null (error)
+	 */
+	private static Set<String> getLoadedMissedChannels(String userId){
+		CompletableFuture<Set<String>> newLoad = new CompletableFuture<>();
+		CompletableFuture<Set<String>> runningLoad = missedChannelsLoads.putIfAbsent(userId, newLoad);
+		if (runningLoad != null){
+			//wait for the other caller
+			try{
+				return runningLoad.get();
+			}catch (Exception e){
+				log.error("getAllChannelsWithMissedMassegesForUser - Failed to wait for data of user '" + userId + "': " + e.getMessage());
+				return null;
+			}
+		}
+		try{
+			//check again - a load might have finished right before we started ours
+			Set<String> channels = channelsWithMissedMessagesForEachUser.get(userId);
+			if (channels == null){
+				Set<String> loaded = new ConcurrentSkipListSet<String>();
+				//check DB if there is any data
+				ChatsDatabase chatsDb = SocketConfig.getDefaultChatsDatabase();
+				JSONObject cwmmResult = chatsDb.getAllChannelsWithMissedMassegesForUser(userId);
+				if (Is.notNullOrEmpty(cwmmResult)){
+					JSONArray channelsToCheck = JSON.getJArray(cwmmResult, "checkChannels");
+					if (Is.notNullOrEmpty(channelsToCheck)){
+						for (Object co : channelsToCheck){
+							loaded.add((String) co);
+						}
 					}
 				}
+				//publish complete set
+				channels = channelsWithMissedMessagesForEachUser.putIfAbsent(userId, loaded);
+				if (channels == null){
+					channels = loaded;
+				}
 			}
+			newLoad.complete(channels);
 			return channels;
-		}else{
-			return channels;
+		}catch (Exception e){
+			Debugger.printStackTrace(e, 3);
+			log.error("getAllChannelsWithMissedMassegesForUser - Failed to load data of user '" + userId + "': " + e.getMessage());
+			newLoad.complete(null);
+			return null;
+		}finally{
+			missedChannelsLoads.remove(userId, newLoad);
+		}
+	}
+	
+	private static ThreadPoolExecutor getMissedChannelsLoader(){
+		if (missedChannelsLoader == null){
+			synchronized (SocketChannelHistory.class){
+				if (missedChannelsLoader == null){
+					AtomicInteger threadNumber = new AtomicInteger(0);
+					ThreadPoolExecutor ex = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, 
+							new LinkedBlockingQueue<>(), 		//NOTE: max. one task per user
+							r -> {
+								Thread t = new Thread(r, "missed-messages-loader-" + threadNumber.getAndIncrement());
+								t.setDaemon(true);
+								return t;
+							}
+					);
+					ex.allowCoreThreadTimeOut(true);
+					missedChannelsLoader = ex;
+				}
+			}
 		}
+		return missedChannelsLoader;
 	}
 	
 	/**
@@ -104,21 +263,10 @@ public class SocketChannelHistory {
 	 * @param channelId - ID of channel to remove
 	 */
 	public static void removeChannelFromMissedMessagesSet(String userId, String channelId){
-		Set<String> channels = channelsWithMissedMessagesForEachUser.get(userId);
-		if (channels != null){
-			channels.remove(channelId);
-			
-			//store in DB - don't wait for result (put in new thread)
-			Set<String> channelsNow = new HashSet<>(channels);
-			Thread worker = new Thread(() -> {
-				ChatsDatabase chatsDb = SocketConfig.getDefaultChatsDatabase();
-				int resCode = chatsDb.updateChannelsWithMissedMessagesForUser(userId, channelsNow, true); 	//Note the 'true'
-				if (resCode != 0){
-					log.error("Failed to update channel user data (remove) for missed messages - user ID: " + userId + " - Result code: " + resCode);
-					//TODO: retry later
-				}
-			});
-			worker.start();
+		Set<String> channels = getAllChannelsWithMissedMassegesForUser(userId);
+		if (channels != null && channels.remove(channelId)){
+			//store in DB - don't wait for result (write-behind queue)
+			SocketChannelHistoryWriter.updateChannelsWithMissedMessagesForUser(userId, new HashSet<>(channels), true); 	//Note the 'true'
 		}
 	}
 
@@ -127,62 +275,54 @@ public class SocketChannelHistory {
 	 * @param userId - ID of user that (potentially) has missed messages
 	 */
 	public static void clearSetOfChannelsWithMissedMessages(String userId){
-		channelsWithMissedMessagesForEachUser.remove(userId);
-		
-		//store in DB
-		ChatsDatabase chatsDb = SocketConfig.getDefaultChatsDatabase();
-		int resCode = chatsDb.updateChannelsWithMissedMessagesForUser(userId, new HashSet<>(), false); 	//'true' or 'false' ?? assuming 'false'
-		if (resCode != 0){
-			log.error("Failed to update channel user data (clear) for missed messages - user ID: " + userId + " - Result code: " + resCode);
-			//TODO: retry later
+		//NOTE: we keep an empty set because the DB is updated later - a loaded set is cleared in place (it might be referenced by a write in progress)
+		pendingMissedChannels.remove(userId);
+		Set<String> channels = channelsWithMissedMessagesForEachUser.get(userId);
+		if (channels != null){
+			channels.clear();
+		}else{
+			channelsWithMissedMessagesForEachUser.put(userId, new ConcurrentSkipListSet<String>());
 		}
+		
+		//store in DB - via write-behind queue to keep the order with previous updates of this user
+		SocketChannelHistoryWriter.updateChannelsWithMissedMessagesForUser(userId, new HashSet<>(), false); 	//'true' or 'false' ?? assuming 'false'
 	}
 	
 	//--- Methods for handling channels content ---
 	
 	/**
-	 * Store a {@link SocketMessage} for a {@link SocketChannel} (via channel ID) as JSON and drop the oldest message when the queue is full.<br>
+	 * Store a {@link SocketMessage} for a {@link SocketChannel} (via channel ID) as JSON and drop the oldest message when the buffer is full.<br>
 	 * NOTE: some content of the message (e.g. credentials) will be removed for security reasons.
 	 * @param channelId - ID of channel
 	 * @param socketMessage - message to store
 	 */
 	public static void addMessageToChannelHistory(String channelId, SocketMessage socketMessage){
 		if (SocketConfig.storeMessagesPerChannel > 0){
-			ConcurrentLinkedQueue<JSONObject> messagesQueue = lastMessagesStoredForEachChannel.get(channelId);
-			AtomicInteger size = numMessagesForEachChannel.get(channelId);
-			if (messagesQueue == null){
-				//init
-				messagesQueue = new ConcurrentLinkedQueue<>();
-				lastMessagesStoredForEachChannel.put(channelId, messagesQueue);
-				size = new AtomicInteger(0);
-				numMessagesForEachChannel.put(channelId, size);
+			SocketChannelHistoryBuffer messagesBuffer = lastMessagesStoredForEachChannel.get(channelId);
+			if (messagesBuffer == null){
+				//not loaded yet (or evicted) - start with new messages, history is added on first read
+				SocketChannelHistoryBuffer newBuffer = new SocketChannelHistoryBuffer(SocketConfig.storeMessagesPerChannel);
+				messagesBuffer = lastMessagesStoredForEachChannel.putIfAbsent(channelId, newBuffer);
+				if (messagesBuffer == null){
+					messagesBuffer = newBuffer;
+				}
 			}
 			//make safe
 			JSONObject msg = SepiaSocketBroadcaster.makeSafeMessage(socketMessage);
-			//add
-			messagesQueue.add(msg);
-			//remove oldest
-			if (size.incrementAndGet() > SocketConfig.storeMessagesPerChannel){
-				JSONObject polledMsg = messagesQueue.poll();
-				size.decrementAndGet();
+			//add (and remove oldest)
+			SocketChannelHistoryBuffer.Entry polledMsg = messagesBuffer.add(socketMessage.timeStampUNIX, socketMessage.msgId, msg.toJSONString());
+			lastMessagesStoredForEachChannel.updateWeight(channelId);
+			if (polledMsg != null){
 				//prepare clean-up
-				long lastPolledTS = JSON.getLongOrDefault(polledMsg, "timeUNIX", -1l) + 1l;		//NOTE: +1 to catch this message as well ;-)
+				long lastPolledTS = polledMsg.getTimeUNIX() + 1l;		//NOTE: +1 to catch this message as well ;-)
 				lastPolledMessageTimestampsForChannel.put(channelId, lastPolledTS);
 				if (channelsScheduledForCleanUp.add(channelId)){
 					scheduleChannelCleanUpIfRequired();
 				}
 			}
 			
-			//store in DB - don't wait for result
-			Thread worker = new Thread(() -> {
-				ChatsDatabase chatsDb = SocketConfig.getDefaultChatsDatabase();
-				int resCode = chatsDb.storeChannelMessage(msg);
-				if (resCode != 0){
-					log.error("Failed to store channel message in DB - Result code: " + resCode);
-					//TODO: retry later
-				}
-			});
-			worker.start();
+			//store in DB - don't wait for result (write-behind queue)
+			SocketChannelHistoryWriter.storeChannelMessage(msg);
 		}
 	}
 	
@@ -193,20 +333,13 @@ public class SocketChannelHistory {
 	public static JSONArray getChannelHistoryInfo(){
 		JSONArray info = new JSONArray();
 		try{
-			Set<String> channelsInCache = lastMessagesStoredForEachChannel.keySet();
-			for (String channelId : channelsInCache){
-				Queue<JSONObject> messages = lastMessagesStoredForEachChannel.get(channelId);
-				int size = numMessagesForEachChannel.get(channelId).get();
-				long lastPollTS = lastPolledMessageTimestampsForChannel.get(channelId);
-				int N = messages.size();
-				if (N != size){
-					log.error("getChannelHistoryInfo - Inconsistency in channel with ID '" + channelId + "': size was " + N + " but should be " + size);
-					size = N;
-				}
+			for (Map.Entry<String, SocketChannelHistoryBuffer> entry : lastMessagesStoredForEachChannel.snapshot().entrySet()){
+				String channelId = entry.getKey();
 				JSON.add(info, JSON.make(
 						"channelId", channelId,
-						"size", size,
-						"lastPoll", lastPollTS
+						"size", entry.getValue().size(),
+						"loaded", entry.getValue().isLoaded(),
+						"lastPoll", lastPolledMessageTimestampsForChannel.getOrDefault(channelId, 0l)
 				));
 			}
 		}catch (Exception e){
@@ -217,71 +350,168 @@ public class SocketChannelHistory {
 	}
 	
 	/**
-	 * Get all messages cached for a certain channel as JSONArray.
+	 * Get all messages cached for a certain channel as JSONArray.<br>
+	 * NOTE: this parses the cached messages again, use {@link #getChannelHistoryAsJsonFragment(String, Map)} to send the history to a client.
 	 * @param channelId - ID of channel
 	 * @param filter - Map of filters like "notOlderThan" (long) 
 	 * @return array of messages (can be empty) or null (error)
 	 */
 	public static JSONArray getChannelHistoryAsJson(String channelId, Map<String, Object> filter){
-		ConcurrentLinkedQueue<JSONObject> messagesQueue = lastMessagesStoredForEachChannel.get(channelId);
+		SocketChannelHistoryBuffer.JsonFragment history = getChannelHistoryAsJsonFragment(channelId, filter);
+		if (history == null){
+			return null;
+		}
+		try{
+			return JSON.parseStringToArrayOrFail(history.toJSONString());
+		}catch (Exception e){
+			log.error("getChannelHistoryAsJson - Failed to parse history of channel '" + channelId + "': " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Get all messages cached for a certain channel as ready-made JSON array that can be put into a message 'as is'.<br>
+	 * Clients can send a cursor with the last message they have ("lastMessageId" and/or "lastTimestamp") to get only newer messages.
+	 * @param channelId - ID of channel
+	 * @param filter - Map of filters like "notOlderThan" (long), "lastTimestamp" (long), "lastMessageId" (String) 
+	 * @return array of messages (can be empty) or null (error)
+	 */
+	public static SocketChannelHistoryBuffer.JsonFragment getChannelHistoryAsJsonFragment(String channelId, Map<String, Object> filter){
+		SocketChannelHistoryBuffer messagesBuffer = lastMessagesStoredForEachChannel.get(channelId);
 		
-		//init and try to load once
-		if (messagesQueue == null){
-			messagesQueue = new ConcurrentLinkedQueue<>();
-			lastMessagesStoredForEachChannel.put(channelId, messagesQueue);
-			
-			//restore from DB
-			if (SocketConfig.storeMessagesPerChannel > 0){
-				ChatsDatabase chatsDb = SocketConfig.getDefaultChatsDatabase();
-				Long notOlderThanUnixDB = lastPolledMessageTimestampsForChannel.get(channelId);
-				if (notOlderThanUnixDB == null) notOlderThanUnixDB = 0l;
-				List<SocketMessage> messagesOfChannel = chatsDb.getAllMessagesOfChannel(channelId, notOlderThanUnixDB);
-				if (messagesOfChannel == null){
-					//no messages - init caching variables empty
-					numMessagesForEachChannel.put(channelId, new AtomicInteger(0));
-					lastPolledMessageTimestampsForChannel.put(channelId, 0l);
-				}else{
-					//set caching variables
-					Collections.sort(messagesOfChannel, new SocketMessage.SortByTimestampOldToNew());
-					int N = messagesOfChannel.size();
-					int skip = N - SocketConfig.storeMessagesPerChannel;
-					if (skip > 0){
-						//remove overflow elements
-						messagesOfChannel.subList(0, skip).clear();
-						N = messagesOfChannel.size();
-						log.info("getChannelHistoryAsJson - skipped first " + skip + " messages of channel '" + channelId + "' to reduce size to " + N);
-					}
-					numMessagesForEachChannel.put(channelId, new AtomicInteger(N));
-					if (N > 0){
-						lastPolledMessageTimestampsForChannel.put(channelId, messagesOfChannel.get(0).timeStampUNIX - 5000);	//we set this to first msg TS - 5s
-					}else{
-						lastPolledMessageTimestampsForChannel.put(channelId, 0l);
-					}
-					//transfer to concurrent queue
-					for (SocketMessage msg : messagesOfChannel){
-						messagesQueue.add(msg.getJSON());
-					}
-				}
+		//load once (or again after eviction)
+		if (messagesBuffer == null || !messagesBuffer.isLoaded()){
+			messagesBuffer = getLoadedChannelHistory(channelId);
+			if (messagesBuffer == null){
+				return null;
 			}
 		}
 		//we filter again by user request
-		final long notOlderThan;
+		long notOlderThan = 0;
+		long lastTimestamp = -1;
+		String lastMessageId = null;
 		if (filter != null){
 			if (filter.containsKey("notOlderThan")){
-				notOlderThan = (long) filter.get("notOlderThan");
+				notOlderThan = ((Number) filter.get("notOlderThan")).longValue();
+			}
+			if (filter.get(HISTORY_CURSOR_TIMESTAMP) != null){
+				lastTimestamp = ((Number) filter.get(HISTORY_CURSOR_TIMESTAMP)).longValue();
+			}
+			Object id = filter.get(HISTORY_CURSOR_MESSAGE_ID);
+			lastMessageId = (id != null)? id.toString() : null;
+		}
+		return messagesBuffer.getJsonArray(notOlderThan, lastTimestamp, lastMessageId);
+	}
+	
+	/**
+	 * Get the loaded history buffer of a channel. Only one load per channel runs at the same time, 
+	 * concurrent callers wait for the result of the running load.
+	 * @param channelId - ID of channel
+	 * @return loaded buffer or null (error)
+	 */
+	private static SocketChannelHistoryBuffer getLoadedChannelHistory(String channelId){
+		CompletableFuture<SocketChannelHistoryBuffer> newLoad = new CompletableFuture<>();
+		CompletableFuture<SocketChannelHistoryBuffer> runningLoad = channelHistoryLoads.putIfAbsent(channelId, newLoad);
+		if (runningLoad != null){
+			//wait for the other caller
+			try{
+				return runningLoad.get();
+			}catch (Exception e){
+				log.error("getChannelHistoryAsJson - Failed to wait for history of channel '" + channelId + "': " + e.getMessage());
+				return null;
+			}
+		}
+		try{
+			//check again - a load might have finished right before we started ours
+			SocketChannelHistoryBuffer current = lastMessagesStoredForEachChannel.get(channelId);
+			SocketChannelHistoryBuffer loaded;
+			if (current != null && current.isLoaded()){
+				loaded = current;
 			}else{
-				notOlderThan = 0;
+				loaded = loadChannelHistory(channelId, current);
+			}
+			newLoad.complete(loaded);
+			return loaded;
+		}catch (Exception e){
+			Debugger.printStackTrace(e, 3);
+			log.error("getChannelHistoryAsJson - Failed to load history of channel '" + channelId + "': " + e.getMessage());
+			newLoad.complete(null);
+			return null;
+		}finally{
+			channelHistoryLoads.remove(channelId, newLoad);
+		}
+	}
+	
+	/**
+	 * Load history of a channel from DB and merge it with messages that have been added to the cache in the meantime.
+	 * @param channelId - ID of channel
+	 * @param current - buffer in cache (not loaded) or null
+	 * @return loaded buffer or null (error)
+	 */
+	private static SocketChannelHistoryBuffer loadChannelHistory(String channelId, SocketChannelHistoryBuffer current){
+		int capacity = Math.max(1, SocketConfig.storeMessagesPerChannel);
+		SocketChannelHistoryBuffer loadedBuffer = new SocketChannelHistoryBuffer(capacity);
+		
+		//restore from DB
+		if (SocketConfig.storeMessagesPerChannel > 0){
+			ChatsDatabase chatsDb = SocketConfig.getDefaultChatsDatabase();
+			Long notOlderThanUnixDB = lastPolledMessageTimestampsForChannel.get(channelId);
+			if (notOlderThanUnixDB == null) notOlderThanUnixDB = 0l;
+			List<SocketMessage> messagesOfChannel = chatsDb.getAllMessagesOfChannel(channelId, notOlderThanUnixDB);
+			if (messagesOfChannel == null){
+				//no messages - init caching variables empty
+				lastPolledMessageTimestampsForChannel.putIfAbsent(channelId, 0l);
+			}else{
+				//messages added to the cache in the meantime are in the DB as well (or on their way)
+				if (current != null && current.size() > 0){
+					long oldestCached = current.getOldestTimestamp();
+					messagesOfChannel.removeIf(msg -> msg.timeStampUNIX >= oldestCached);
+				}
+				//set caching variables
+				Collections.sort(messagesOfChannel, new SocketMessage.SortByTimestampOldToNew());
+				int N = messagesOfChannel.size();
+				int skip = N + ((current != null)? current.size() : 0) - capacity;
+				if (skip > 0){
+					//remove overflow elements
+					skip = Math.min(skip, N);
+					messagesOfChannel.subList(0, skip).clear();
+					N = messagesOfChannel.size();
+					log.info("getChannelHistoryAsJson - skipped first " + skip + " messages of channel '" + channelId + "' to reduce size to " + N);
+				}
+				if (N > 0){
+					lastPolledMessageTimestampsForChannel.put(channelId, messagesOfChannel.get(0).timeStampUNIX - 5000);	//we set this to first msg TS - 5s
+				}else{
+					lastPolledMessageTimestampsForChannel.putIfAbsent(channelId, 0l);
+				}
+				//transfer to buffer
+				for (SocketMessage msg : messagesOfChannel){
+					loadedBuffer.add(msg.timeStampUNIX, msg.msgId, msg.getJSON().toJSONString());
+				}
 			}
-		}else{
-			notOlderThan = 0;
 		}
-		JSONArray ja = new JSONArray();
-		messagesQueue.forEach(socketMessage -> {
-			if (notOlderThan == 0 || (JSON.getLongOrDefault(socketMessage, "timeUNIX", 0) >= notOlderThan)){
-				JSON.add(ja, socketMessage); 			//TODO: filter content? (again)
+		//add newer messages and publish
+		long copied = (current != null)? current.copyTo(loadedBuffer, 0) : 0;
+		loadedBuffer.setLoaded();
+		if (!lastMessagesStoredForEachChannel.replace(channelId, current, loadedBuffer)){
+			//a new (empty) buffer was created by a new message after 'current' was evicted - try once more with that
+			SocketChannelHistoryBuffer other = lastMessagesStoredForEachChannel.get(channelId);
+			if (other != null && !other.isLoaded()){
+				long copiedOther = other.copyTo(loadedBuffer, 0);
+				if (lastMessagesStoredForEachChannel.replace(channelId, other, loadedBuffer)){
+					other.copyTo(loadedBuffer, copiedOther);
+					lastMessagesStoredForEachChannel.updateWeight(channelId);
+					return loadedBuffer;
+				}
+				other = lastMessagesStoredForEachChannel.get(channelId);
 			}
-		});
-		return ja;
+			return (other != null)? other : loadedBuffer;
+		}
+		if (current != null){
+			//catch messages that were added during the transfer
+			current.copyTo(loadedBuffer, copied);
+		}
+		lastMessagesStoredForEachChannel.updateWeight(channelId);
+		return loadedBuffer;
 	}
 	
 	/**
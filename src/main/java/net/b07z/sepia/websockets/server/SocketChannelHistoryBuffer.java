@@ -0,0 +1,278 @@
+package net.b07z.sepia.websockets.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.json.simple.JSONAware;
+
+/**
+ * Fixed-capacity ring buffer for the message history of one channel. Messages are stored already serialized (safe JSON)
+ * together with their timestamp, so a channel join can copy them into the response without building or serializing
+ * a JSONObject for each entry.<br>
+ * Adding a message is lock-free. When the buffer is full the oldest message is overwritten and returned to the caller.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class SocketChannelHistoryBuffer {
+
+	/**
+	 * A serialized message, its ID and its timestamp.
+	 */
+	public static class Entry {
+		private final long seq;			//position in the stream of all messages of this buffer
+		private final long timeUNIX;
+		private final long sortTime;	//max. timestamp until this message (client clocks can differ), used to search the buffer
+		private final String msgId;
+		private final String json;
+
+		private Entry(long seq, long timeUNIX, long sortTime, String msgId, String json){
+			this.seq = seq;
+			this.timeUNIX = timeUNIX;
+			this.sortTime = sortTime;
+			this.msgId = msgId;
+			this.json = json;
+		}
+		public long getTimeUNIX(){
+			return timeUNIX;
+		}
+		public String getMessageId(){
+			return msgId;
+		}
+		public String getJson(){
+			return json;
+		}
+	}
+
+	/**
+	 * Ready-made JSON array that is written 'as is' by json-simple and the {@link net.b07z.sepia.websockets.common.SocketMessageCodec}.
+	 */
+	public static class JsonFragment implements JSONAware {
+		private final String json;
+		private final int size;
+		private final boolean isIncremental;
+
+		private JsonFragment(String json, int size, boolean isIncremental){
+			this.json = json;
+			this.size = size;
+			this.isIncremental = isIncremental;
+		}
+		/**
+		 * Number of messages in this array.
+		 */
+		public int size(){
+			return size;
+		}
+		/**
+		 * Contains only messages after a cursor (false if there was no cursor or the message ID was not found).
+		 */
+		public boolean isIncremental(){
+			return isIncremental;
+		}
+		@Override
+		public String toJSONString(){
+			return json;
+		}
+		@Override
+		public String toString(){
+			return json;
+		}
+	}
+
+	private final int capacity;
+	private final AtomicReferenceArray<Entry> slots;
+	private final AtomicLong writeIndex = new AtomicLong(0);		//number of messages ever added
+	private final AtomicLong storedChars = new AtomicLong(0);
+	private final AtomicLong maxTimestamp = new AtomicLong(Long.MIN_VALUE);
+	private volatile boolean isLoaded = false;
+
+	/**
+	 * Create an empty buffer.
+	 * @param capacity - max. number of messages, usually {@link net.b07z.sepia.websockets.common.SocketConfig#storeMessagesPerChannel}
+	 */
+	public SocketChannelHistoryBuffer(int capacity){
+		this.capacity = Math.max(1, capacity);
+		this.slots = new AtomicReferenceArray<>(this.capacity);
+	}
+
+	/**
+	 * Add a message and overwrite the oldest one if the buffer is full.
+	 * @param timeUNIX - timestamp of the message
+	 * @param msgId - ID of the message (can be null or empty)
+	 * @param json - serialized (safe) message
+	 * @return entry that was removed from the buffer or null
+	 */
+	public Entry add(long timeUNIX, String msgId, String json){
+		long sortTime = maxTimestamp.accumulateAndGet(timeUNIX, Math::max);
+		long seq = writeIndex.getAndIncrement();
+		Entry e = new Entry(seq, timeUNIX, sortTime, msgId, json);
+		int slot = (int) (seq % capacity);
+		while (true){
+			Entry old = slots.get(slot);
+			if (old != null && old.seq > seq){
+				//a newer message already took this slot (we've been overtaken by a full round) - this one is out
+				return e;
+			}
+			if (slots.compareAndSet(slot, old, e)){
+				storedChars.addAndGet(json.length() - ((old != null)? old.json.length() : 0));
+				return old;
+			}
+		}
+	}
+
+	/**
+	 * Number of messages in the buffer.
+	 */
+	public int size(){
+		return (int) Math.min(writeIndex.get(), capacity);
+	}
+
+	/**
+	 * Max. number of messages in the buffer.
+	 */
+	public int getCapacity(){
+		return capacity;
+	}
+
+	/**
+	 * Number of messages ever added to this buffer (position of the next message).
+	 */
+	public long getWriteIndex(){
+		return writeIndex.get();
+	}
+
+	/**
+	 * Approximated memory used by the stored messages in bytes.
+	 */
+	public long getMemorySize(){
+		return storedChars.get() * 2 + size() * 64l;
+	}
+
+	/**
+	 * Has the buffer been filled with the stored history of the channel (e.g. from DB)?
+	 * If not it only contains messages that have been added since it was created.
+	 */
+	public boolean isLoaded(){
+		return isLoaded;
+	}
+	public void setLoaded(){
+		this.isLoaded = true;
+	}
+
+	/**
+	 * Copy messages (old to new) starting at a given position to another buffer.
+	 * @param target - buffer to add the messages to
+	 * @param fromIndex - first position to copy (see {@link #getWriteIndex()})
+	 * @return position after the last copied message
+	 */
+	public long copyTo(SocketChannelHistoryBuffer target, long fromIndex){
+		long end = writeIndex.get();
+		for (long i = Math.max(fromIndex, end - capacity); i < end; i++){
+			Entry e = slots.get((int) (i % capacity));
+			if (e != null && e.seq == i){
+				target.add(e.timeUNIX, e.msgId, e.json);
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Timestamp of the oldest message or -1 if the buffer is empty.
+	 */
+	public long getOldestTimestamp(){
+		long end = writeIndex.get();
+		for (long i = Math.max(0, end - capacity); i < end; i++){
+			Entry e = slots.get((int) (i % capacity));
+			if (e != null && e.seq == i){
+				return e.timeUNIX;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Build a JSON array of all messages (old to new) that are not older than a given timestamp.
+	 * Messages that are being overwritten while we read are skipped.
+	 * @param notOlderThan - UNIX timestamp or 0 for all messages
+	 * @return {@link JsonFragment}
+	 */
+	public JsonFragment getJsonArray(long notOlderThan){
+		return getJsonArray(notOlderThan, -1, null);
+	}
+
+	/**
+	 * Build a JSON array of all messages (old to new) that came after the last message a client has (cursor).
+	 * The cursor is the ID and/or timestamp of that message. If the ID is found the array starts after it, else the start
+	 * is the first message that is not older than the timestamp (binary search). Messages with the same time might be sent again then.
+	 * If only an ID is given and it is not in the buffer (anymore) all messages are returned.
+	 * @param notOlderThan - UNIX timestamp or 0 for all messages
+	 * @param afterTimestamp - timestamp of the last message the client has or -1
+	 * @param afterMessageId - ID of the last message the client has or null
+	 * @return {@link JsonFragment}
+	 */
+	public JsonFragment getJsonArray(long notOlderThan, long afterTimestamp, String afterMessageId){
+		long end = writeIndex.get();
+		long start = Math.max(0, end - capacity);
+		boolean isIncremental = false;
+		long cursorStart = findStart(start, end, afterTimestamp, afterMessageId);
+		if (cursorStart >= 0){
+			start = cursorStart;
+			isIncremental = true;
+		}
+		StringBuilder sb = new StringBuilder(128 * (int) Math.min(end - start, capacity) + 2);
+		sb.append('[');
+		int n = 0;
+		for (long i = start; i < end; i++){
+			Entry e = slots.get((int) (i % capacity));
+			if (e == null || e.seq != i){
+				continue;
+			}
+			if (notOlderThan == 0 || e.timeUNIX >= notOlderThan){
+				if (n > 0) sb.append(',');
+				sb.append(e.json);
+				n++;
+			}
+		}
+		sb.append(']');
+		return new JsonFragment(sb.toString(), n, isIncremental);
+	}
+
+	//first position after the cursor or -1 if there is no (usable) cursor
+	private long findStart(long start, long end, long afterTimestamp, String afterMessageId){
+		long lo = start;
+		if (afterTimestamp >= 0){
+			//lower bound: first entry with sortTime >= afterTimestamp
+			long hi = end;
+			while (lo < hi){
+				long mid = (lo + hi) >>> 1;
+				if (getSortTime(mid) < afterTimestamp){
+					lo = mid + 1;
+				}else{
+					hi = mid;
+				}
+			}
+		}
+		//find the message (newest first) - NOTE: sort time is the max. time so far, the message can be after the lower bound
+		if (afterMessageId != null && !afterMessageId.isEmpty()){
+			for (long i = end - 1; i >= lo; i--){
+				Entry e = slots.get((int) (i % capacity));
+				if (e != null && e.seq == i && afterMessageId.equals(e.msgId)){
+					return i + 1;
+				}
+			}
+		}
+		//we can't tell which messages with the same time the client has, so we start at the first one
+		return (afterTimestamp >= 0)? lo : -1;
+	}
+
+	//sort time of position (overwritten entries count as old, entries that are not written yet as new)
+	private long getSortTime(long i){
+		Entry e = slots.get((int) (i % capacity));
+		if (e == null || e.seq < i){
+			return Long.MAX_VALUE;
+		}else if (e.seq > i){
+			return Long.MIN_VALUE;
+		}
+		return e.sortTime;
+	}
+}
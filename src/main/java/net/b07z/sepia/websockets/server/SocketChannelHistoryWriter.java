@@ -0,0 +1,463 @@
+package net.b07z.sepia.websockets.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.tools.ThreadManager;
+import net.b07z.sepia.websockets.common.SocketConfig;
+import net.b07z.sepia.websockets.database.ChatsDatabase;
+
+/**
+ * Write-behind queue for the {@link ChatsDatabase} (channel messages and missed-message data of users).<br>
+ * A small pool of workers takes the writes in batches (by size and time window) and sends each batch with bulk requests.
+ * Each worker has its own queue and all writes of one user (or channel) go to the same worker, so they are written in order.
+ * If the queue is full the caller waits a short time and then the write is dropped. Failed writes are retried with increasing delay.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class SocketChannelHistoryWriter {
+
+	static Logger log = LoggerFactory.getLogger(SocketChannelHistoryWriter.class);
+
+	private static abstract class WriteTask {
+		int attempts = 0;
+		abstract String getInfo();
+		abstract String getPartitionKey();
+	}
+	private static class StoreMessageTask extends WriteTask {
+		final JSONObject msg;
+		StoreMessageTask(JSONObject msg){
+			this.msg = msg;
+		}
+		@Override
+		String getInfo(){
+			return "channel message - channel ID: " + msg.get("channelId");
+		}
+		@Override
+		String getPartitionKey(){
+			return String.valueOf(msg.get("channelId"));
+		}
+	}
+	private static class MissedChannelsTask extends WriteTask {
+		final String userId;
+		final Set<String> channelIds;
+		final boolean userReceivedNote;
+		final long seq;
+		MissedChannelsTask(String userId, Set<String> channelIds, boolean userReceivedNote, long seq){
+			this.userId = userId;
+			this.channelIds = channelIds;
+			this.userReceivedNote = userReceivedNote;
+			this.seq = seq;
+		}
+		@Override
+		String getInfo(){
+			return "missed messages data - user ID: " + userId;
+		}
+		@Override
+		String getPartitionKey(){
+			return userId;
+		}
+	}
+	//updates of missed channels of a user that are queued (or wait for retry) - older ones don't need to be written
+	private static class PendingUpdates {
+		final NavigableSet<Long> seqs = new TreeSet<>();
+		long writtenSeq = 0;		//newest written update
+		long skippedSeq = 0;		//newest update that was skipped because a newer one was pending
+	}
+
+	private static volatile List<BlockingQueue<WriteTask>> queues;		//one for each worker
+	private static volatile boolean isRunning = false;
+	private static volatile boolean isStopped = false;		//after shutdown we don't start again
+	private static List<Thread> workers = new ArrayList<>();
+
+	//pending updates of missed channels for each user (NOTE: changed via 'compute' only)
+	private static Map<String, PendingUpdates> pendingMissedChannelsUpdates = new ConcurrentHashMap<>();
+	private static AtomicLong missedChannelsSeq = new AtomicLong(0);
+
+	//statistics
+	private static AtomicLong queuedItems = new AtomicLong(0);
+	private static AtomicLong writtenItems = new AtomicLong(0);
+	private static AtomicLong skippedItems = new AtomicLong(0);
+	private static AtomicLong writtenBatches = new AtomicLong(0);
+	private static AtomicLong retriedItems = new AtomicLong(0);
+	private static AtomicLong droppedItems = new AtomicLong(0);
+	private static AtomicLong failedItems = new AtomicLong(0);
+
+	/**
+	 * Start the workers (if not running already). This is done automatically with the first write.
+	 */
+	public static synchronized void start(){
+		if (isRunning || isStopped){
+			return;
+		}
+		int n = Math.max(1, SocketConfig.dbWriteWorkers);
+		int queueSize = Math.max(1, SocketConfig.dbWriteQueueSize / n);
+		List<BlockingQueue<WriteTask>> newQueues = new ArrayList<>(n);
+		for (int i = 0; i < n; i++){
+			newQueues.add(new ArrayBlockingQueue<>(queueSize));
+		}
+		queues = newQueues;
+		isRunning = true;
+		for (int i = 0; i < n; i++){
+			BlockingQueue<WriteTask> queue = newQueues.get(i);
+			Thread worker = new Thread(() -> runWorker(queue), "chats-db-writer-" + i);
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+		try{
+			Runtime.getRuntime().addShutdownHook(new Thread(SocketChannelHistoryWriter::stop));
+		}catch (IllegalStateException e){
+			//JVM is shutting down already
+			stop();
+			return;
+		}
+		log.info("Started chats DB writer with " + n + " workers - queue size: " + SocketConfig.dbWriteQueueSize);
+	}
+
+	/**
+	 * Stop the workers and write what is left in the queue. Writes after this are done directly by the caller.
+	 */
+	public static synchronized void stop(){
+		isStopped = true;
+		if (!isRunning){
+			return;
+		}
+		isRunning = false;
+		for (Thread worker : workers){
+			worker.interrupt();
+		}
+		for (Thread worker : workers){
+			try{
+				worker.join(5000);
+			}catch (InterruptedException e){
+				break;
+			}
+		}
+		workers.clear();
+		//flush
+		List<WriteTask> rest = new ArrayList<>();
+		for (BlockingQueue<WriteTask> queue : queues){
+			queue.drainTo(rest);
+		}
+		if (!rest.isEmpty()){
+			log.info("Writing " + rest.size() + " remaining items of chats DB queue ...");
+			writeBatch(rest, false);
+		}
+	}
+
+	//--- writes ---
+
+	/**
+	 * Queue a "safe" channel message for {@link ChatsDatabase#storeChannelMessage(JSONObject)}.
+	 * @param msg - message prepared to be stored
+	 * @return true if queued, false if dropped (queue full)
+	 */
+	public static boolean storeChannelMessage(JSONObject msg){
+		return enqueue(new StoreMessageTask(msg));
+	}
+
+	/**
+	 * Queue an update for {@link ChatsDatabase#updateChannelsWithMissedMessagesForUser(String, Set, boolean)}.
+	 * If there is a newer update for the same user before this one is written only the newer one is written.
+	 * @param userId - user who missed a message
+	 * @param channelIds - set of channel IDs (should be a copy)
+	 * @param userReceivedNote - see {@link ChatsDatabase#updateChannelsWithMissedMessagesForUser(String, Set, boolean)}
+	 * @return true if queued, false if dropped (queue full)
+	 */
+	public static boolean updateChannelsWithMissedMessagesForUser(String userId, Set<String> channelIds, boolean userReceivedNote){
+		long seq = missedChannelsSeq.incrementAndGet();
+		pendingMissedChannelsUpdates.compute(userId, (k, pu) -> {
+			if (pu == null){
+				pu = new PendingUpdates();
+			}
+			pu.seqs.add(seq);
+			return pu;
+		});
+		return enqueue(new MissedChannelsTask(userId, channelIds, userReceivedNote, seq));
+	}
+
+	//skip update if a newer one is pending or was written already (else it has to be written)
+	private static boolean skipIfSuperseded(MissedChannelsTask mct){
+		boolean[] isSuperseded = new boolean[1];
+		pendingMissedChannelsUpdates.computeIfPresent(mct.userId, (k, pu) -> {
+			if (pu.writtenSeq > mct.seq || (!pu.seqs.isEmpty() && pu.seqs.last() > mct.seq)){
+				isSuperseded[0] = true;
+				pu.skippedSeq = Math.max(pu.skippedSeq, mct.seq);
+				pu.seqs.remove(mct.seq);
+			}
+			return pu.seqs.isEmpty()? null : pu;
+		});
+		return isSuperseded[0];
+	}
+	//update was written or failed for good
+	private static void finishMissedChannelsUpdate(MissedChannelsTask mct, boolean isWritten){
+		pendingMissedChannelsUpdates.computeIfPresent(mct.userId, (k, pu) -> {
+			pu.seqs.remove(mct.seq);
+			if (isWritten){
+				pu.writtenSeq = Math.max(pu.writtenSeq, mct.seq);
+			}
+			return pu.seqs.isEmpty()? null : pu;
+		});
+	}
+	//update was dropped (queue full) - returns true if it has to be written anyway because older updates were skipped for it
+	private static boolean dropMissedChannelsUpdate(MissedChannelsTask mct){
+		boolean[] mustWrite = new boolean[1];
+		pendingMissedChannelsUpdates.computeIfPresent(mct.userId, (k, pu) -> {
+			pu.seqs.remove(mct.seq);
+			boolean isSkippedCovered = (pu.skippedSeq <= pu.writtenSeq) || (!pu.seqs.isEmpty() && pu.seqs.last() > pu.skippedSeq);
+			if (!isSkippedCovered && mct.seq > pu.skippedSeq){
+				mustWrite[0] = true;
+				pu.seqs.add(mct.seq);		//still pending
+			}
+			return pu.seqs.isEmpty()? null : pu;
+		});
+		return mustWrite[0];
+	}
+
+	private static boolean enqueue(WriteTask task){
+		if (!isRunning){
+			start();
+		}
+		if (isStopped){
+			//server is shutting down
+			writeNow(task);
+			return true;
+		}
+		try{
+			//backpressure: wait a bit if the queue is full
+			if (getQueue(task).offer(task, SocketConfig.dbWriteQueueMaxWaitMs, TimeUnit.MILLISECONDS)){
+				queuedItems.incrementAndGet();
+				return true;
+			}
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		if (task instanceof MissedChannelsTask && dropMissedChannelsUpdate((MissedChannelsTask) task)){
+			//older updates were skipped for this one - write it without queue
+			log.warn("Chats DB write queue is full - writing directly: " + task.getInfo());
+			writeNow(task);
+			return true;
+		}
+		droppedItems.incrementAndGet();
+		log.error("Chats DB write queue is full - dropped: " + task.getInfo());
+		return false;
+	}
+	
+	/**
+	 * Is there an update of missed channels for this user that was not written yet (queued or waiting for retry)?
+	 */
+	public static boolean hasPendingMissedChannelsUpdate(String userId){
+		return pendingMissedChannelsUpdates.containsKey(userId);
+	}
+
+	//queue of the worker responsible for this user or channel
+	private static BlockingQueue<WriteTask> getQueue(WriteTask task){
+		List<BlockingQueue<WriteTask>> qs = queues;
+		return qs.get(Math.floorMod(task.getPartitionKey().hashCode(), qs.size()));
+	}
+	
+	//write without queue (no retry)
+	private static void writeNow(WriteTask task){
+		List<WriteTask> batch = new ArrayList<>(1);
+		batch.add(task);
+		writeBatch(batch, false);
+	}
+
+	//worker loop: collect a batch until size limit or time window is reached, then write
+	private static void runWorker(BlockingQueue<WriteTask> queue){
+		List<WriteTask> batch = new ArrayList<>();
+		while (isRunning){
+			try{
+				WriteTask first = queue.poll(1000, TimeUnit.MILLISECONDS);
+				if (first == null){
+					continue;
+				}
+				batch.add(first);
+				int batchSize = Math.max(1, SocketConfig.dbWriteBatchSize);
+				long windowEnd = System.currentTimeMillis() + SocketConfig.dbWriteBatchWindowMs;
+				while (batch.size() < batchSize){
+					long wait = windowEnd - System.currentTimeMillis();
+					WriteTask next = (wait > 0)? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+					if (next == null){
+						break;
+					}
+					batch.add(next);
+				}
+			}catch (InterruptedException e){
+				//stop() will write the rest of the queue
+			}
+			if (!batch.isEmpty()){
+				try{
+					writeBatch(batch, isRunning);
+				}catch (Exception e){
+					log.error("Chats DB writer failed to write batch: " + e.getMessage());
+				}
+				batch.clear();
+			}
+		}
+	}
+
+	//write all tasks of a batch with bulk requests and retry failed ones
+	private static void writeBatch(List<WriteTask> batch, boolean retry){
+		ChatsDatabase chatsDb = SocketConfig.getDefaultChatsDatabase();
+		List<StoreMessageTask> messages = new ArrayList<>();
+		Map<String, MissedChannelsTask> missedChannelsUpdates = new HashMap<>();
+		Map<String, MissedChannelsTask> missedChannelsNoteUpdates = new HashMap<>();
+		for (WriteTask task : batch){
+			if (task instanceof StoreMessageTask){
+				messages.add((StoreMessageTask) task);
+			}else if (task instanceof MissedChannelsTask){
+				MissedChannelsTask mct = (MissedChannelsTask) task;
+				if (skipIfSuperseded(mct)){
+					skippedItems.incrementAndGet();
+				}else{
+					(mct.userReceivedNote? missedChannelsNoteUpdates : missedChannelsUpdates).put(mct.userId, mct);
+				}
+			}
+		}
+		int written = 0;
+		//messages
+		if (!messages.isEmpty()){
+			List<JSONObject> msgs = new ArrayList<>(messages.size());
+			for (StoreMessageTask smt : messages){
+				msgs.add(smt.msg);
+			}
+			int[] resCodes = chatsDb.storeChannelMessages(msgs);
+			for (int i = 0; i < resCodes.length; i++){
+				if (resCodes[i] == 0){
+					written++;
+				}else{
+					handleFailure(messages.get(i), resCodes[i], retry);
+				}
+			}
+		}
+		//missed messages data of users
+		for (Map<String, MissedChannelsTask> updates : Arrays.asList(missedChannelsUpdates, missedChannelsNoteUpdates)){
+			if (updates.isEmpty()){
+				continue;
+			}
+			Map<String, Set<String>> channelIdsByUser = new HashMap<>();
+			boolean userReceivedNote = false;
+			for (MissedChannelsTask mct : updates.values()){
+				channelIdsByUser.put(mct.userId, mct.channelIds);
+				userReceivedNote = mct.userReceivedNote;
+			}
+			Map<String, Integer> resCodes = chatsDb.updateChannelsWithMissedMessagesForUsers(channelIdsByUser, userReceivedNote);
+			for (MissedChannelsTask mct : updates.values()){
+				int resCode = resCodes.getOrDefault(mct.userId, 2);
+				if (resCode == 0){
+					finishMissedChannelsUpdate(mct, true);
+					written++;
+				}else{
+					handleFailure(mct, resCode, retry);
+				}
+			}
+		}
+		writtenItems.addAndGet(written);
+		writtenBatches.incrementAndGet();
+	}
+
+	//retry later with increasing delay or give up
+	private static void handleFailure(WriteTask task, int resCode, boolean retry){
+		task.attempts++;
+		if (!retry || task.attempts > SocketConfig.dbWriteMaxRetries){
+			failedItems.incrementAndGet();
+			if (task instanceof MissedChannelsTask){
+				finishMissedChannelsUpdate((MissedChannelsTask) task, false);
+			}
+			log.error("Failed to write to chats DB after " + task.attempts + " attempts - " + task.getInfo() + " - Result code: " + resCode);
+			return;
+		}
+		retriedItems.incrementAndGet();
+		long delay = SocketConfig.dbWriteRetryDelayMs * task.attempts;
+		log.warn("Failed to write to chats DB - " + task.getInfo() + " - Result code: " + resCode + " - retry in " + delay + "ms");
+		ThreadManager.scheduleBackgroundTaskAndForget(delay, () -> {
+			if (isStopped){
+				writeNow(task);
+			}else if (!getQueue(task).offer(task)){
+				if (task instanceof MissedChannelsTask && dropMissedChannelsUpdate((MissedChannelsTask) task)){
+					log.warn("Chats DB write queue is full - writing retry directly: " + task.getInfo());
+					writeNow(task);
+					return;
+				}
+				droppedItems.incrementAndGet();
+				log.error("Chats DB write queue is full - dropped retry of: " + task.getInfo());
+			}
+		});
+	}
+
+	//--- statistics ---
+
+	/**
+	 * Items waiting in the queue.
+	 */
+	public static int getQueueSize(){
+		List<BlockingQueue<WriteTask>> qs = queues;
+		int size = 0;
+		if (qs != null){
+			for (BlockingQueue<WriteTask> queue : qs){
+				size += queue.size();
+			}
+		}
+		return size;
+	}
+	/**
+	 * Items added to the queue since server start.
+	 */
+	public static long getQueuedItems(){
+		return queuedItems.get();
+	}
+	/**
+	 * Items successfully written to the DB.
+	 */
+	public static long getWrittenItems(){
+		return writtenItems.get();
+	}
+	/**
+	 * Batches processed by the workers.
+	 */
+	public static long getWrittenBatches(){
+		return writtenBatches.get();
+	}
+	/**
+	 * Items not written because a newer version was queued.
+	 */
+	public static long getSkippedItems(){
+		return skippedItems.get();
+	}
+	/**
+	 * Failed writes that were scheduled for retry.
+	 */
+	public static long getRetriedItems(){
+		return retriedItems.get();
+	}
+	/**
+	 * Items dropped because the queue was full.
+	 */
+	public static long getDroppedItems(){
+		return droppedItems.get();
+	}
+	/**
+	 * Items that failed after all retries.
+	 */
+	public static long getFailedItems(){
+		return failedItems.get();
+	}
+}
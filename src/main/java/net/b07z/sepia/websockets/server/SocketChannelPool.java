@@ -2,13 +2,16 @@ package net.b07z.sepia.websockets.server;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.simple.JSONArray;
+import org.json.simple.JSONAware;
 import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,6 +35,54 @@ public class SocketChannelPool {
 	private static Map<String, SocketChannel> channelPool = new ConcurrentHashMap<>();
 	private static AtomicLong channelCounter = new AtomicLong(0); 
 	
+	//indexes to find the channels of a user without checking the whole pool (updated with every change of channels or members)
+	private static Map<String, Set<String>> channelIdsByMember = new ConcurrentHashMap<>();
+	private static Map<String, Set<String>> channelIdsByOwner = new ConcurrentHashMap<>();		//NOTE: key is lower-case owner ID
+	private static volatile List<SocketChannel> publicChannels = Collections.emptyList();
+	
+	//versions to check if the channel list of a user changed (every change gets a new number, the list version is the max. of all that apply)
+	private static AtomicLong channelsVersionCounter = new AtomicLong(0);
+	private static volatile long poolVersion = 0;				//changes with 'setPool'
+	private static volatile long publicChannelsVersion = 0;		//changes when public channels are added or removed
+	private static Map<String, Long> channelsVersionByUser = new ConcurrentHashMap<>();	//changes with channels the user is member or owner of (only users with channels)
+	private static volatile long usersWithoutChannelsVersion = 0;	//version of all users without entry, changes when a user lost the last channel
+	private static SocketLruCache<String, ClientChannelList> clientChannelListCache = new SocketLruCache<>(
+			SocketConfig.channelListCacheMaxUsers, 0, null, null
+	);
+	
+	/**
+	 * Serialized channel list for a client (see {@link SocketChannelPool#convertChannelListToClientArray(List, String)}) with version and ETag.
+	 * Is written 'as is' by json-simple.
+	 */
+	public static class ClientChannelList implements JSONAware {
+		private final long version;
+		private final String json;
+		private final String eTag;
+		
+		private ClientChannelList(long version, String json, String eTag){
+			this.version = version;
+			this.json = json;
+			this.eTag = eTag;
+		}
+		public long getVersion(){
+			return version;
+		}
+		/**
+		 * Entity tag for HTTP caching (based on content, including quotes).
+		 */
+		public String getETag(){
+			return eTag;
+		}
+		@Override
+		public String toJSONString(){
+			return json;
+		}
+		@Override
+		public String toString(){
+			return json;
+		}
+	}
+	
 	/**
 	 * Get a unique ID for a new channel.
 	 */
@@ -45,8 +96,17 @@ public class SocketChannelPool {
 	 * Set a channel pool to start with. Usually loaded during server start.
 	 * @param newChannelPool
 	 */
-	public static void setPool(Map<String, SocketChannel> newChannelPool){
+	public static synchronized void setPool(Map<String, SocketChannel> newChannelPool){
 		channelPool = newChannelPool;
+		//rebuild indexes
+		channelIdsByMember.clear();
+		channelIdsByOwner.clear();
+		channelsVersionByUser.clear();		//all versions are older than the new pool version anyway
+		for (SocketChannel sc : channelPool.values()){
+			addToIndex(sc);
+		}
+		refreshPublicChannels();
+		poolVersion = channelsVersionCounter.incrementAndGet();
 	}
 	
 	/**
@@ -154,8 +214,15 @@ public class SocketChannelPool {
 	/**
 	 * Add channel to pool.
 	 */
-	public static void addChannel(SocketChannel sc){
-		channelPool.put(sc.getChannelId(), sc);
+	public static synchronized void addChannel(SocketChannel sc){
+		SocketChannel old = channelPool.put(sc.getChannelId(), sc);
+		if (old != null){
+			removeFromIndex(old);
+		}
+		addToIndex(sc);
+		if (sc.isOpen() || (old != null && old.isOpen())){
+			refreshPublicChannels();
+		}
 	}
 	
 	/**
@@ -171,7 +238,14 @@ public class SocketChannelPool {
 	 */
 	public static boolean deleteChannel(SocketChannel sc){
 		String channelId = sc.getChannelId();
-		channelPool.remove(channelId);
+		synchronized (SocketChannelPool.class){
+			if (channelPool.remove(channelId, sc)){
+				removeFromIndex(sc);
+				if (sc.isOpen()){
+					refreshPublicChannels();
+				}
+			}
+		}
 		
 		//delete channel
 		ChannelsDatabase channelsDb = SocketConfig.getDefaultChannelsDatabase();
@@ -201,10 +275,16 @@ public class SocketChannelPool {
 	public static List<SocketChannel> getAllChannelsOwnedBy(String userId){
 		//ChannelsDatabase channelsDb = SocketConfig.getDefaultChannelsDatabase();		//TODO: use?
 		List<SocketChannel> channels = new ArrayList<>();
-		for (String cId : channelPool.keySet()) {
-			SocketChannel sc = channelPool.get(cId);
-			if (sc.getOwner().equalsIgnoreCase(userId)) {
-				channels.add(sc);
+		if (userId == null){
+			return channels;
+		}
+		Set<String> channelIds = channelIdsByOwner.get(userId.toLowerCase(Locale.ROOT));
+		if (channelIds != null){
+			for (String cId : channelIds){
+				SocketChannel sc = channelPool.get(cId);
+				if (sc != null){
+					channels.add(sc);
+				}
 			}
 		}
 		return channels;
@@ -219,15 +299,193 @@ public class SocketChannelPool {
 	public static List<SocketChannel> getAllChannelsAvailableTo(String userId, boolean includePublic){
 		//ChannelsDatabase channelsDb = SocketConfig.getDefaultChannelsDatabase();		//TODO: use?
 		List<SocketChannel> channels = new ArrayList<>();
-		for (String cId : channelPool.keySet()) {
-			SocketChannel sc = channelPool.get(cId);
-			if ((includePublic && sc.isOpen()) || sc.isUserMemberOfChannel(userId)) {
-				channels.add(sc);
+		Set<String> channelIds = (userId != null)? channelIdsByMember.get(userId) : null;
+		if (channelIds != null){
+			for (String cId : channelIds){
+				SocketChannel sc = channelPool.get(cId);
+				if (sc != null){
+					channels.add(sc);
+				}
+			}
+		}
+		if (includePublic){
+			for (SocketChannel sc : publicChannels){
+				if (channelIds == null || !channelIds.contains(sc.getChannelId())){
+					channels.add(sc);
+				}
 			}
 		}
 		return channels;
 	}
 	
+	/**
+	 * Update member index after a user was added to or removed from a channel (called by {@link SocketChannel}).
+	 * The index is set to the current state of the channel, so the order of calls does not matter.
+	 * @param sc - channel that changed
+	 * @param userId - member that was added or removed
+	 */
+	public static synchronized void updateMemberIndex(SocketChannel sc, String userId){
+		if (userId == null || channelPool.get(sc.getChannelId()) != sc){
+			//not (yet) in pool - 'addChannel' will index all members
+			return;
+		}
+		if (sc.isUserMemberOfChannel(userId)){
+			channelIdsByMember.computeIfAbsent(userId, k -> ConcurrentHashMap.newKeySet()).add(sc.getChannelId());
+		}else{
+			removeFromSetIndex(channelIdsByMember, userId, sc.getChannelId());
+		}
+		updateUserVersion(userId);
+	}
+	
+	/**
+	 * Update owner index after the owner of a channel changed (called by {@link SocketChannel}).
+	 * @param sc - channel that changed
+	 * @param oldOwner - previous owner
+	 */
+	public static synchronized void updateOwnerIndex(SocketChannel sc, String oldOwner){
+		if (channelPool.get(sc.getChannelId()) != sc){
+			return;
+		}
+		if (oldOwner != null){
+			removeFromSetIndex(channelIdsByOwner, oldOwner.toLowerCase(Locale.ROOT), sc.getChannelId());
+		}
+		if (sc.getOwner() != null){
+			channelIdsByOwner.computeIfAbsent(sc.getOwner().toLowerCase(Locale.ROOT), k -> ConcurrentHashMap.newKeySet()).add(sc.getChannelId());
+		}
+		//owner is part of the channel data that every member gets
+		updateChannelVersions(sc, oldOwner);
+	}
+	
+	//NOTE: index methods are called inside 'synchronized' methods
+	
+	private static void addToIndex(SocketChannel sc){
+		String channelId = sc.getChannelId();
+		for (String userId : sc.getAllRegisteredMembersById()){
+			channelIdsByMember.computeIfAbsent(userId, k -> ConcurrentHashMap.newKeySet()).add(channelId);
+		}
+		if (sc.getOwner() != null){
+			channelIdsByOwner.computeIfAbsent(sc.getOwner().toLowerCase(Locale.ROOT), k -> ConcurrentHashMap.newKeySet()).add(channelId);
+		}
+		updateChannelVersions(sc, null);
+	}
+	
+	private static void removeFromIndex(SocketChannel sc){
+		String channelId = sc.getChannelId();
+		for (String userId : sc.getAllRegisteredMembersById()){
+			removeFromSetIndex(channelIdsByMember, userId, channelId);
+		}
+		if (sc.getOwner() != null){
+			removeFromSetIndex(channelIdsByOwner, sc.getOwner().toLowerCase(Locale.ROOT), channelId);
+		}
+		updateChannelVersions(sc, null);
+	}
+	
+	private static void removeFromSetIndex(Map<String, Set<String>> index, String key, String channelId){
+		Set<String> channelIds = index.get(key);
+		if (channelIds != null){
+			channelIds.remove(channelId);
+			if (channelIds.isEmpty()){
+				index.remove(key);
+			}
+		}
+	}
+	
+	private static void refreshPublicChannels(){
+		List<SocketChannel> channels = new ArrayList<>();
+		for (SocketChannel sc : channelPool.values()){
+			if (sc.isOpen()){
+				channels.add(sc);
+			}
+		}
+		publicChannels = Collections.unmodifiableList(channels);
+		publicChannelsVersion = channelsVersionCounter.incrementAndGet();
+	}
+	
+	//new version for all users that get this channel in their list (members, owner and optional other user)
+	private static void updateChannelVersions(SocketChannel sc, String otherUserId){
+		long v = channelsVersionCounter.incrementAndGet();
+		for (String userId : sc.getAllRegisteredMembersById()){
+			setUserVersion(userId, v);
+		}
+		if (sc.getOwner() != null){
+			setUserVersion(sc.getOwner(), v);
+		}
+		if (otherUserId != null){
+			setUserVersion(otherUserId, v);
+		}
+	}
+	private static void updateUserVersion(String userId){
+		setUserVersion(userId, channelsVersionCounter.incrementAndGet());
+	}
+	private static void setUserVersion(String userId, long v){
+		if (channelIdsByMember.containsKey(userId) || channelIdsByOwner.containsKey(userId.toLowerCase(Locale.ROOT))){
+			channelsVersionByUser.put(userId, v);
+		}else{
+			//no channels (anymore) - drop the entry to keep the map small, the new shared version makes sure cached lists are renewed
+			//NOTE: set version before removal, 'getChannelListVersion' reads in opposite order
+			usersWithoutChannelsVersion = v;
+			channelsVersionByUser.remove(userId);
+		}
+	}
+	
+	/**
+	 * Version of the channel list of a user. Changes with every change of channels (or members of channels) that are in the list.
+	 * @param userId - user ID
+	 * @param includePublic - list includes public channels
+	 */
+	public static long getChannelListVersion(String userId, boolean includePublic){
+		Long userVersion = channelsVersionByUser.get(userId);
+		long v = Math.max(poolVersion, (userVersion != null)? userVersion : usersWithoutChannelsVersion);
+		if (includePublic){
+			v = Math.max(v, publicChannelsVersion);
+		}
+		return v;
+	}
+	
+	/**
+	 * Get all channels available to a user as serialized client array (see {@link #getAllChannelsAvailableTo(String, boolean)}
+	 * and {@link #convertChannelListToClientArray(List, String)}). The result is cached until the channel list version changes.
+	 * @param userId - user ID (receiver)
+	 * @param includePublic - include public channels
+	 * @return {@link ClientChannelList} or null (error)
+	 */
+	public static ClientChannelList getClientChannelList(String userId, boolean includePublic){
+		String cacheKey = userId + (includePublic? ";p" : ";m");
+		//NOTE: get version before the list, if anything changes while we build the list the version will not match next time
+		long version = getChannelListVersion(userId, includePublic);
+		ClientChannelList cached = clientChannelListCache.get(cacheKey);
+		if (cached != null && cached.getVersion() == version){
+			return cached;
+		}
+		List<SocketChannel> channels = getAllChannelsAvailableTo(userId, includePublic);
+		if (channels == null){
+			return null;
+		}
+		String json = convertChannelListToClientArray(channels, userId).toJSONString();
+		String eTag;
+		try{
+			eTag = "\"" + Security.bytearrayToHexString(Security.getSha256(json)).substring(0, 32) + "\"";
+		}catch (Exception e){
+			eTag = "\"" + Long.toHexString(version) + "-" + Integer.toHexString(json.hashCode()) + "\"";
+		}
+		ClientChannelList ccl = new ClientChannelList(version, json, eTag);
+		if (cached != null){
+			clientChannelListCache.replace(cacheKey, cached, ccl);
+		}else{
+			clientChannelListCache.putIfAbsent(cacheKey, ccl);
+		}
+		return ccl;
+	}
+	
+	/**
+	 * Cache statistics of client channel lists as HTML lines (for {@link Statistics}).
+	 */
+	public static String getCacheStatistics(){
+		return "Cached channel lists: " + clientChannelListCache.size() + "<br>" +
+				"Channel list cache hits/misses/evictions: " + clientChannelListCache.getHits() + "/" 
+					+ clientChannelListCache.getMisses() + "/" + clientChannelListCache.getEvictions() + "<br>";
+	}
+	
 	/**
 	 * Convert list of channels to JSONArray for client.
 	 * @param channels - list of channels
@@ -0,0 +1,156 @@
+package net.b07z.sepia.websockets.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.data.Role;
+import net.b07z.sepia.websockets.common.SocketConfig;
+import net.b07z.sepia.websockets.common.SocketMessage;
+import net.b07z.sepia.websockets.common.SocketMessage.DataType;
+import net.b07z.sepia.websockets.common.SocketUser;
+
+/**
+ * Rate limits for incoming messages to protect the server and other users from flooding clients.<br>
+ * - messages and bytes per second of each session (checked before a message is read)<br>
+ * - broadcasts per second to each channel<br>
+ * Messages over the limit are dropped. The sender gets an 'errorMessage' (429), but not more than once per second.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class SocketInboundRateLimiter {
+
+	static Logger log = LoggerFactory.getLogger(SocketInboundRateLimiter.class);
+
+	private static final long ERROR_REPLY_INTERVAL_MS = 1000;
+
+	private static class SessionLimits {
+		final SocketTokenBucket messages;
+		final SocketTokenBucket bytes;
+		volatile long lastErrorReply = 0;
+		SessionLimits(){
+			this.messages = (SocketConfig.inboundMessagesPerSecond > 0)?
+					new SocketTokenBucket(SocketConfig.inboundMessagesPerSecond, SocketConfig.inboundMessageBurst) : null;
+			this.bytes = (SocketConfig.inboundBytesPerSecond > 0)?
+					new SocketTokenBucket(SocketConfig.inboundBytesPerSecond, SocketConfig.inboundBytesBurst) : null;
+		}
+	}
+
+	private static Map<Session, SessionLimits> sessionLimits = new ConcurrentHashMap<>();
+	private static SocketLruCache<String, SocketTokenBucket> channelLimits = new SocketLruCache<>(
+			SocketConfig.maxChannelsPerServer, 0, null, null
+	);
+
+	//statistics
+	private static AtomicLong droppedByMessageRate = new AtomicLong(0);
+	private static AtomicLong droppedByByteRate = new AtomicLong(0);
+	private static AtomicLong droppedByChannelRate = new AtomicLong(0);
+	private static AtomicLong errorReplies = new AtomicLong(0);
+
+	/**
+	 * Check limits of a session for a new message and take the tokens.
+	 * @param userSession - session that sent the message
+	 * @param size - message size (string length or number of bytes)
+	 * @return true if the message can be processed, false if it should be dropped
+	 */
+	public static boolean allowMessage(Session userSession, int size){
+		if (SocketConfig.inboundMessagesPerSecond <= 0 && SocketConfig.inboundBytesPerSecond <= 0){
+			return true;
+		}
+		SessionLimits limits = sessionLimits.computeIfAbsent(userSession, s -> new SessionLimits());
+		if (limits.messages != null && !limits.messages.tryAcquire(1)){
+			droppedByMessageRate.incrementAndGet();
+			replyWithError(userSession, limits, "Too many messages, please slow down (429)");
+			return false;
+		}
+		//NOTE: messages bigger than the burst size are always dropped, the server limits the message size anyway
+		if (limits.bytes != null && !limits.bytes.tryAcquire(size)){
+			droppedByByteRate.incrementAndGet();
+			replyWithError(userSession, limits, "Too much data, please slow down (429)");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check broadcast limit of a channel and take a token.
+	 * @param userSession - session that sent the message (to send an error)
+	 * @param channelId - target channel
+	 * @return true if the message can be broadcast, false if it should be dropped
+	 */
+	public static boolean allowChannelBroadcast(Session userSession, String channelId){
+		if (SocketConfig.channelBroadcastsPerSecond <= 0 || channelId == null){
+			return true;
+		}
+		SocketTokenBucket bucket = channelLimits.get(channelId);
+		if (bucket == null){
+			SocketTokenBucket newBucket = new SocketTokenBucket(SocketConfig.channelBroadcastsPerSecond, SocketConfig.channelBroadcastBurst);
+			bucket = channelLimits.putIfAbsent(channelId, newBucket);
+			if (bucket == null){
+				bucket = newBucket;
+			}
+		}
+		if (!bucket.tryAcquire(1)){
+			droppedByChannelRate.incrementAndGet();
+			SessionLimits limits = sessionLimits.computeIfAbsent(userSession, s -> new SessionLimits());
+			replyWithError(userSession, limits, "Too many messages in this channel, please wait a moment (429)");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check broadcast limit of the channel of a message and take a token. Used by all handlers that broadcast user messages to a channel.
+	 * @param userSession - session that sent the message (to send an error)
+	 * @param user - sender or null, assistants are not limited
+	 * @param msg - message with checked 'channelId'
+	 * @return true if the message can be broadcast, false if it should be dropped
+	 */
+	public static boolean allowChannelBroadcast(Session userSession, SocketUser user, SocketMessage msg){
+		if (user != null && Role.assistant.equals(user.getUserRole())){
+			return true;
+		}
+		return allowChannelBroadcast(userSession, msg.channelId);
+	}
+
+	/**
+	 * Remove data of a closed session.
+	 */
+	public static void removeSession(Session userSession){
+		sessionLimits.remove(userSession);
+	}
+
+	//send error but not more than once per interval
+	private static void replyWithError(Session userSession, SessionLimits limits, String text){
+		long now = System.currentTimeMillis();
+		long last = limits.lastErrorReply;
+		if ((now - last) < ERROR_REPLY_INTERVAL_MS){
+			return;
+		}
+		limits.lastErrorReply = now;
+		errorReplies.incrementAndGet();
+		SocketMessage msgError = SepiaSocketBroadcaster.makeServerStatusMessage(
+				"", "<auto>", text, DataType.errorMessage, false
+		);
+		msgError.addData("errorType", SocketMessage.ErrorType.rateLimit.name());
+		msgError.addData("errorCode", 429);
+		SepiaSocketBroadcaster.broadcastMessageToSession(msgError, userSession);
+	}
+
+	//--- statistics ---
+
+	/**
+	 * Statistics as HTML lines (for {@link Statistics}).
+	 */
+	public static String getStatistics(){
+		return "Dropped (session message rate): " + droppedByMessageRate.get() + "<br>" +
+				"Dropped (session data rate): " + droppedByByteRate.get() + "<br>" +
+				"Dropped (channel broadcast rate): " + droppedByChannelRate.get() + "<br>" +
+				"Rate limit errors sent: " + errorReplies.get() + "<br>";
+	}
+}
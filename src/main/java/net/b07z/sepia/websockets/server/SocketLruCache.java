@@ -0,0 +1,196 @@
+package net.b07z.sepia.websockets.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Cache with least-recently-used eviction, limited by number of entries and by total weight (e.g. approximated memory).<br>
+ * The weight of an entry is taken when it is added and can be refreshed with {@link #updateWeight(Object)} when the value changes.
+ * Entries that are not allowed to be evicted right now (see constructor) are skipped.
+ *
+ * @author Florian Quirin
+ *
+ * @param <K> - key type
+ * @param <V> - value type
+ */
+public class SocketLruCache<K, V> {
+
+	private static class Node<V> {
+		final V value;
+		long weight;
+		Node(V value, long weight){
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	private final int maxEntries;
+	private final long maxWeight;
+	private final ToLongFunction<V> weigher;
+	private final BiPredicate<K, V> canEvict;
+	private final LinkedHashMap<K, Node<V>> map = new LinkedHashMap<>(16, 0.75f, true);		//access order
+	private long weight = 0;
+
+	//statistics
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
+
+	/**
+	 * Create cache.
+	 * @param maxEntries - max. number of entries (0 or less for no limit)
+	 * @param maxWeight - max. sum of weights (0 or less for no limit)
+	 * @param weigher - function to get the weight of a value or null (every entry has weight 1)
+	 * @param canEvict - check if an entry can be evicted now or null (always)
+	 */
+	public SocketLruCache(int maxEntries, long maxWeight, ToLongFunction<V> weigher, BiPredicate<K, V> canEvict){
+		this.maxEntries = (maxEntries > 0)? maxEntries : Integer.MAX_VALUE;
+		this.maxWeight = (maxWeight > 0)? maxWeight : Long.MAX_VALUE;
+		this.weigher = (weigher != null)? weigher : (v -> 1);
+		this.canEvict = (canEvict != null)? canEvict : ((k, v) -> true);
+	}
+
+	/**
+	 * Get value and mark as recently used.
+	 * @return value or null (counted as miss)
+	 */
+	public synchronized V get(K key){
+		Node<V> node = map.get(key);
+		if (node == null){
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return node.value;
+	}
+
+	/**
+	 * Add value if there is none for this key yet.
+	 * @return previous value (nothing was changed) or null (new value was added)
+	 */
+	public synchronized V putIfAbsent(K key, V value){
+		Node<V> node = map.get(key);
+		if (node != null){
+			return node.value;
+		}
+		add(key, value);
+		return null;
+	}
+
+	/**
+	 * Add value or replace the existing one.
+	 * @return previous value or null
+	 */
+	public synchronized V put(K key, V value){
+		Node<V> node = map.remove(key);
+		if (node != null){
+			weight -= node.weight;
+		}
+		add(key, value);
+		return (node != null)? node.value : null;
+	}
+
+	/**
+	 * Replace a value only if the key is currently mapped to the expected value.
+	 * @param key - key
+	 * @param oldValue - expected value or null (expect no entry)
+	 * @param newValue - new value
+	 * @return true if replaced
+	 */
+	public synchronized boolean replace(K key, V oldValue, V newValue){
+		Node<V> node = map.get(key);
+		V current = (node != null)? node.value : null;
+		if (current != oldValue){
+			return false;
+		}
+		if (node != null){
+			map.remove(key);
+			weight -= node.weight;
+		}
+		add(key, newValue);
+		return true;
+	}
+
+	/**
+	 * Remove entry.
+	 * @return removed value or null
+	 */
+	public synchronized V remove(K key){
+		Node<V> node = map.remove(key);
+		if (node == null){
+			return null;
+		}
+		weight -= node.weight;
+		return node.value;
+	}
+
+	/**
+	 * Refresh weight of an entry after its value changed and evict other entries if required.
+	 */
+	public synchronized void updateWeight(K key){
+		Node<V> node = map.get(key);
+		if (node != null){
+			long w = weigher.applyAsLong(node.value);
+			weight += (w - node.weight);
+			node.weight = w;
+			evictIfRequired(key);
+		}
+	}
+
+	/**
+	 * Copy of all entries (in order of access, least recently used first).
+	 */
+	public synchronized Map<K, V> snapshot(){
+		Map<K, V> copy = new LinkedHashMap<>();
+		for (Map.Entry<K, Node<V>> e : map.entrySet()){
+			copy.put(e.getKey(), e.getValue().value);
+		}
+		return copy;
+	}
+
+	private void add(K key, V value){
+		long w = weigher.applyAsLong(value);
+		map.put(key, new Node<>(value, w));
+		weight += w;
+		evictIfRequired(key);
+	}
+
+	//remove least recently used entries until limits are met (never removes 'keep')
+	private void evictIfRequired(K keep){
+		if (map.size() <= maxEntries && weight <= maxWeight){
+			return;
+		}
+		Iterator<Map.Entry<K, Node<V>>> it = map.entrySet().iterator();
+		while (it.hasNext() && (map.size() > maxEntries || weight > maxWeight)){
+			Map.Entry<K, Node<V>> e = it.next();
+			if (e.getKey().equals(keep) || !canEvict.test(e.getKey(), e.getValue().value)){
+				continue;
+			}
+			it.remove();
+			weight -= e.getValue().weight;
+			evictions.incrementAndGet();
+		}
+	}
+
+	//--- statistics ---
+
+	public synchronized int size(){
+		return map.size();
+	}
+	public synchronized long getWeight(){
+		return weight;
+	}
+	public long getHits(){
+		return hits.get();
+	}
+	public long getMisses(){
+		return misses.get();
+	}
+	public long getEvictions(){
+		return evictions.get();
+	}
+}
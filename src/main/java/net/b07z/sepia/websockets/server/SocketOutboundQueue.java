@@ -0,0 +1,287 @@
+package net.b07z.sepia.websockets.server;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.websockets.common.SocketConfig;
+import net.b07z.sepia.websockets.common.SocketUser;
+import net.b07z.sepia.websockets.common.SocketUserPool;
+
+/**
+ * Bounded queue of outgoing messages (text or binary) for one session. Messages are written asynchronously one after another
+ * so a slow client cannot block the thread that broadcasts to many sessions.<br>
+ * If a session stays above its limits (number of messages or size) for too long it is closed.
+ *
+ * @author Florian Quirin
+ */
+public class SocketOutboundQueue {
+
+	static Logger log = LoggerFactory.getLogger(SocketOutboundQueue.class);
+
+	public static final int CLOSE_CODE_SLOW_CONSUMER = 4413;
+
+	//state of the current write (to detect callbacks that complete inside 'sendString'/'sendBytes')
+	private static final int WRITE_PENDING = 0;
+	private static final int WRITE_RETURNED = 1;
+	private static final int WRITE_DONE = 2;
+
+	//all queues by session
+	private static Map<Session, SocketOutboundQueue> queues = new ConcurrentHashMap<>();
+
+	//statistics
+	private static AtomicLong droppedMessages = new AtomicLong(0);
+	private static AtomicLong evictedSessions = new AtomicLong(0);
+	private static AtomicInteger maxQueueDepth = new AtomicInteger(0);
+
+	//checks sessions that stay over the limit without new messages
+	private static volatile SocketTimingWheel overLimitTimer;
+
+	private final Session session;
+	private final Queue<Object> messages = new ConcurrentLinkedQueue<>();		//String or byte[]
+	private final AtomicInteger size = new AtomicInteger(0);		//NOTE: we use this because the size() method is slow
+	private final AtomicLong bytes = new AtomicLong(0);				//NOTE: approximated by string length for text
+	private volatile boolean isBinaryFormat = false;
+	private final AtomicBoolean isSending = new AtomicBoolean(false);
+	private final AtomicInteger writeState = new AtomicInteger(WRITE_DONE);
+	private volatile long overLimitSince = 0;
+	private volatile boolean isClosed = false;
+
+	private final WriteCallback writeCallback = new WriteCallback(){
+		@Override
+		public void writeSuccess(){
+			//if the write completed inside the send call the loop in 'sendNext' continues, else we continue here
+			if (!writeState.compareAndSet(WRITE_PENDING, WRITE_DONE)){
+				sendNext();
+			}
+		}
+		@Override
+		public void writeFailed(Throwable x){
+			log.error("Failed to send message to session: " + x.getMessage());
+			close();
+		}
+	};
+
+	private SocketOutboundQueue(Session session){
+		this.session = session;
+	}
+
+	/**
+	 * Get queue of a session or create a new one.
+	 */
+	public static SocketOutboundQueue getQueue(Session session){
+		return queues.computeIfAbsent(session, SocketOutboundQueue::new);
+	}
+	/**
+	 * Remove queue of a session (usually after connection close) and drop all pending messages.
+	 */
+	public static void removeQueue(Session session){
+		SocketOutboundQueue q = queues.remove(session);
+		if (q != null){
+			q.close();
+		}
+	}
+
+	/**
+	 * Use binary messages for this session (negotiated at connection start)?
+	 */
+	public void setBinaryFormat(boolean isBinaryFormat){
+		this.isBinaryFormat = isBinaryFormat;
+	}
+	public boolean isBinaryFormat(){
+		return isBinaryFormat;
+	}
+
+	/**
+	 * Add a message to the queue and start sending if the session is idle.
+	 * @param msg - serialized message
+	 * @return true if the message was queued, false if it was dropped (queue limit or closed session)
+	 */
+	public boolean send(String msg){
+		return add(msg, msg.length());
+	}
+	/**
+	 * Add a binary message to the queue and start sending if the session is idle.
+	 * @param msg - serialized message
+	 * @return true if the message was queued, false if it was dropped (queue limit or closed session)
+	 */
+	public boolean send(byte[] msg){
+		return add(msg, msg.length);
+	}
+
+	private boolean add(Object msg, int msgSize){
+		if (isClosed || !session.isOpen()){
+			return false;
+		}
+		//check limits
+		int n = size.get();
+		if (n >= SocketConfig.outboundQueueMaxMessages || (n > 0 && (bytes.get() + msgSize) > SocketConfig.outboundQueueMaxBytes)){
+			droppedMessages.incrementAndGet();
+			long now = System.currentTimeMillis();
+			if (overLimitSince == 0){
+				overLimitSince = now;
+				//the client might not get any more messages, so we check again later
+				getOverLimitTimer().schedule(SocketConfig.outboundQueueMaxOverLimitMs + 1, this::checkOverLimit);
+			}else if ((now - overLimitSince) > SocketConfig.outboundQueueMaxOverLimitMs){
+				evictSlowConsumer();
+			}
+			return false;
+		}
+		overLimitSince = 0;
+		messages.add(msg);
+		bytes.addAndGet(msgSize);
+		int depth = size.incrementAndGet();
+		maxQueueDepth.accumulateAndGet(depth, Math::max);
+		//start sending
+		if (isSending.compareAndSet(false, true)){
+			sendNext();
+		}
+		return true;
+	}
+
+	//send messages until the queue is empty or a write is still in progress, then release the sending flag.
+	//NOTE: Jetty can complete a write inside the send call, so we loop instead of calling this again from the callback (stack depth)
+	private void sendNext(){
+		while (true){
+			Object msg = messages.poll();
+			if (msg == null){
+				isSending.set(false);
+				//a message might have been added after 'poll' but before the flag was released
+				if (!messages.isEmpty() && isSending.compareAndSet(false, true)){
+					continue;
+				}
+				return;
+			}
+			size.decrementAndGet();
+			if (isClosed){
+				return;
+			}
+			writeState.set(WRITE_PENDING);
+			try{
+				if (msg instanceof byte[]){
+					byte[] bin = (byte[]) msg;
+					bytes.addAndGet(-bin.length);
+					session.getRemote().sendBytes(ByteBuffer.wrap(bin), writeCallback);
+				}else{
+					String text = (String) msg;
+					bytes.addAndGet(-text.length());
+					session.getRemote().sendString(text, writeCallback);
+				}
+			}catch (Exception e){
+				log.error("Failed to send message to session: " + e.getMessage());
+				close();
+				return;
+			}
+			//write still running? Then the callback continues
+			if (writeState.compareAndSet(WRITE_PENDING, WRITE_RETURNED)){
+				return;
+			}
+		}
+	}
+
+	//timer check for sessions that did not get new messages while over the limit
+	private void checkOverLimit(){
+		long since = overLimitSince;
+		if (isClosed || since == 0){
+			return;
+		}
+		if (size.get() < SocketConfig.outboundQueueMaxMessages && bytes.get() < SocketConfig.outboundQueueMaxBytes){
+			//client was reading, queue is below the limit again
+			overLimitSince = 0;
+		}else{
+			long overLimitMs = System.currentTimeMillis() - since;
+			if (overLimitMs > SocketConfig.outboundQueueMaxOverLimitMs){
+				evictSlowConsumer();
+			}else{
+				getOverLimitTimer().schedule(SocketConfig.outboundQueueMaxOverLimitMs - overLimitMs + 1, this::checkOverLimit);
+			}
+		}
+	}
+
+	private static SocketTimingWheel getOverLimitTimer(){
+		if (overLimitTimer == null){
+			synchronized (SocketOutboundQueue.class){
+				if (overLimitTimer == null){
+					overLimitTimer = new SocketTimingWheel("outbound-queue-timer", 500, 128);
+				}
+			}
+		}
+		return overLimitTimer;
+	}
+
+	//close session because client does not read fast enough
+	private void evictSlowConsumer(){
+		if (isClosed) return;
+		evictedSessions.incrementAndGet();
+		SocketUser user = SocketUserPool.getUserBySession(session);
+		log.error("Closing session of slow client, outbound queue limit exceeded - user: "
+				+ ((user != null)? user.getUserId() : "unknown") + " - queued: " + size.get());
+		if (user != null){
+			user.setClosing(); 	//mark as "closing" to prevent further messages
+		}
+		close();
+		session.close(CLOSE_CODE_SLOW_CONSUMER, "Outbound queue limit exceeded");
+	}
+
+	//drop all messages
+	private void close(){
+		isClosed = true;
+		messages.clear();
+		size.set(0);
+		bytes.set(0);
+	}
+
+	/**
+	 * Number of messages waiting in this queue.
+	 */
+	public int getSize(){
+		return size.get();
+	}
+
+	//--- statistics ---
+
+	/**
+	 * Number of sessions with an outbound queue.
+	 */
+	public static int getNumberOfQueues(){
+		return queues.size();
+	}
+	/**
+	 * Messages currently waiting in all queues.
+	 */
+	public static long getTotalQueuedMessages(){
+		long total = 0;
+		for (SocketOutboundQueue q : queues.values()){
+			total += q.getSize();
+		}
+		return total;
+	}
+	/**
+	 * Largest queue depth seen since server start.
+	 */
+	public static int getMaxQueueDepth(){
+		return maxQueueDepth.get();
+	}
+	/**
+	 * Messages dropped because a queue was full.
+	 */
+	public static long getDroppedMessages(){
+		return droppedMessages.get();
+	}
+	/**
+	 * Sessions that were closed because they stayed above the queue limit.
+	 */
+	public static long getEvictedSessions(){
+		return evictedSessions.get();
+	}
+}
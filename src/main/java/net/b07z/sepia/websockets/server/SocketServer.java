@@ -1,5 +1,6 @@
 package net.b07z.sepia.websockets.server;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 
 import org.eclipse.jetty.websocket.api.Session;
@@ -16,8 +17,18 @@ public interface SocketServer {
 	
 	public void onMessage(Session userSession, String message);
 	
+	/**
+	 * Binary message received (e.g. compact message format negotiated by client).
+	 */
+	public void onBinaryMessage(Session userSession, byte[] buffer, int offset, int length);
+	
 	public void onError(Session userSession, Throwable error);
 	
+	/**
+	 * Pong frame received (answer to a WebSocket ping frame).
+	 */
+	public void onPong(Session userSession, ByteBuffer payload);
+	
 	//--- broadcasting ---
 	
 	public long getLastBroadcastTime();
@@ -0,0 +1,185 @@
+package net.b07z.sepia.websockets.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timing wheel driven by a single ticker thread. Scheduling and cancelling a task is O(1) and does not create
+ * a thread or future per task, so it can handle one timer per connected client (e.g. alive-pings).<br>
+ * Tasks are executed on the ticker thread and should be short. The precision is one tick.
+ *
+ * @author Florian Quirin
+ */
+public class SocketTimingWheel {
+
+	static Logger log = LoggerFactory.getLogger(SocketTimingWheel.class);
+
+	private static final int WAITING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	/**
+	 * A scheduled task that can be cancelled.
+	 */
+	public static class Timeout {
+		private final SocketTimingWheel wheel;
+		private final Runnable task;
+		private final long deadline;
+		private long remainingRounds;		//only accessed by ticker thread
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+
+		private Timeout(SocketTimingWheel wheel, Runnable task, long deadline){
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancel task. The entry is removed from the wheel when its bucket is visited next time.
+		 * @return true if the task was still waiting, false if it was already executed or cancelled
+		 */
+		public boolean cancel(){
+			if (state.compareAndSet(WAITING, CANCELLED)){
+				wheel.pending.decrementAndGet();
+				return true;
+			}else{
+				return false;
+			}
+		}
+		public boolean isCancelled(){
+			return (state.get() == CANCELLED);
+		}
+		public boolean isExpired(){
+			return (state.get() == EXPIRED);
+		}
+
+		private void expire(){
+			if (state.compareAndSet(WAITING, EXPIRED)){
+				wheel.pending.decrementAndGet();
+				try{
+					task.run();
+				}catch (Exception e){
+					log.error("Timing wheel task failed: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private final long tickMs;
+	private final int mask;
+	private final List<List<Timeout>> buckets;
+	private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pending = new AtomicInteger(0);
+	private final long startTime;
+	private long tick = 0;					//only accessed by ticker thread
+	private volatile boolean isRunning = true;
+	private final Thread ticker;
+
+	/**
+	 * Create and start a new timing wheel.
+	 * @param name - name of the ticker thread
+	 * @param tickMs - duration of one tick (precision of the timer)
+	 * @param wheelSize - number of buckets, will be rounded up to a power of 2
+	 */
+	public SocketTimingWheel(String name, long tickMs, int wheelSize){
+		int size = 1;
+		while (size < wheelSize){
+			size <<= 1;
+		}
+		this.tickMs = Math.max(1, tickMs);
+		this.mask = size - 1;
+		this.buckets = new ArrayList<>(size);
+		for (int i = 0; i < size; i++){
+			this.buckets.add(new ArrayList<>());
+		}
+		this.startTime = System.currentTimeMillis();
+		this.ticker = new Thread(this::runTicker, name);
+		this.ticker.setDaemon(true);
+		this.ticker.start();
+	}
+
+	/**
+	 * Schedule a task.
+	 * @param delayMs - delay in milliseconds
+	 * @param task - task to run on the ticker thread
+	 * @return {@link Timeout} that can be used to cancel the task
+	 */
+	public Timeout schedule(long delayMs, Runnable task){
+		Timeout t = new Timeout(this, task, System.currentTimeMillis() + Math.max(0, delayMs));
+		pending.incrementAndGet();
+		newTimeouts.add(t);
+		return t;
+	}
+
+	/**
+	 * Stop the ticker thread. Waiting tasks will not be executed anymore.
+	 */
+	public void stop(){
+		isRunning = false;
+		ticker.interrupt();
+	}
+
+	/**
+	 * Number of tasks waiting for execution.
+	 */
+	public int getNumberOfPendingTimeouts(){
+		return pending.get();
+	}
+
+	//ticker loop
+	private void runTicker(){
+		while (isRunning){
+			long tickDeadline = startTime + (tick + 1) * tickMs;
+			long sleep = tickDeadline - System.currentTimeMillis();
+			if (sleep > 0){
+				try{
+					Thread.sleep(sleep);
+				}catch (InterruptedException e){
+					if (!isRunning) break;
+				}
+				continue;	//check time again
+			}
+			transferNewTimeouts();
+			expireBucket(buckets.get((int) (tick & mask)));
+			tick++;
+		}
+	}
+
+	//move new timeouts to their bucket
+	private void transferNewTimeouts(){
+		Timeout t;
+		while ((t = newTimeouts.poll()) != null){
+			if (t.isCancelled()){
+				continue;
+			}
+			long targetTick = (t.deadline - startTime) / tickMs;
+			t.remainingRounds = (targetTick - tick) / buckets.size();
+			//overdue timeouts go to the current bucket
+			long ticks = Math.max(targetTick, tick);
+			buckets.get((int) (ticks & mask)).add(t);
+		}
+	}
+
+	//run all timeouts of a bucket that reached their round
+	private void expireBucket(List<Timeout> bucket){
+		Iterator<Timeout> it = bucket.iterator();
+		while (it.hasNext()){
+			Timeout t = it.next();
+			if (t.isCancelled()){
+				it.remove();
+			}else if (t.remainingRounds <= 0){
+				it.remove();
+				t.expire();
+			}else{
+				t.remainingRounds--;
+			}
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package net.b07z.sepia.websockets.server;
+
+/**
+ * Simple token bucket for rate limits. The bucket holds up to 'capacity' tokens (burst) and is refilled with
+ * 'tokensPerSecond'. Each action takes one or more tokens, if there are not enough tokens the action is not allowed.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class SocketTokenBucket {
+
+	private final double capacity;
+	private final double tokensPerNano;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * Create a full bucket.
+	 * @param tokensPerSecond - refill rate
+	 * @param capacity - max. number of tokens (burst)
+	 */
+	public SocketTokenBucket(double tokensPerSecond, double capacity){
+		this.capacity = Math.max(1, capacity);
+		this.tokensPerNano = Math.max(0, tokensPerSecond) / 1000000000d;
+		this.tokens = this.capacity;
+		this.lastRefill = System.nanoTime();
+	}
+
+	private void refill(long now){
+		if (now > lastRefill){
+			tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+			lastRefill = now;
+		}
+	}
+
+	/**
+	 * Take tokens if available.
+	 * @param n - number of tokens
+	 * @return true if tokens were taken (action allowed)
+	 */
+	public synchronized boolean tryAcquire(double n){
+		refill(System.nanoTime());
+		if (tokens >= n){
+			tokens -= n;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Time until the given number of tokens is available (0 if available now, -1 if never).
+	 */
+	public synchronized long getWaitMs(double n){
+		refill(System.nanoTime());
+		if (tokens >= n){
+			return 0;
+		}else if (tokensPerNano <= 0 || n > capacity){
+			return -1;
+		}
+		return (long) Math.ceil((n - tokens) / tokensPerNano / 1000000d);
+	}
+}
@@ -22,6 +22,7 @@ import net.b07z.sepia.server.core.tools.Timer;
 import net.b07z.sepia.server.core.users.Account;
 import net.b07z.sepia.websockets.common.SocketChannel;
 import net.b07z.sepia.websockets.common.SocketConfig;
+import net.b07z.sepia.websockets.common.SocketMessageCbor;
 import net.b07z.sepia.websockets.database.ChannelsDatabase;
 import net.b07z.sepia.websockets.endpoints.ChannelManager;
 import net.b07z.sepia.websockets.endpoints.ClientManager;
@@ -163,6 +164,8 @@ public class StartWebSocketServer {
         
         webSocket("/messages/", AbstractSocketHandler.class); 		//NOTE: it HAS TO end with "/"
         webSocketIdleTimeoutMillis(SocketConfig.IDLE_TIMEOUT);
+        //confirm binary format subprotocol in the handshake (the WebSocketCreator of Spark does not do it)
+        before("/messages/", StartWebSocketServer::selectSubProtocol);
         //init(); //only needed when no REST end-points follow
         
         get("/online", (request, response) -> 			CoreEndpoints.onlineCheck(request, response));
@@ -175,6 +178,7 @@ public class StartWebSocketServer {
         post("/joinChannel", (request, response) -> 	ChannelManager.joinChannel(request, response));
         post("/deleteChannel", (request, response) -> 	ChannelManager.deleteChannel(request, response));
         post("/getAvailableChannels", (request, response) -> 	ChannelManager.getAvailableChannels(request, response));
+        get("/getAvailableChannels", (request, response) -> 	ChannelManager.getAvailableChannels(request, response));	//supports 'If-None-Match', credentials via 'Authorization' header
         post("/getChannelHistoryStatistic", (request, response) -> 	ChannelManager.getChannelHistoryStatistic(request, response));
         post("/removeOutdatedChannelMessages", (request, response) -> 	ChannelManager.removeOutdatedChannelMessages(request, response));
         //TODO: getChannel, getChannelData
@@ -203,6 +207,19 @@ public class StartWebSocketServer {
 		Debugger.println("Initialization complete, lets go!", 3);
     }
 	
+	//set accepted subprotocol header of WebSocket handshake - a browser closes the connection if an offered subprotocol is not confirmed
+	private static void selectSubProtocol(Request request, Response response){
+		String offered = request.headers("Sec-WebSocket-Protocol");
+		if (offered != null && SocketConfig.allowBinaryFormat){
+			for (String p : offered.split(",")){
+				if (p.trim().equals(SocketMessageCbor.SUBPROTOCOL)){
+					response.header("Sec-WebSocket-Protocol", SocketMessageCbor.SUBPROTOCOL);
+					return;
+				}
+			}
+		}
+	}
+	
 	//hello and statistics end-point
 	private static String helloWorld(Request request, Response response){
 		//time now
@@ -214,7 +231,7 @@ public class StartWebSocketServer {
     	
     	//authenticate
     	Account userAccount = new Account();
-		if (userAccount.authenticate(params)){
+		if (SocketAuthenticationCache.authenticateUncached(userAccount, params)){
 			String reply;
 			if (userAccount.hasRole(Role.developer.name())){
 				//stats
@@ -16,11 +16,44 @@ public class Statistics extends BasicStatistics {
 		String msg = 
 			"Active clients: " + SocketUserPool.getAllUsers().size() + "<br>" +
 			"Pending sessions: " + SocketUserPool.getAllPendingSessions().size() + "<br>" +
+			"Reaped pending sessions: " + SocketUserPool.getReapedPendingSessions() 
+				+ " (disconnected: " + SocketUserPool.getDisconnectedPendingSessions() + ")<br>" +
+			SocketAdmissionControl.getStatistics() +
+			"<br>" +
+			"Outbound queues:<br>" +
+			"Sessions with queue: " + SocketOutboundQueue.getNumberOfQueues() + "<br>" +
+			"Queued messages now: " + SocketOutboundQueue.getTotalQueuedMessages() + "<br>" +
+			"Max. queue depth: " + SocketOutboundQueue.getMaxQueueDepth() + "<br>" +
+			"Dropped messages: " + SocketOutboundQueue.getDroppedMessages() + "<br>" +
+			"Evicted slow clients: " + SocketOutboundQueue.getEvictedSessions() + "<br>" +
+			"<br>" +
+			"Chats DB write queue:<br>" +
+			"Waiting writes now: " + SocketChannelHistoryWriter.getQueueSize() + "<br>" +
+			"Queued writes: " + SocketChannelHistoryWriter.getQueuedItems() + "<br>" +
+			"Written: " + SocketChannelHistoryWriter.getWrittenItems() + " (batches: " + SocketChannelHistoryWriter.getWrittenBatches() + ")<br>" +
+			"Skipped (outdated): " + SocketChannelHistoryWriter.getSkippedItems() + "<br>" +
+			"Retries: " + SocketChannelHistoryWriter.getRetriedItems() + "<br>" +
+			"Dropped (queue full): " + SocketChannelHistoryWriter.getDroppedItems() + "<br>" +
+			"Failed: " + SocketChannelHistoryWriter.getFailedItems() + "<br>" +
+			"<br>" +
+			"Inbound limits:<br>" +
+			SocketInboundRateLimiter.getStatistics() +
+			"<br>" +
+			"Chat caches:<br>" +
+			SocketChannelHistory.getCacheStatistics() +
+			SocketChannelPool.getCacheStatistics() +
+			"<br>" +
+			"Authentication:<br>" +
+			SocketAuthenticationCache.getCacheStatistics() +
+			"Waiting authentications now: " + SepiaAuthenticationHandler.getQueuedAuthentications() + "<br>" +
+			"Rejected (queue full): " + SepiaAuthenticationHandler.getRejectedAuthentications() + "<br>" +
+			"Timed out (in queue): " + SepiaAuthenticationHandler.getTimedOutAuthentications() + "<br>" +
 			"<br>" +
 			"Processing threads:<br>" +
 			"Active threads now: " + ThreadManager.getNumberOfCurrentlyActiveThreads() + "<br>" +
 			"Max. active threads: " + ThreadManager.getMaxNumberOfActiveThreads() + "<br>" +
 			"Scheduled alive-pings: " + SepiaClientPingHandler.getNumberOfScheduledPingRequest() + "<br>" +
+			"Pending alive-ping timers: " + SepiaClientPingHandler.getNumberOfPendingPingTimers() + "<br>" +
 			"<br>"
 		;
 		//add basics
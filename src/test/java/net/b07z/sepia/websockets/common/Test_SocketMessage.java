@@ -3,7 +3,12 @@ package net.b07z.sepia.websockets.common;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
 import net.b07z.sepia.server.core.data.Role;
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.websockets.server.SepiaSocketBroadcaster;
 
 public class Test_SocketMessage {
 	
@@ -34,7 +39,71 @@ public class Test_SocketMessage {
 			
 		} catch (Exception e) {
 			e.printStackTrace();
-		} 
+		}
+    	
+    	//streaming codec vs. JSONObject
+    	try {
+    		SocketMessage msg3 = new SocketMessage("channel1", "aId", "d1", "bId", "d2", JSON.make(
+    				"dataType", "openText",
+    				"parameters", JSON.make("input", "say \"hi\" / \u2028 \n <b>"),
+    				"num", 1.5
+    		));
+    		msg3.text = " <i>text</i> with \"quotes\" ";
+    		msg3.setUserList(userIdMap.values());
+    		String codecString = SocketMessageCodec.writeMessage(msg3);
+    		String jsonString = msg3.getJSON().toJSONString();
+    		JSONParser parser = new JSONParser();
+    		System.out.println("codec write identical? " + ((JSONObject) parser.parse(codecString)).equals((JSONObject) parser.parse(jsonString)));
+    		
+    		SocketMessage msg4 = SocketMessageCodec.readMessage(jsonString);
+    		SocketMessage msg5 = SocketMessage.importJSON(jsonString);
+    		System.out.println("codec read identical? " + msg4.getJSON().equals(msg5.getJSON()));
+    		System.out.println("codec write of unparsed data identical? " 
+    				+ ((JSONObject) parser.parse(SocketMessageCodec.writeMessage(SocketMessageCodec.readMessage(jsonString)))).equals(msg5.getJSON()));
+    		
+    		SocketMessageCodec.Header header = SocketMessageCodec.readHeader(jsonString);
+    		System.out.println("header identical? " + (header.channelId.equals(msg5.channelId) && header.receiver.equals(msg5.receiver) 
+    				&& header.msgId.equals(msg5.msgId) && header.dataType.equals(msg5.getDataType()) && header.hasData));
+    		
+    		SocketMessage msgRaw = SocketMessageCodec.readMessage(jsonString);		//data not parsed
+    		System.out.println("codec safe write identical? " 
+    				+ ((JSONObject) parser.parse(SocketMessageCodec.writeSafeMessage(msg3))).equals(SepiaSocketBroadcaster.makeSafeMessage(msg3))
+    				+ " - unparsed data: " + ((JSONObject) parser.parse(SocketMessageCodec.writeSafeMessage(msgRaw))).equals(SepiaSocketBroadcaster.makeSafeMessage(msg3)));
+    		
+    		byte[] cbor = SocketMessageCbor.writeMessage(msg3);
+    		SocketMessage msg6 = SocketMessageCbor.readMessage(cbor, 0, cbor.length);
+    		System.out.println("cbor identical? " + msg6.getJSON().equals(msg5.getJSON()) + " - size: " + cbor.length + " vs. " + jsonString.length());
+    		
+    		//invalid data must not pass (it is forwarded unparsed) - valid data must
+    		String[] invalidData = {"1e-+.", "01", "-", "1.", "\"\\x\"", "\"\\u12G4\""};
+    		String[] validData = {"1.5e-3", "-0", "0.25", "\"\\u12F4\\n\""};
+    		int rejected = 0;
+    		for (String d : invalidData){
+    			try{
+    				SocketMessageCodec.readMessage("{\"msgId\":\"1\",\"timeUNIX\":1,\"data\":{\"n\":" + d + "}}");
+    			}catch (Exception ex){
+    				if (ex.getMessage() != null && ex.getMessage().startsWith("Invalid message JSON")){
+    					rejected++;
+    				}else{
+    					System.out.println("unexpected error for '" + d + "': " + ex);
+    				}
+    			}
+    		}
+    		int accepted = 0;
+    		for (String d : validData){
+    			try{
+    				SocketMessageCodec.readMessage("{\"msgId\":\"1\",\"timeUNIX\":1,\"data\":{\"n\":" + d + "}}");
+    				accepted++;
+    			}catch (Exception ex){
+    				System.out.println("valid data rejected '" + d + "': " + ex.getMessage());
+    			}
+    		}
+    		System.out.println("codec accepts valid data? " + (accepted == validData.length));
+    		System.out.println("codec rejects invalid data? " + (rejected == invalidData.length));
+    		
+    	} catch (Exception e) {
+			e.printStackTrace();
+		}
 
 	}
 
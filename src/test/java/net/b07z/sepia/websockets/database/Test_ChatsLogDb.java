@@ -0,0 +1,85 @@
+package net.b07z.sepia.websockets.database;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+
+import net.b07z.sepia.websockets.common.SocketConfig;
+import net.b07z.sepia.websockets.common.SocketMessage;
+
+/**
+ * Writes, removes and reloads messages with the segment-file chats DB in a temporary folder.
+ */
+public class Test_ChatsLogDb {
+
+	public static void main(String[] args) throws Exception {
+		
+		File folder = new File(System.getProperty("java.io.tmpdir"), "sepia-chats-log-test-" + System.currentTimeMillis());
+		SocketConfig.chatsLogDbFolder = folder.getAbsolutePath();
+		SocketConfig.chatsLogDbSegmentBytes = 64 * 1024;		//small segments to get rotation and compaction
+		
+		ChatsDatabase chatDb = new ChatsLogDb();
+		
+		//Store messages
+		long t0 = System.currentTimeMillis();
+		List<JSONObject> msgs = new ArrayList<>();
+		for (int i = 0; i < 2000; i++){
+			SocketMessage msg = new SocketMessage((i % 2 == 0)? "channelId1" : "channelId2", "uid107", "a1", "", "", "Message " + i, null);
+			msg.timeStampUNIX = t0 + i;
+			msgs.add(msg.getJSON());
+		}
+		int failed = Arrays.stream(chatDb.storeChannelMessages(msgs)).sum();
+		check("stored messages", failed == 0);
+		check("messages of channel 1", chatDb.getAllMessagesOfChannel("channelId1", 0).size() == 1000);
+		check("segments rotated", folder.list().length > 1);
+		
+		//Missed messages data
+		chatDb.updateChannelsWithMissedMessagesForUser("uid107", new HashSet<>(Arrays.asList("channelId1")), false);
+		chatDb.updateChannelsWithMissedMessagesForUser("uid107", new HashSet<>(Arrays.asList("channelId1", "channelId2")), true);
+		JSONObject userData = chatDb.getAllChannelsWithMissedMassegesForUser("uid107");
+		System.out.println("Info for user: " + userData);
+		check("missed messages data", userData.get("lastMissedMessage") != null && userData.get("lastMissNoteReceived") != null);
+		
+		//Remove and compact
+		int segmentsBefore = folder.list().length;
+		int removed = chatDb.removeOldChannelMessages("channelId1", t0 + 1800);
+		removed += chatDb.removeOldChannelMessages("channelId2", t0 + 1900);
+		System.out.println("Removed: " + removed + " - segments: " + segmentsBefore + " -> " + folder.list().length);
+		check("removed messages", removed == 1850);
+		check("compacted segments", folder.list().length < segmentsBefore);
+		
+		//Reload from files with broken end (e.g. crash during write)
+		ChatsLogDb.closeStore();
+		File[] files = folder.listFiles();
+		Arrays.sort(files);
+		try (FileOutputStream out = new FileOutputStream(files[files.length - 1], true)){
+			out.write(new byte[]{0, 0, 1, 0, 5});
+		}
+		chatDb = new ChatsLogDb();
+		List<SocketMessage> restored = chatDb.getAllMessagesOfChannel("channelId1", 0);
+		check("reloaded channel 1", restored.size() == 100 && restored.get(0).timeStampUNIX == t0 + 1800);
+		check("reloaded channel 2", chatDb.getAllMessagesOfChannel("channelId2", t0 + 1950).size() == 25);
+		check("reloaded user data", chatDb.getAllChannelsWithMissedMassegesForUser("uid107").equals(userData));
+		check("unknown user", chatDb.getAllChannelsWithMissedMassegesForUser("uid109").isEmpty());
+		
+		//Clean-up
+		ChatsLogDb.closeStore();
+		for (File f : folder.listFiles()){
+			f.delete();
+		}
+		folder.delete();
+		System.out.println("DONE");
+	}
+	
+	private static void check(String name, boolean ok){
+		System.out.println(name + ": " + (ok? "OK" : "FAILED"));
+		if (!ok){
+			throw new RuntimeException("Test failed: " + name);
+		}
+	}
+}
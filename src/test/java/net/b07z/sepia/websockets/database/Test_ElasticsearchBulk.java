@@ -0,0 +1,103 @@
+package net.b07z.sepia.websockets.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.simple.JSONObject;
+
+import com.sun.net.httpserver.HttpServer;
+
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.websockets.common.SocketMessage;
+
+/**
+ * Runs the bulk methods against a local HTTP stub that answers like the Elasticsearch '_bulk' endpoint.
+ */
+public class Test_ElasticsearchBulk {
+	
+	private static String lastRequestBody = "";
+
+	public static void main(String[] args) throws Exception {
+		
+		//ES stub: every action succeeds except documents that contain 'fail-me'
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/_bulk", exchange -> {
+			String body = readAll(exchange.getRequestBody());
+			lastRequestBody = body;
+			String[] lines = body.split("\n");
+			StringBuilder items = new StringBuilder();
+			for (int i = 0; i < lines.length; i += 2){
+				String action = lines[i].substring(2, lines[i].indexOf('"', 2));
+				int status = lines[i+1].contains("fail-me")? 400 : 201;
+				if (items.length() > 0) items.append(",");
+				items.append("{\"" + action + "\":{\"status\":" + status + "}}");
+			}
+			byte[] res = ("{\"took\":1,\"errors\":false,\"items\":[" + items + "]}").getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, res.length);
+			try (OutputStream out = exchange.getResponseBody()){
+				out.write(res);
+			}
+		});
+		server.start();
+		String url = "http://localhost:" + server.getAddress().getPort();
+		
+		try{
+			ChatsDatabase chatDb = new ChatsElasticsearchDb(url);
+			ChannelsDatabase chanDb = new ChannelsElasticsearchDb(url);
+			
+			//store messages
+			int[] codes = chatDb.storeChannelMessages(Arrays.asList(
+					new SocketMessage("channelId1", "uid107", "a1", "uid109", "b1", "Hallo uid109", null).getJSON(),
+					new SocketMessage("channelId1", "uid107", "a1", "uid109", "b1", "fail-me", null).getJSON(),
+					new SocketMessage("channelId1", "uid109", "b1", "uid107", "a1", "Hallo uid107", null).getJSON()
+			));
+			System.out.println("storeChannelMessages: " + Arrays.toString(codes) + " - expected: [0, 2, 0]");
+			System.out.println("request lines: " + lastRequestBody.split("\n").length + " - expected: 6");
+			
+			//update users
+			Map<String, Set<String>> channelIdsByUser = new HashMap<>();
+			channelIdsByUser.put("uid107", new HashSet<>(Arrays.asList("channelId1", "channelId2")));
+			channelIdsByUser.put("uid109", new HashSet<>(Arrays.asList("channelId1")));
+			Map<String, Integer> userCodes = chatDb.updateChannelsWithMissedMessagesForUsers(channelIdsByUser, false);
+			System.out.println("updateChannelsWithMissedMessagesForUsers: " + userCodes + " - expected: all 0");
+			System.out.println("has upsert: " + lastRequestBody.contains("\"doc_as_upsert\":true"));
+			
+			//update channels
+			Map<String, JSONObject> updateDataByChannelId = new HashMap<>();
+			updateDataByChannelId.put("channelId1", JSON.make("channel_name", "Channel A"));
+			updateDataByChannelId.put("channelId2", JSON.make("channel_name", "fail-me"));
+			Map<String, Integer> channelCodes = chanDb.updateChannels(updateDataByChannelId);
+			System.out.println("updateChannels: " + channelCodes + " - expected: channelId1=0, channelId2=2");
+			
+			//connection error
+			server.stop(0);
+			int[] codesOffline = chatDb.storeChannelMessages(Arrays.asList(
+					new SocketMessage("channelId1", "uid107", "a1", "uid109", "b1", "Hallo?", null).getJSON()
+			));
+			System.out.println("storeChannelMessages (offline): " + Arrays.toString(codesOffline) + " - expected: [1]");
+		
+		}finally{
+			server.stop(0);
+		}
+	}
+	
+	private static String readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) != -1){
+			out.write(buf, 0, n);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+}